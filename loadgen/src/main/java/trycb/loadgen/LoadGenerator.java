@@ -0,0 +1,408 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.loadgen;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Open-loop traffic replay against a running application.
+ * <p>
+ * Requests are sent on a fixed schedule derived from the target rate, whether or not earlier requests have completed,
+ * and each latency is measured from the time the request was scheduled to start rather than from the time it was
+ * actually sent. When the application (or the concurrency limit) falls behind, the queueing delay is therefore part of
+ * the reported latency, which corrects for coordinated omission.
+ * <p>
+ * Latencies are recorded in microseconds, per endpoint label, and written as one HdrHistogram interval log per
+ * endpoint in the output directory. A percentile summary is printed at the end of the run.
+ * <p>
+ * With --gzip true, responses are asked for gzip compressed, and with --etag true, each GET sends the ETag last
+ * returned for its URL in If-None-Match, so that the bytes on the wire, the bytes once decoded and the number of
+ * 304 Not Modified responses can be compared between runs. The CPU time used by the generator, and the average CPU
+ * usage of the application when its metrics endpoint is exposed, are reported with them.
+ */
+public class LoadGenerator {
+
+  private static final Pattern CPU_VALUE = Pattern.compile("\"value\"\\s*:\\s*([0-9.Ee+-]+)");
+
+  private final Map<String, String> options;
+  private final URI target;
+  private final HttpClient client;
+  private final Duration timeout;
+  private final Map<String, EndpointStats> stats = new TreeMap<>();
+  private final AtomicLong newUsers = new AtomicLong();
+  private final boolean gzip;
+  private final boolean etag;
+  private final Map<URI, String> etags = new ConcurrentHashMap<>();
+  private final List<Double> serverCpu = new ArrayList<>();
+
+  LoadGenerator(Map<String, String> options) {
+    this.options = options;
+    this.target = URI.create(option("target", "http://localhost:8080"));
+    this.timeout = Duration.ofMillis(Long.parseLong(option("timeout-ms", "10000")));
+    this.gzip = Boolean.parseBoolean(option("gzip", "false"));
+    this.etag = Boolean.parseBoolean(option("etag", "false"));
+    int threads = Integer.parseInt(option("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(5)).executor(Executors.newFixedThreadPool(threads)).build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (!args[i].startsWith("--")) {
+        usage("unexpected argument " + args[i]);
+      }
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+    if (!options.containsKey("traffic")) {
+      usage("--traffic is required");
+    }
+    new LoadGenerator(options).run();
+    System.exit(0);
+  }
+
+  private static void usage(String message) {
+    System.err.println(message);
+    System.err.println("usage: LoadGenerator --traffic <file.jsonl> [--target http://localhost:8080] [--rate 100]"
+        + " [--duration-s 60] [--concurrency 64] [--tenants tenant_agent_00,tenant_agent_01]"
+        + " [--users-per-tenant 10] [--seed 42] [--timeout-ms 10000] [--threads <cpus>] [--out target/loadgen]"
+        + " [--gzip false] [--etag false]");
+    System.exit(2);
+  }
+
+  private String option(String name, String defaultValue) {
+    return options.getOrDefault(name, defaultValue);
+  }
+
+  void run() throws Exception {
+    Traffic traffic = Traffic.load(Paths.get(option("traffic", null)));
+    double rate = Double.parseDouble(option("rate", "100"));
+    long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration-s", "60")));
+    Semaphore inFlight = new Semaphore(Integer.parseInt(option("concurrency", "64")));
+    Random random = new Random(Long.parseLong(option("seed", "42")));
+    Path out = Paths.get(option("out", "target/loadgen"));
+    Files.createDirectories(out);
+
+    List<Traffic.Identity> identities = signUp(traffic);
+    for (Traffic.Entry entry : traffic.entries()) {
+      stats.computeIfAbsent(entry.endpoint, e -> new EndpointStats(e, out));
+    }
+
+    long startMillis = System.currentTimeMillis();
+    for (EndpointStats s : stats.values()) {
+      s.start(startMillis);
+    }
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(this::writeIntervals, 1, 1, TimeUnit.SECONDS);
+    reporter.scheduleAtFixedRate(this::sampleServerCpu, 1, 1, TimeUnit.SECONDS);
+    long cpuStart = processCpuNanos();
+
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    long sent = 0;
+    List<Traffic.Entry> entries = traffic.entries();
+    while (true) {
+      long intendedStart = start + sent * intervalNanos;
+      if (intendedStart - start >= durationNanos) {
+        break;
+      }
+      long wait = intendedStart - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      Traffic.Entry entry = entries.get((int) (sent % entries.size()));
+      Traffic.Identity identity = identities.get(random.nextInt(identities.size()));
+      inFlight.acquire();
+      send(entry, identity, intendedStart, inFlight);
+      sent++;
+    }
+
+    // let the stragglers finish before the last interval is written
+    inFlight.acquire(Integer.parseInt(option("concurrency", "64")));
+    reporter.shutdown();
+    reporter.awaitTermination(5, TimeUnit.SECONDS);
+    writeIntervals();
+    report(System.out, sent, rate, processCpuNanos() - cpuStart);
+    for (EndpointStats s : stats.values()) {
+      s.close();
+    }
+  }
+
+  private void send(Traffic.Entry entry, Traffic.Identity identity, long intendedStart, Semaphore inFlight) {
+    EndpointStats s = stats.get(entry.endpoint);
+    HttpRequest request = request(entry, identity);
+    client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, error) -> {
+      // the permit goes back whatever happens, or the final acquire of every permit would never return
+      try {
+        record(s, request, response, error, intendedStart);
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  private void record(EndpointStats s, HttpRequest request, HttpResponse<byte[]> response, Throwable error,
+      long intendedStart) {
+    boolean failed = error != null || response.statusCode() >= 400;
+    if (!failed) {
+      try {
+        // decoding is part of the cost of compression, so it is inside the measured latency
+        long decoded = decodedLength(response);
+        s.bytes.add(response.body().length);
+        s.decodedBytes.add(decoded);
+        if (response.statusCode() == 304) {
+          s.notModified.increment();
+        }
+        response.headers().firstValue("ETag").ifPresent(tag -> etags.put(request.uri(), tag));
+      } catch (RuntimeException e) {
+        // an unknown content encoding or a truncated body
+        failed = true;
+      }
+    }
+    long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStart);
+    s.recorder.recordValue(latencyMicros);
+    if (failed) {
+      s.errors.increment();
+    }
+  }
+
+  /**
+   * The length of the response body once its content encoding has been undone.
+   */
+  private static long decodedLength(HttpResponse<byte[]> response) {
+    if (!"gzip".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(""))) {
+      return response.body().length;
+    }
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+      return in.transferTo(OutputStream.nullOutputStream());
+    } catch (IOException e) {
+      throw new IllegalStateException("Malformed gzip body", e);
+    }
+  }
+
+  private HttpRequest request(Traffic.Entry entry, Traffic.Identity identity) {
+    String newUser = "loadgen_" + System.currentTimeMillis() + "_" + newUsers.incrementAndGet();
+    String body = entry.body(identity, newUser);
+    URI uri = target.resolve(entry.path(identity, newUser));
+    HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+        .timeout(timeout)
+        .method(entry.method, body == null ? HttpRequest.BodyPublishers.noBody()
+            : HttpRequest.BodyPublishers.ofString(body));
+    if (body != null) {
+      builder.header("Content-Type", "application/json");
+    }
+    if (entry.auth && identity.token != null) {
+      builder.header("Authorization", "Bearer " + identity.token);
+    }
+    if (gzip) {
+      builder.header("Accept-Encoding", "gzip");
+    }
+    String tag = etag && "GET".equals(entry.method) ? etags.get(uri) : null;
+    if (tag != null) {
+      builder.header("If-None-Match", tag);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Create the tenant users requests are sent for, logging in instead when they already exist from an earlier run.
+   */
+  private List<Traffic.Identity> signUp(Traffic traffic) throws Exception {
+    List<Traffic.Identity> identities = new ArrayList<>();
+    int usersPerTenant = Integer.parseInt(option("users-per-tenant", "10"));
+    for (String tenant : option("tenants", "tenant_agent_00,tenant_agent_01").split(",")) {
+      for (int i = 0; i < usersPerTenant; i++) {
+        identities.add(new Traffic.Identity(tenant.trim(), "loadgen_user_" + i, "password"));
+      }
+    }
+    for (Traffic.Identity identity : identities) {
+      String credentials = "{\"user\":\"" + identity.user + "\",\"password\":\"" + identity.password + "\"}";
+      HttpResponse<String> response = post("/api/tenants/" + identity.tenant + "/user/signup", credentials);
+      if (response.statusCode() >= 400) {
+        response = post("/api/tenants/" + identity.tenant + "/user/login", credentials);
+      }
+      if (response.statusCode() >= 400) {
+        throw new IllegalStateException("Could not sign up or log in " + identity.tenant + "/" + identity.user
+            + ": " + response.statusCode() + " " + response.body());
+      }
+      String body = response.body();
+      int tokenStart = body.indexOf("\"token\":\"") + "\"token\":\"".length();
+      identity.token = body.substring(tokenStart, body.indexOf('"', tokenStart));
+    }
+    return identities;
+  }
+
+  private HttpResponse<String> post(String path, String body) throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(target.resolve(path)).timeout(timeout)
+        .header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    return client.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  /**
+   * Record the CPU usage of the application, as reported by its metrics endpoint, when it is exposed.
+   */
+  private void sampleServerCpu() {
+    try {
+      HttpRequest request = HttpRequest.newBuilder(target.resolve("/actuator/metrics/process.cpu.usage"))
+          .timeout(timeout).build();
+      HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+      Matcher value = CPU_VALUE.matcher(response.body());
+      if (response.statusCode() == 200 && value.find()) {
+        synchronized (serverCpu) {
+          serverCpu.add(Double.parseDouble(value.group(1)));
+        }
+      }
+    } catch (Exception e) {
+      // not exposed or not reachable, the report leaves it out
+    }
+  }
+
+  private static long processCpuNanos() {
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    return os instanceof com.sun.management.OperatingSystemMXBean
+        ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+  }
+
+  private synchronized void writeIntervals() {
+    for (EndpointStats s : stats.values()) {
+      s.writeInterval();
+    }
+  }
+
+  private void report(PrintStream out, long sent, double rate, long cpuNanos) {
+    out.printf("%nsent %d requests at a target rate of %.1f/s (latencies in ms, corrected for coordinated omission)%n",
+        sent, rate);
+    out.printf("gzip %s, etag %s%n", gzip, etag);
+    out.printf("%-16s %9s %7s %9s %9s %9s %9s %9s %12s %12s %7s%n", "endpoint", "count", "errors", "p50", "p90",
+        "p99", "p99.9", "max", "bytes/req", "decoded/req", "304s");
+    long wire = 0;
+    long decoded = 0;
+    for (EndpointStats s : stats.values()) {
+      Histogram h = s.total;
+      long ok = h.getTotalCount() - s.errors.sum();
+      out.printf("%-16s %9d %7d %9.2f %9.2f %9.2f %9.2f %9.2f %12d %12d %7d%n", s.endpoint, h.getTotalCount(),
+          s.errors.sum(), h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+          h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0,
+          ok > 0 ? s.bytes.sum() / ok : 0, ok > 0 ? s.decodedBytes.sum() / ok : 0, s.notModified.sum());
+      wire += s.bytes.sum();
+      decoded += s.decodedBytes.sum();
+    }
+    out.printf("%nbody bytes on the wire %d, decoded %d (%.1f%%)%n", wire, decoded,
+        decoded > 0 ? 100.0 * wire / decoded : 100.0);
+    if (cpuNanos >= 0) {
+      out.printf("load generator CPU %.2f s (%.3f ms per request)%n", cpuNanos / 1e9,
+          sent > 0 ? cpuNanos / 1e6 / sent : 0);
+    }
+    synchronized (serverCpu) {
+      if (serverCpu.isEmpty()) {
+        out.println("application CPU n/a, add metrics to management.endpoints.web.exposure.include to report it");
+      } else {
+        out.printf("application CPU %.1f%% on average%n",
+            100 * serverCpu.stream().mapToDouble(Double::doubleValue).average().getAsDouble());
+      }
+    }
+  }
+
+  /**
+   * Latencies of one endpoint: an interval recorder for the log, and the accumulated histogram for the summary.
+   */
+  private static class EndpointStats {
+    final String endpoint;
+    final Recorder recorder = new Recorder(3);
+    final Histogram total = new Histogram(3);
+    final LongAdder errors = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder decodedBytes = new LongAdder();
+    final LongAdder notModified = new LongAdder();
+    private final PrintStream log;
+    private final HistogramLogWriter writer;
+    private Histogram recycled;
+
+    EndpointStats(String endpoint, Path out) {
+      this.endpoint = endpoint;
+      try {
+        this.log = new PrintStream(out.resolve(endpoint.replaceAll("[^A-Za-z0-9_.-]", "_") + ".hlog").toFile());
+      } catch (FileNotFoundException e) {
+        throw new IllegalStateException(e);
+      }
+      this.writer = new HistogramLogWriter(log);
+    }
+
+    void start(long startMillis) {
+      writer.outputComment("endpoint " + endpoint + ", values in microseconds");
+      writer.outputLogFormatVersion();
+      writer.outputStartTime(startMillis);
+      writer.setBaseTime(startMillis);
+      writer.outputBaseTime(startMillis);
+      writer.outputLegend();
+      recorder.reset();
+    }
+
+    void writeInterval() {
+      Histogram interval = recorder.getIntervalHistogram(recycled);
+      total.add(interval);
+      writer.outputIntervalHistogram(interval);
+      recycled = interval;
+    }
+
+    void close() {
+      log.close();
+    }
+  }
+}
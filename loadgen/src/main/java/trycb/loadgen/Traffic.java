@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.loadgen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A recorded traffic file: one JSON request per line, replayed in order. Each line has an "endpoint" label used to
+ * group latencies, a "method", a "path" and optionally a JSON "body" and "auth": true when a bearer token is needed.
+ * Paths and bodies may use the placeholders {tenant}, {user}, {password} and {newuser}.
+ */
+public class Traffic {
+
+  public static class Entry {
+    final String endpoint;
+    final String method;
+    final String path;
+    final String body;
+    final boolean auth;
+
+    Entry(String endpoint, String method, String path, String body, boolean auth) {
+      this.endpoint = endpoint;
+      this.method = method;
+      this.path = path;
+      this.body = body;
+      this.auth = auth;
+    }
+
+    /**
+     * Substitute the placeholders for the given identity.
+     */
+    String path(Identity identity, String newUser) {
+      return substitute(path, identity, newUser);
+    }
+
+    String body(Identity identity, String newUser) {
+      return body == null ? null : substitute(body, identity, newUser);
+    }
+
+    private static String substitute(String s, Identity identity, String newUser) {
+      return s.replace("{tenant}", identity.tenant).replace("{user}", identity.user)
+          .replace("{password}", identity.password).replace("{newuser}", newUser);
+    }
+  }
+
+  /**
+   * A tenant user the generator signs up before the run, and on whose behalf requests are sent.
+   */
+  public static class Identity {
+    final String tenant;
+    final String user;
+    final String password;
+    volatile String token;
+
+    Identity(String tenant, String user, String password) {
+      this.tenant = tenant;
+      this.user = user;
+      this.password = password;
+    }
+  }
+
+  private final List<Entry> entries;
+
+  private Traffic(List<Entry> entries) {
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  public static Traffic load(Path file) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    List<Entry> entries = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        JsonNode node = mapper.readTree(line);
+        if (!node.hasNonNull("path")) {
+          throw new IllegalArgumentException(file + ":" + lineNumber + ": missing \"path\"");
+        }
+        String method = node.path("method").asText("GET");
+        String endpoint = node.path("endpoint").asText(method + " " + node.get("path").asText());
+        String body = node.hasNonNull("body") ? mapper.writeValueAsString(node.get("body")) : null;
+        entries.add(new Entry(endpoint, method, node.get("path").asText(), body, node.path("auth").asBoolean(false)));
+      }
+    }
+    if (entries.isEmpty()) {
+      throw new IllegalArgumentException(file + " contains no requests");
+    }
+    return new Traffic(entries);
+  }
+
+  public List<Entry> entries() {
+    return entries;
+  }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+/**
+ * In-memory stand-ins for the repositories, good enough to drive the services from a benchmark without a cluster.
+ * Every query method answers with the same pre-built list of entities.
+ */
+public final class StandIns {
+
+  private StandIns() {}
+
+  public static AirportRepository airportRepository(int rows) {
+    List<Airport> airports = airports(rows);
+    return repository(AirportRepository.class, (method, args) -> airports);
+  }
+
+  public static FlightPathRepository flightPathRepository(int rows) {
+    List<FlightPath> flightPaths = flightPaths(rows);
+    return repository(FlightPathRepository.class, (method, args) -> flightPaths);
+  }
+
+  public static List<Airport> airports(int rows) {
+    List<Airport> airports = new ArrayList<>(rows);
+    for (int i = 0; i < rows; i++) {
+      airports.add(new Airport("airport_" + (3469 + i), "San Francisco Intl " + i, "SFO", "San Francisco",
+          "United States", "KSFO"));
+    }
+    return airports;
+  }
+
+  public static List<FlightPath> flightPaths(int rows) {
+    List<FlightPath> flightPaths = new ArrayList<>(rows);
+    for (int i = 0; i < rows; i++) {
+      FlightPath f = new FlightPath();
+      f.name = "United Airlines";
+      f.flight = "UA" + (100 + i);
+      f.airlineid = "5209";
+      f.utc = String.format("%02d:%02d:00", i % 24, i % 60);
+      f.sourceairport = "SFO";
+      f.destinationairport = "LAX";
+      f.equipment = "738 320";
+      f.day = 1;
+      flightPaths.add(f);
+    }
+    return flightPaths;
+  }
+
+  /**
+   * A route source with the given number of airports, made-up names, cities and codes, and about a dozen routes
+   * each, at random but the same on every run; travel-sample has 1968 airports and 24024 routes.
+   */
+  public static RouteSource routeSource(int size) {
+    Random random = new Random(42);
+    String[] syllables = { "san", "ta", "ro", "ber", "lin", "mar", "del", "co", "ka", "vi", "lo", "ne", "port", "ville",
+        "ham", "ton", "ri", "sa", "mo", "fort" };
+    String[] kinds = { "Intl", "Regional", "Municipal", "County", "Field", "Airport" };
+    List<Map<String, Object>> airports = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      StringBuilder city = new StringBuilder();
+      for (int s = 2 + random.nextInt(2); s > 0; s--) {
+        city.append(syllables[random.nextInt(syllables.length)]);
+      }
+      city.setCharAt(0, Character.toUpperCase(city.charAt(0)));
+      String faa = "" + (char) ('A' + i / 676 % 26) + (char) ('A' + i / 26 % 26) + (char) ('A' + i % 26);
+      airports.add(new Airport("airport_" + i, city + " " + kinds[random.nextInt(kinds.length)], faa,
+          city.toString(), "United States", "K" + faa).toMap());
+    }
+    List<Map<String, Object>> routes = new ArrayList<>(size * 12);
+    for (int i = 0; i < size * 12; i++) {
+      Map<String, Object> route = new HashMap<>(4);
+      // a few hubs get most of the routes
+      route.put("sourceairport", airports.get((int) (size * Math.pow(random.nextDouble(), 3))).get("faa"));
+      route.put("destinationairport", airports.get(random.nextInt(size)).get("faa"));
+      route.put("days", Arrays.asList(0, 1, 2, 3, 4, 5, 6));
+      routes.add(route);
+    }
+    return new RouteSource() {
+      public List<Map<String, Object>> airports() {
+        return airports;
+      }
+
+      public Map<String, Map<String, Object>> airlines() {
+        return new HashMap<>();
+      }
+
+      public List<Map<String, Object>> routes() {
+        return routes;
+      }
+    };
+  }
+
+  /**
+   * Hotel search rows, in the shape the hotel service returns them.
+   */
+  public static List<Map<String, Object>> hotels(int rows) {
+    List<Map<String, Object>> hotels = new ArrayList<>(rows);
+    for (int i = 0; i < rows; i++) {
+      Map<String, Object> hotel = new HashMap<>();
+      hotel.put("name", "Medway Youth Hostel " + i);
+      hotel.put("description", "40 bed summer hostel about 3 miles from Gillingham, housed in a districtive converted"
+          + " Oast House in a semi-rural setting.");
+      hotel.put("address", "Capstone Road, ME7 3JE, Medway, Kent, United Kingdom");
+      hotels.add(hotel);
+    }
+    return hotels;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <R> R repository(Class<R> type, BiFunction<Method, Object[], Object> queries) {
+    return (R) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "withScope":
+        case "withCollection":
+        case "withOptions":
+          return proxy;
+        case "toString":
+          return type.getSimpleName() + " stand-in";
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return queries.apply(method, args);
+      }
+    });
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import trycb.config.Booking;
+
+/**
+ * Turning booking documents into a bookings response: decoded into a Booking, copied into a Map by toMap() and written
+ * again, as the bookings endpoint does by default, or copied as raw JSON by {@link RawBooking}. Run with the GC
+ * profiler (the jmh profile always adds it) for the allocations per operation; divide by bookings for the savings
+ * per booking.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RawBookingBenchmark {
+
+  @Param({ "1", "10", "50" })
+  int bookings;
+
+  private final ObjectMapper mapper = new ObjectMapper()
+      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+  private List<byte[]> documents;
+
+  @Setup
+  public void setup() {
+    documents = new ArrayList<>(bookings);
+    for (int i = 0; i < bookings; i++) {
+      documents.add(("{\"type\":\"booking\",\"name\":\"United Airlines\",\"sourceairport\":\"SFO\","
+          + "\"destinationairport\":\"LAX\",\"flight\":\"UA" + (100 + i) + "\",\"utc\":\"10:13:00\","
+          + "\"airlineid\":\"airline_5209\",\"date\":\"05/10/2024\",\"price\":" + (100 + i) + ",\"day\":5}")
+          .getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  @Benchmark
+  public byte[] decoded() throws IOException {
+    List<Map<String, Object>> data = new ArrayList<>(documents.size());
+    for (int i = 0; i < documents.size(); i++) {
+      Booking booking = mapper.readValue(documents.get(i), Booking.class);
+      booking.bookingId = "booking_" + i;
+      data.add(booking.toMap());
+    }
+    return mapper.writeValueAsBytes(Result.of(data, "KV get"));
+  }
+
+  @Benchmark
+  public byte[] raw() throws IOException {
+    List<RawBooking> data = new ArrayList<>(documents.size());
+    for (int i = 0; i < documents.size(); i++) {
+      data.add(new RawBooking("booking_" + i, documents.get(i), field -> true));
+    }
+    return mapper.writeValueAsBytes(Result.of(data, "KV get"));
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import trycb.config.Airport;
+import trycb.config.FlightPath;
+import trycb.config.StandIns;
+
+/**
+ * Writing and reading typical airport, flight path and hotel {@link Result}s in each response format of
+ * trycb.config.BinaryFormats. Reading is what a client does, into a tree as a client without the model classes would.
+ * The size of each payload is printed at setup, for comparing with JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultFormatsBenchmark {
+
+  @Param({ "json", "cbor", "smile", "msgpack" })
+  String format;
+
+  @Param({ "25", "100" })
+  int rows;
+
+  private ObjectMapper mapper;
+  private Result<List<Map<String, Object>>> airports;
+  private Result<List<Map<String, Object>>> flightPaths;
+  private Result<List<Map<String, Object>>> hotels;
+  private byte[] airportBytes;
+  private byte[] flightPathBytes;
+  private byte[] hotelBytes;
+
+  @Setup
+  public void setup() throws IOException {
+    mapper = mapper(format);
+    List<Map<String, Object>> data = new ArrayList<>(rows);
+    for (Airport a : StandIns.airports(rows)) {
+      data.add(a.toMap());
+    }
+    airports = Result.of(data, "N1QL query - scoped to inventory: ", "query");
+    data = new ArrayList<>(rows);
+    for (FlightPath f : StandIns.flightPaths(rows)) {
+      Map<String, Object> row = f.toMap();
+      row.put("flighttime", 4000 + rows);
+      row.put("price", 500.0);
+      row.put("date", "05/10/2024");
+      data.add(row);
+    }
+    flightPaths = Result.of(data, "N1QL query - scoped to inventory: ", "query");
+    hotels = Result.of(StandIns.hotels(rows), "FTS search - scoped to: inventory.hotel");
+
+    airportBytes = mapper.writeValueAsBytes(airports);
+    flightPathBytes = mapper.writeValueAsBytes(flightPaths);
+    hotelBytes = mapper.writeValueAsBytes(hotels);
+    System.out.printf("%n%s payload bytes for %d rows: airports %d, flight paths %d, hotels %d%n", format, rows,
+        airportBytes.length, flightPathBytes.length, hotelBytes.length);
+  }
+
+  private static ObjectMapper mapper(String format) {
+    switch (format) {
+      case "cbor":
+        return new ObjectMapper(new CBORFactory());
+      case "smile":
+        return new ObjectMapper(new SmileFactory());
+      case "msgpack":
+        return new ObjectMapper(new MessagePackFactory());
+      default:
+        return new ObjectMapper();
+    }
+  }
+
+  @Benchmark
+  public byte[] writeAirports() throws IOException {
+    return mapper.writeValueAsBytes(airports);
+  }
+
+  @Benchmark
+  public byte[] writeFlightPaths() throws IOException {
+    return mapper.writeValueAsBytes(flightPaths);
+  }
+
+  @Benchmark
+  public byte[] writeHotels() throws IOException {
+    return mapper.writeValueAsBytes(hotels);
+  }
+
+  @Benchmark
+  public JsonNode readAirports() throws IOException {
+    return mapper.readTree(airportBytes);
+  }
+
+  @Benchmark
+  public JsonNode readFlightPaths() throws IOException {
+    return mapper.readTree(flightPathBytes);
+  }
+
+  @Benchmark
+  public JsonNode readHotels() throws IOException {
+    return mapper.readTree(hotelBytes);
+  }
+}
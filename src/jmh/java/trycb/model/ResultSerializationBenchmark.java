@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import trycb.config.Airport;
+import trycb.config.FlightPath;
+import trycb.config.StandIns;
+
+/**
+ * Converting entities with toMap() and writing the resulting {@link Result} with Jackson, as done for every response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultSerializationBenchmark {
+
+  @Param({ "1", "25", "100" })
+  int rows;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private List<Airport> airports;
+  private List<FlightPath> flightPaths;
+
+  @Setup
+  public void setup() {
+    airports = StandIns.airports(rows);
+    flightPaths = StandIns.flightPaths(rows);
+  }
+
+  @Benchmark
+  public byte[] airports() throws JsonProcessingException {
+    List<Map<String, Object>> data = new ArrayList<>(airports.size());
+    for (Airport a : airports) {
+      data.add(a.toMap());
+    }
+    return mapper.writeValueAsBytes(Result.of(data, "N1QL query - scoped to inventory: ", "query"));
+  }
+
+  @Benchmark
+  public byte[] flightPaths() throws JsonProcessingException {
+    List<Map<String, Object>> data = new ArrayList<>(flightPaths.size());
+    for (FlightPath f : flightPaths) {
+      data.add(f.toMap());
+    }
+    return mapper.writeValueAsBytes(Result.of(data, "N1QL query - scoped to inventory: ", "query"));
+  }
+}
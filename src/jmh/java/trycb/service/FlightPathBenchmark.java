@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.service;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import trycb.config.InventoryDictionary;
+import trycb.config.PreparedQueries;
+import trycb.config.RouteReachability;
+import trycb.config.StandIns;
+import trycb.model.Result;
+import trycb.util.Breakers;
+import trycb.util.Coalescing;
+import trycb.util.Fields;
+
+/**
+ * Per-row decoration (flight time, price, date) of the flight paths in {@link FlightPath#findAll}, and the grouping
+ * by day and top-k selection of {@link FlightPath#findRange}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlightPathBenchmark {
+
+  @Param({ "5", "50" })
+  int rows;
+
+  private FlightPath flightPathService;
+  private Calendar leave;
+
+  @Setup
+  public void setup() {
+    flightPathService = new FlightPath(StandIns.flightPathRepository(rows), null, new PreparedQueries(false, null),
+        new Coalescing(false, 0, null), new Breakers(false, 0, null), new RouteReachability(false, null, null),
+        new InventoryDictionary(false, null));
+    leave = Calendar.getInstance(Locale.US);
+  }
+
+  @Benchmark
+  public Result<List<Map<String, Object>>> findAll() {
+    return flightPathService.findAll("San Francisco Intl", "Los Angeles Intl", leave);
+  }
+
+  @Benchmark
+  public Result<List<Map<String, Object>>> findWeekTop5() {
+    return flightPathService.findRange("San Francisco Intl", "Los Angeles Intl", leave, 7, "price", 5, Fields.ALL);
+  }
+}
@@ -26,7 +26,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.springframework.data.annotation.Id;
-import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.annotation.PersistenceCreator;
 import org.springframework.data.annotation.TypeAlias;
 import org.springframework.data.couchbase.core.mapping.Document;
 
@@ -46,7 +46,7 @@ public class Airport {
   String city;
   String country;
 
-  @PersistenceConstructor
+  @PersistenceCreator
   public Airport(String id, String airportname, String faa, String city, String country, String icao) {
     this.id = id;
     this.airportname = airportname;
@@ -0,0 +1,337 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * An in-memory autocomplete index of the airports, when storage.autocomplete.enabled is set. Every word of the search
+ * must start one of the words of an airport's name or city, or its FAA or ICAO code, with at most one typo over the
+ * whole search: a wrong, missing, extra or swapped letter, in words of three letters or more. The airports with no
+ * typo come first, then those with the most routes, departing or arriving.<br>
+ * The words are found by the first few letters of the search word, or those letters less any one of them, so that a
+ * typo in them is found without comparing the search with every word; only the words found that way are compared in
+ * full. Built from the {@link RouteSource} at startup, before the warm-up, and rebuilt every
+ * storage.autocomplete.refresh-s seconds.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class AirportAutocomplete implements ApplicationRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AirportAutocomplete.class);
+
+  // the length of the prefixes words are found by
+  private static final int PREFIX = 4;
+  // the shortest search word that may have a typo
+  private static final int TYPO_MIN = 3;
+  private static final Pattern MARKS = Pattern.compile("\\p{M}");
+  private static final Pattern SEPARATORS = Pattern.compile("[^a-z0-9]+");
+
+  private final boolean enabled;
+  private final RouteSource source;
+  private volatile Index index;
+
+  public AirportAutocomplete(@Value("${storage.autocomplete.enabled:false}") boolean enabled, RouteSource source) {
+    this.enabled = enabled;
+    this.source = source;
+  }
+
+  public boolean isReady() {
+    return index != null;
+  }
+
+  /**
+   * The first airports, at most limit, matching the search, in the shape of trycb.config.Airport.toMap() with their
+   * number of "routes".
+   */
+  public List<Map<String, Object>> suggest(String search, int limit) {
+    return index.suggest(words(search), limit);
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    rebuildQuietly();
+  }
+
+  @Scheduled(initialDelayString = "${storage.autocomplete.refresh-s:300}",
+      fixedDelayString = "${storage.autocomplete.refresh-s:300}", timeUnit = TimeUnit.SECONDS)
+  public void rebuildQuietly() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      rebuild();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not build the airport autocomplete index, keeping the previous one", e);
+    }
+  }
+
+  /**
+   * Index every airport, counting its routes, and use the index from now on.
+   */
+  public void rebuild() {
+    long start = System.nanoTime();
+    Map<String, Integer> routes = new HashMap<>();
+    for (Map<String, Object> route : source.routes()) {
+      routes.merge(String.valueOf(route.get("sourceairport")), 1, Integer::sum);
+      routes.merge(String.valueOf(route.get("destinationairport")), 1, Integer::sum);
+    }
+    Index built = new Index(source.airports(), routes);
+    index = built;
+    LOGGER.info("Indexed {} airports, {} words under {} keys for autocomplete in {} ms", built.airports.size(),
+        built.words.length, built.keys.size(), (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * The words of the text, lower case and without accents.
+   */
+  static List<String> words(String text) {
+    if (text == null) {
+      return Collections.emptyList();
+    }
+    String plain = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+    List<String> words = new ArrayList<>();
+    for (String word : SEPARATORS.split(plain.toLowerCase(Locale.ROOT))) {
+      if (!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+    return words;
+  }
+
+  /**
+   * The smallest number of edits, letters replaced, added, removed or swapped with the next one, that turn the search
+   * word into a prefix of the word, or more than max when it is more than max. The rows are three arrays longer than
+   * the word, to work in.
+   */
+  static int prefixDistance(String search, String word, int max, int[][] rows) {
+    int m = search.length();
+    int n = word.length();
+    int[] before = rows[0];
+    int[] previous = rows[1];
+    int[] current = rows[2];
+    for (int j = 0; j <= n; j++) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= m; i++) {
+      current[0] = i;
+      int rowMin = i;
+      for (int j = 1; j <= n; j++) {
+        int cost = search.charAt(i - 1) == word.charAt(j - 1) ? 0 : 1;
+        int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+        if (i > 1 && j > 1 && search.charAt(i - 1) == word.charAt(j - 2)
+            && search.charAt(i - 2) == word.charAt(j - 1)) {
+          d = Math.min(d, before[j - 2] + 1);
+        }
+        current[j] = d;
+        rowMin = Math.min(rowMin, d);
+      }
+      if (rowMin > max) {
+        return max + 1;
+      }
+      int[] recycled = before;
+      before = previous;
+      previous = current;
+      current = recycled;
+    }
+    int distance = previous[0];
+    for (int j = 1; j <= n; j++) {
+      distance = Math.min(distance, previous[j]);
+    }
+    return distance;
+  }
+
+  private static final class Index {
+    final List<Map<String, Object>> airports;
+    final int[] routes;
+    final String[] words;
+    // the airports of each word
+    final int[][] wordAirports;
+    // the words by their prefixes up to PREFIX letters, and by those prefixes, one letter longer, less any one letter
+    final Map<String, int[]> keys;
+    // the position of each airport by number of routes, then name, and the airport at each position
+    final int[] rank;
+    final int[] ranked;
+    final int longestWord;
+
+    Index(List<Map<String, Object>> airports, Map<String, Integer> routeCounts) {
+      this.airports = airports;
+      this.routes = new int[airports.size()];
+      Map<String, List<Integer>> byWord = new HashMap<>();
+      for (int a = 0; a < airports.size(); a++) {
+        Map<String, Object> airport = airports.get(a);
+        routes[a] = routeCounts.getOrDefault(airport.get("faa"), 0);
+        Set<String> airportWords = new LinkedHashSet<>();
+        airportWords.addAll(words((String) airport.get("airportname")));
+        airportWords.addAll(words((String) airport.get("city")));
+        airportWords.addAll(words((String) airport.get("faa")));
+        airportWords.addAll(words((String) airport.get("icao")));
+        for (String word : airportWords) {
+          byWord.computeIfAbsent(word, w -> new ArrayList<>(1)).add(a);
+        }
+      }
+      this.words = byWord.keySet().toArray(new String[0]);
+      this.longestWord = Arrays.stream(words).mapToInt(String::length).max().orElse(0);
+      this.wordAirports = new int[words.length][];
+      Map<String, List<Integer>> keys = new HashMap<>();
+      for (int w = 0; w < words.length; w++) {
+        wordAirports[w] = byWord.get(words[w]).stream().mapToInt(Integer::intValue).toArray();
+        String word = words[w];
+        for (int length = 1; length <= Math.min(PREFIX, word.length()); length++) {
+          add(keys, word.substring(0, length), w);
+        }
+        for (int length = TYPO_MIN; length <= Math.min(PREFIX + 1, word.length()); length++) {
+          for (String deleted : deletions(word.substring(0, length))) {
+            add(keys, deleted, w);
+          }
+        }
+      }
+      this.keys = new HashMap<>(keys.size() * 4 / 3 + 1);
+      for (Map.Entry<String, List<Integer>> key : keys.entrySet()) {
+        this.keys.put(key.getKey(), key.getValue().stream().mapToInt(Integer::intValue).toArray());
+      }
+      Integer[] order = new Integer[airports.size()];
+      for (int a = 0; a < order.length; a++) {
+        order[a] = a;
+      }
+      Arrays.sort(order, Comparator.<Integer>comparingInt(a -> -routes[a])
+          .thenComparing(a -> String.valueOf(airports.get(a).get("airportname"))));
+      this.rank = new int[order.length];
+      this.ranked = new int[order.length];
+      for (int position = 0; position < order.length; position++) {
+        rank[order[position]] = position;
+        ranked[position] = order[position];
+      }
+    }
+
+    private static void add(Map<String, List<Integer>> keys, String key, int word) {
+      List<Integer> ids = keys.computeIfAbsent(key, k -> new ArrayList<>());
+      // the words are added in order, a word with the same key twice is the last one
+      if (ids.isEmpty() || ids.get(ids.size() - 1) != word) {
+        ids.add(word);
+      }
+    }
+
+    List<Map<String, Object>> suggest(List<String> search, int limit) {
+      if (search.isEmpty()) {
+        return Collections.emptyList();
+      }
+      // the fewest typos of each airport over the search words so far, above 1 when it doesn't match
+      int[] typos = new int[airports.size()];
+      int[] wordTypos = new int[airports.size()];
+      // the words compared with the search word, found under more than one key
+      boolean[] compared = new boolean[words.length];
+      int[][] rows = new int[3][longestWord + 1];
+      for (String word : search) {
+        Arrays.fill(wordTypos, 2);
+        Arrays.fill(compared, false);
+        int max = word.length() >= TYPO_MIN ? 1 : 0;
+        String prefix = word.substring(0, Math.min(PREFIX, word.length()));
+        match(word, keys.get(prefix), max, wordTypos, compared, rows);
+        if (max > 0) {
+          for (String deleted : deletions(prefix)) {
+            match(word, keys.get(deleted), max, wordTypos, compared, rows);
+          }
+        }
+        for (int a = 0; a < typos.length; a++) {
+          typos[a] = Math.min(typos[a] + wordTypos[a], 2);
+        }
+      }
+
+      // the airports in order as typos, then rank, in one number, keeping the limit first ones in a bounded heap
+      int n = typos.length;
+      PriorityQueue<Integer> first = new PriorityQueue<>(limit + 1, Comparator.reverseOrder());
+      for (int a = 0; a < n; a++) {
+        if (typos[a] <= 1) {
+          int position = typos[a] * n + rank[a];
+          if (first.size() < limit) {
+            first.offer(position);
+          } else if (position < first.peek()) {
+            first.poll();
+            first.offer(position);
+          }
+        }
+      }
+      List<Integer> positions = new ArrayList<>(first);
+      Collections.sort(positions);
+      List<Map<String, Object>> suggestions = new ArrayList<>(positions.size());
+      for (int position : positions) {
+        int a = ranked[position % n];
+        Map<String, Object> suggestion = new HashMap<>(airports.get(a));
+        suggestion.put("routes", routes[a]);
+        suggestions.add(suggestion);
+      }
+      return suggestions;
+    }
+
+    private void match(String search, int[] candidates, int max, int[] wordTypos, boolean[] compared, int[][] rows) {
+      if (candidates == null) {
+        return;
+      }
+      for (int w : candidates) {
+        if (compared[w]) {
+          continue;
+        }
+        compared[w] = true;
+        int distance = prefixDistance(search, words[w], max, rows);
+        if (distance <= max) {
+          for (int a : wordAirports[w]) {
+            wordTypos[a] = Math.min(wordTypos[a], distance);
+          }
+        }
+      }
+    }
+
+    private static List<String> deletions(String text) {
+      List<String> deletions = new ArrayList<>(text.length());
+      for (int i = 0; i < text.length(); i++) {
+        deletions.add(text.substring(0, i) + text.substring(i + 1));
+      }
+      return deletions;
+    }
+  }
+
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import static com.couchbase.client.java.query.QueryOptions.queryOptions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.couchbase.CouchbaseClientFactory;
+import org.springframework.stereotype.Component;
+
+import com.couchbase.client.core.error.CasMismatchException;
+import com.couchbase.client.core.error.CollectionExistsException;
+import com.couchbase.client.core.error.DocumentExistsException;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.kv.GetResult;
+import com.couchbase.client.java.kv.RemoveOptions;
+import com.couchbase.client.java.kv.ReplaceOptions;
+import com.couchbase.client.java.manager.collection.CollectionSpec;
+import com.couchbase.client.java.query.QueryScanConsistency;
+
+import reactor.core.publisher.Flux;
+
+import trycb.util.Futures;
+
+/**
+ * Alternate key documents for the exact airport code searches, when storage.airport.lookup is set.<br>
+ * For each code, the collection storage.airport.lookup.collection of the inventory scope holds a "faa::SFO" or an
+ * "icao::KSFO" document with the "ids" of the airports that have it, as codes aren't unique, and, with
+ * storage.airport.lookup.denormalize, a copy of their fields in "airports". A search for a code is then one KV get, or
+ * one more per airport without the copies, instead of an index scan.<br>
+ * The lookups are backfilled from the airport collection at startup, before the warm-up, and kept current by
+ * {@link AirportLookupListener} as airports are saved through the repository, changing a lookup shared with other
+ * airports with a compare-and-swap. Airports written by other means are only picked up by the next backfill.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class AirportLookup implements ApplicationRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AirportLookup.class);
+  // writers of the same lookup at once are rare, and a lookup left behind is fixed by the next backfill
+  private static final int MAX_ATTEMPTS = 10;
+
+  // covered by the faa and icao indexes, see IndexManager
+  static final String BACKFILL_QUERY = "SELECT META(a).id AS id, a.airportname, a.faa, a.city, a.country, "
+      + "a.icao FROM airport a WHERE a.type = \"airport\" AND (a.faa IS NOT NULL OR a.icao IS NOT NULL)";
+
+  private final boolean enabled;
+  private final ObjectProvider<CouchbaseClientFactory> clientFactory;
+
+  @Value("${storage.airport.lookup.collection:airport_lookup}") private String collection = "airport_lookup";
+
+  @Value("${storage.airport.lookup.denormalize:true}") private boolean denormalize = true;
+
+  public AirportLookup(@Value("${storage.airport.lookup:false}") boolean enabled,
+      ObjectProvider<CouchbaseClientFactory> clientFactory) {
+    this.enabled = enabled;
+    this.clientFactory = clientFactory;
+  }
+
+  /**
+   * Whether exact code searches should go through {@link #find(String, String)}; never without a cluster.
+   */
+  public boolean isEnabled() {
+    return enabled && clientFactory != null && clientFactory.getIfAvailable() != null;
+  }
+
+  /**
+   * The airports with the given code, "faa" or "icao", in the shape of trycb.config.Airport.toMap().
+   */
+  public CompletableFuture<List<Map<String, Object>>> find(String kind, String code) {
+    return lookups().async().get(key(kind, code)).thenCompose(lookup -> {
+      JsonObject content = lookup.contentAsObject();
+      JsonArray copies = content.getArray("airports");
+      if (copies != null) {
+        List<Map<String, Object>> airports = new ArrayList<>(copies.size());
+        for (int i = 0; i < copies.size(); i++) {
+          airports.add(copies.getObject(i).toMap());
+        }
+        return CompletableFuture.completedFuture(airports);
+      }
+      JsonArray ids = content.getArray("ids");
+      List<CompletableFuture<Map<String, Object>>> gets = new ArrayList<>(ids.size());
+      for (int i = 0; i < ids.size(); i++) {
+        String id = ids.getString(i);
+        // null when the airport was deleted or changed its code since the lookup was written
+        gets.add(inventory().collection("airport").async().get(id).thenApply(airport -> {
+          JsonObject fields = airport.contentAsObject();
+          return code.equals(fields.getString(kind)) ? toAirport(id, fields).toMap() : null;
+        }).exceptionallyCompose(e -> Futures.unwrap(e) instanceof DocumentNotFoundException
+            ? CompletableFuture.completedFuture(null)
+            : CompletableFuture.failedFuture(Futures.unwrap(e))));
+      }
+      return Futures.allOf(gets).thenApply(airports -> {
+        airports.removeIf(airport -> airport == null);
+        return airports;
+      });
+    }).exceptionallyCompose(e -> Futures.unwrap(e) instanceof DocumentNotFoundException
+        ? CompletableFuture.completedFuture(new ArrayList<>())
+        : CompletableFuture.failedFuture(Futures.unwrap(e)));
+  }
+
+  /**
+   * The id of the lookup document, eg. "faa::SFO".
+   */
+  public static String key(String kind, String code) {
+    return kind + "::" + code;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    if (isEnabled()) {
+      backfill();
+    }
+  }
+
+  /**
+   * Write the lookups of every airport, creating the lookup collection if needed.
+   */
+  public void backfill() {
+    long start = System.nanoTime();
+    try {
+      clientFactory.getObject().getBucket().collections()
+          .createCollection(CollectionSpec.create(collection, "inventory"));
+      LOGGER.info("Created collection inventory.{}", collection);
+    } catch (CollectionExistsException e) {
+      // backfilled before, rewrite the lookups all the same
+    }
+    Map<String, JsonObject> lookups = new LinkedHashMap<>();
+    for (JsonObject row : inventory()
+        .query(BACKFILL_QUERY, queryOptions().scanConsistency(QueryScanConsistency.REQUEST_PLUS)).rowsAsObject()) {
+      Airport airport = toAirport(row.getString("id"), row);
+      for (String key : keys(airport)) {
+        lookups.put(key, with(lookups.get(key), airport, denormalize));
+      }
+    }
+    Long written = Flux.fromIterable(lookups.entrySet())
+        .flatMap(lookup -> lookups().reactive().upsert(lookup.getKey(), lookup.getValue()), 32).count().block();
+    LOGGER.info("Backfilled {} airport lookups in {} ms", written, (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Write the lookups of a saved airport.
+   */
+  void saved(Airport airport) {
+    for (String key : keys(airport)) {
+      update(key, content -> with(content, airport, denormalize));
+    }
+  }
+
+  /**
+   * Remove the lookups of an airport that no longer has the codes, before it is saved with new ones or deleted.
+   */
+  void removeStale(String id, String faa, String icao) {
+    JsonObject stored;
+    try {
+      stored = inventory().collection("airport").get(id).contentAsObject();
+    } catch (DocumentNotFoundException e) {
+      return;
+    }
+    removeIfChanged(id, "faa", stored.getString("faa"), faa);
+    removeIfChanged(id, "icao", stored.getString("icao"), icao);
+  }
+
+  private void removeIfChanged(String id, String kind, String stored, String code) {
+    if (stored == null || stored.equals(code)) {
+      return;
+    }
+    update(key(kind, stored), content -> without(content, id));
+  }
+
+  /**
+   * Change the content of the lookup with the given key, which is null when there is none and is removed when
+   * changed to null. When another writer changes it in the meantime, it is read and changed again.
+   */
+  private void update(String key, UnaryOperator<JsonObject> change) {
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      GetResult current;
+      try {
+        current = lookups().get(key);
+      } catch (DocumentNotFoundException e) {
+        current = null;
+      }
+      JsonObject changed = change.apply(current != null ? current.contentAsObject() : null);
+      try {
+        if (current == null) {
+          if (changed != null) {
+            lookups().insert(key, changed);
+          }
+        } else if (changed == null) {
+          lookups().remove(key, RemoveOptions.removeOptions().cas(current.cas()));
+        } else {
+          lookups().replace(key, changed, ReplaceOptions.replaceOptions().cas(current.cas()));
+        }
+        return;
+      } catch (CasMismatchException | DocumentExistsException | DocumentNotFoundException e) {
+        // written by another airport at the same time
+      }
+    }
+    LOGGER.warn("Could not update the airport lookup {}, left to the next backfill", key);
+  }
+
+  /**
+   * The lookup content with the airport added, or replacing its previous entry.
+   */
+  static JsonObject with(JsonObject content, Airport airport, boolean denormalize) {
+    JsonObject changed = without(content, airport.id);
+    if (changed == null) {
+      changed = JsonObject.create().put("ids", JsonArray.create());
+      if (denormalize) {
+        changed.put("airports", JsonArray.create());
+      }
+    }
+    changed.getArray("ids").add(airport.id);
+    if (changed.getArray("airports") != null) {
+      changed.getArray("airports").add(JsonObject.from(airport.toMap()));
+    }
+    return changed;
+  }
+
+  /**
+   * The lookup content without the airport with the given id, null when no other airport is left.
+   */
+  static JsonObject without(JsonObject content, String id) {
+    if (content == null || content.getArray("ids") == null) {
+      return null;
+    }
+    JsonArray ids = content.getArray("ids");
+    JsonArray copies = content.getArray("airports");
+    JsonObject changed = JsonObject.create().put("ids", JsonArray.create());
+    if (copies != null) {
+      changed.put("airports", JsonArray.create());
+    }
+    for (int i = 0; i < ids.size(); i++) {
+      if (!id.equals(ids.getString(i))) {
+        changed.getArray("ids").add(ids.getString(i));
+        if (copies != null) {
+          changed.getArray("airports").add(copies.getObject(i));
+        }
+      }
+    }
+    return changed.getArray("ids").isEmpty() ? null : changed;
+  }
+
+  private static List<String> keys(Airport airport) {
+    List<String> keys = new ArrayList<>(2);
+    if (airport.faa != null) {
+      keys.add(key("faa", airport.faa));
+    }
+    if (airport.icao != null) {
+      keys.add(key("icao", airport.icao));
+    }
+    return keys;
+  }
+
+  private static Airport toAirport(String id, JsonObject fields) {
+    return new Airport(id, fields.getString("airportname"), fields.getString("faa"), fields.getString("city"),
+        fields.getString("country"), fields.getString("icao"));
+  }
+
+  private Scope inventory() {
+    return clientFactory.getObject().getBucket().scope("inventory");
+  }
+
+  private Collection lookups() {
+    return inventory().collection(collection);
+  }
+
+}
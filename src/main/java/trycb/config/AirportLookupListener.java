@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import org.springframework.data.couchbase.core.mapping.CouchbaseDocument;
+import org.springframework.data.couchbase.core.mapping.event.AbstractCouchbaseEventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the {@link AirportLookup} documents current as airports are saved and deleted through the repository. A
+ * delete event may carry the airport or only its id.
+ */
+@Component
+public class AirportLookupListener extends AbstractCouchbaseEventListener<Airport> {
+
+  private final AirportLookup airportLookup;
+
+  public AirportLookupListener(AirportLookup airportLookup) {
+    this.airportLookup = airportLookup;
+  }
+
+  @Override
+  public void onBeforeSave(Airport airport, CouchbaseDocument document) {
+    if (airportLookup.isEnabled()) {
+      airportLookup.removeStale(airport.id, airport.faa, airport.icao);
+    }
+  }
+
+  @Override
+  public void onAfterSave(Airport airport, CouchbaseDocument document) {
+    if (airportLookup.isEnabled()) {
+      airportLookup.saved(airport);
+    }
+  }
+
+  @Override
+  public void onBeforeDelete(Object source, CouchbaseDocument document) {
+    if (airportLookup.isEnabled()) {
+      if (source instanceof Airport) {
+        airportLookup.removeStale(((Airport) source).id, null, null);
+      } else if (source instanceof String) {
+        airportLookup.removeStale((String) source, null, null);
+      }
+    }
+  }
+
+}
@@ -23,6 +23,7 @@
 package trycb.config;
 
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.data.couchbase.repository.Collection;
 import org.springframework.data.couchbase.repository.CouchbaseRepository;
@@ -62,4 +63,19 @@ public interface AirportRepository extends CouchbaseRepository<Airport, String>,
 
   List<Airport> findByIcao(String iata);
 
+  // The same three searches in plain N1QL, relative to the inventory scope, for callers that use the SDK directly.
+  // They select the fields of Airport.toMap().
+  String FAA_QUERY = "SELECT META(a).id AS id, a.airportname, a.faa, a.city, a.country, a.icao FROM airport a "
+      + "WHERE a.type = \"airport\" AND a.faa = $1";
+
+  String ICAO_QUERY = "SELECT META(a).id AS id, a.airportname, a.faa, a.city, a.country, a.icao FROM airport a "
+      + "WHERE a.type = \"airport\" AND a.icao = $1";
+
+  String NAME_PREFIX_QUERY = "SELECT META(a).id AS id, a.airportname, a.faa, a.city, a.country, a.icao FROM airport a "
+      + "WHERE a.type = \"airport\" AND UPPER(a.airportname) LIKE ($1||'%')";
+
+  // The SELECT list entry of each field of the three searches, to select only some of them.
+  Map<String, String> COLUMNS = Map.of("id", "META(a).id AS id", "airportname", "a.airportname", "faa", "a.faa",
+      "city", "a.city", "country", "a.country", "icao", "a.icao");
+
 }
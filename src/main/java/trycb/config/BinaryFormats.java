@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * CBOR (application/cbor), Smile (application/x-jackson-smile) and MessagePack (application/x-msgpack) responses, for
+ * clients that ask for them in their Accept header, when api.binary.enabled is set. The mappers are built from the
+ * same Jackson2ObjectMapperBuilder as the JSON one, so each format has the same schema as the JSON. JSON stays the
+ * first converter, and so the answer to requests that accept anything. As the same URL then has several
+ * representations, the /api responses vary on Accept.
+ */
+@Configuration
+public class BinaryFormats implements WebMvcConfigurer {
+
+  public static final MediaType MSGPACK = new MediaType("application", "x-msgpack");
+
+  private static final List<MediaType> JSON_TYPES = List.of(MediaType.APPLICATION_JSON,
+      new MediaType("application", "*+json"));
+  private static final List<MediaType> BINARY_TYPES = List.of(MediaType.APPLICATION_CBOR,
+      new MediaType("application", "x-jackson-smile"), MSGPACK, new MediaType("application", "msgpack"));
+  // the most preferred first, then the most specific
+  private static final Comparator<MediaType> PREFERENCE = Comparator.comparingDouble(MediaType::getQualityValue)
+      .reversed().thenComparing(MediaType::isWildcardType).thenComparing(MediaType::isWildcardSubtype);
+
+  private final boolean enabled;
+  private final Jackson2ObjectMapperBuilder builder;
+
+  public BinaryFormats(@Value("${api.binary.enabled:false}") boolean enabled, Jackson2ObjectMapperBuilder builder) {
+    this.enabled = enabled;
+    this.builder = builder;
+  }
+
+  @Override
+  public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+    // Spring MVC adds CBOR and Smile converters of its own as soon as their libraries are present
+    converters.removeIf(c -> c instanceof MappingJackson2CborHttpMessageConverter
+        || c instanceof MappingJackson2SmileHttpMessageConverter);
+    if (!enabled) {
+      return;
+    }
+    converters.add(new MappingJackson2CborHttpMessageConverter(builder.factory(new CBORFactory()).build()));
+    converters.add(new MappingJackson2SmileHttpMessageConverter(builder.factory(new SmileFactory()).build()));
+    converters.add(new MessagePackHttpMessageConverter(builder.factory(new MessagePackFactory()).build()));
+  }
+
+  @Override
+  public void addInterceptors(InterceptorRegistry registry) {
+    if (enabled) {
+      registry.addInterceptor(new HandlerInterceptor() {
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+          InventoryVersion.varyOnAccept(response);
+          return true;
+        }
+      }).addPathPatterns("/api/**");
+    }
+  }
+
+  /**
+   * The type a JSON or binary response to the Accept header is written as, with binary formats or not: the first
+   * type, in the order of the converters, of the most preferred accepted type that has one. JSON without an Accept
+   * header, or one that accepts none of them.
+   */
+  static MediaType negotiate(String accept, boolean binary) {
+    List<MediaType> accepted;
+    try {
+      accepted = new ArrayList<>(MediaType.parseMediaTypes(accept));
+    } catch (InvalidMediaTypeException e) {
+      return MediaType.APPLICATION_JSON;
+    }
+    accepted.sort(PREFERENCE);
+    for (MediaType type : accepted) {
+      if (type.getQualityValue() == 0) {
+        break;
+      }
+      if (JSON_TYPES.stream().anyMatch(type::isCompatibleWith)) {
+        return MediaType.APPLICATION_JSON;
+      }
+      for (MediaType format : binary ? BINARY_TYPES : List.<MediaType>of()) {
+        if (type.isCompatibleWith(format)) {
+          return format;
+        }
+      }
+    }
+    return MediaType.APPLICATION_JSON;
+  }
+
+  /**
+   * Writes and reads MessagePack with Jackson, as the CBOR and Smile converters do their formats.
+   */
+  static class MessagePackHttpMessageConverter extends AbstractJackson2HttpMessageConverter {
+
+    MessagePackHttpMessageConverter(ObjectMapper objectMapper) {
+      super(objectMapper, MSGPACK, new MediaType("application", "msgpack"));
+    }
+
+  }
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import trycb.util.Coalescing;
+
+/**
+ * Reports the request coalescing of each service at /actuator/coalescing: how many calls went to the backend, how
+ * many shared one already in flight, and the most coalesced keys.
+ */
+@Component
+@Endpoint(id = "coalescing")
+public class CoalescingEndpoint {
+
+  private static final int TOP_KEYS = 20;
+
+  private final Coalescing coalescing;
+
+  public CoalescingEndpoint(Coalescing coalescing) {
+    this.coalescing = coalescing;
+  }
+
+  @ReadOperation
+  public Map<String, Object> coalescing() {
+    Map<String, Object> report = new TreeMap<>();
+    coalescing.singleFlights().forEach((name, singleFlight) -> report.put(name, singleFlight.report(TOP_KEYS)));
+    return report;
+  }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import static com.couchbase.client.java.query.QueryOptions.queryOptions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.couchbase.CouchbaseClientFactory;
+import org.springframework.stereotype.Component;
+
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+
+/**
+ * {@link HotelSource} querying the hotel collection of the inventory scope, with the CAS of each document as its
+ * change token.
+ */
+@Component
+@Profile("!embedded") // see EmbeddedDatabase
+public class CouchbaseHotelSource implements HotelSource {
+
+  // covered by idx_hotel_cas; >= as the query service may compare CAS values as doubles
+  static final String CHANGED_QUERY = "SELECT META(h).id AS id, META(h).cas AS cas, h.name, h.city FROM hotel h "
+      + "WHERE META(h).cas >= $1";
+
+  // covered by idx_hotel_cas
+  static final String IDS_QUERY = "SELECT RAW META(h).id FROM hotel h WHERE META(h).cas > 0";
+
+  private final CouchbaseClientFactory clientFactory;
+
+  public CouchbaseHotelSource(CouchbaseClientFactory clientFactory) {
+    this.clientFactory = clientFactory;
+  }
+
+  @Override
+  public List<Map<String, Object>> hotelsChangedSince(long cas) {
+    List<Map<String, Object>> hotels = new ArrayList<>();
+    for (JsonObject row : inventory().query(CHANGED_QUERY, queryOptions().parameters(JsonArray.from(cas)))
+        .rowsAsObject()) {
+      hotels.add(row.toMap());
+    }
+    return hotels;
+  }
+
+  @Override
+  public Set<String> hotelIds() {
+    return new HashSet<>(inventory().query(IDS_QUERY).rowsAs(String.class));
+  }
+
+  private Scope inventory() {
+    return clientFactory.getBucket().scope("inventory");
+  }
+
+}
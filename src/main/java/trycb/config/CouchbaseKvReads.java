@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.couchbase.core.ReactiveCouchbaseTemplate;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link KvReads} through the template the repositories use, so the entities are mapped the same way.
+ */
+@Component
+@Profile("!embedded") // see EmbeddedDatabase
+public class CouchbaseKvReads implements KvReads {
+
+  private final ReactiveCouchbaseTemplate template;
+
+  public CouchbaseKvReads(ReactiveCouchbaseTemplate template) {
+    this.template = template;
+  }
+
+  @Override
+  public <T> Mono<T> get(String scope, String collection, String id, Class<T> type) {
+    return template.findById(type).inScope(scope).inCollection(collection).one(id);
+  }
+
+  @Override
+  public <T> Mono<T> getAnyReplica(String scope, String collection, String id, Class<T> type) {
+    return template.findFromReplicasById(type).inScope(scope).inCollection(collection).any(id);
+  }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.couchbase.CouchbaseClientFactory;
+import org.springframework.stereotype.Component;
+
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonObject;
+
+/**
+ * {@link RouteSource} querying the airport, airline and route collections of the inventory scope.
+ */
+@Component
+@Profile("!embedded") // see EmbeddedDatabase
+public class CouchbaseRouteSource implements RouteSource {
+
+  // covered by idx_airport_faa, see IndexManager
+  static final String AIRPORTS_QUERY = "SELECT META(a).id AS id, a.airportname, a.faa, a.city, a.country, a.icao "
+      + "FROM airport a WHERE a.faa IS NOT NULL";
+
+  // covered by idx_airline_id
+  static final String AIRLINES_QUERY = "SELECT META(a).id AS `key`, a.id, a.name FROM airline a WHERE a.id IS NOT NULL";
+
+  // scans idx_route_src_dst, fetching each route for its schedule
+  static final String ROUTES_QUERY = "SELECT r.sourceairport, r.destinationairport, "
+      + "ARRAY_DISTINCT(ARRAY s.day FOR s IN r.schedule END) AS days FROM route r WHERE r.sourceairport IS NOT NULL";
+
+  private final CouchbaseClientFactory clientFactory;
+
+  public CouchbaseRouteSource(CouchbaseClientFactory clientFactory) {
+    this.clientFactory = clientFactory;
+  }
+
+  @Override
+  public List<Map<String, Object>> airports() {
+    List<JsonObject> rows = inventory().query(AIRPORTS_QUERY).rowsAsObject();
+    List<Map<String, Object>> airports = new ArrayList<>(rows.size());
+    for (JsonObject row : rows) {
+      airports.add(row.toMap());
+    }
+    return airports;
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> airlines() {
+    Map<String, Map<String, Object>> airlines = new HashMap<>();
+    for (JsonObject row : inventory().query(AIRLINES_QUERY).rowsAsObject()) {
+      Map<String, Object> airline = new HashMap<>(2);
+      airline.put("id", row.get("id"));
+      airline.put("name", row.getString("name"));
+      airlines.put(row.getString("key"), airline);
+    }
+    return airlines;
+  }
+
+  @Override
+  public List<Map<String, Object>> routes() {
+    List<JsonObject> rows = inventory().query(ROUTES_QUERY).rowsAsObject();
+    List<Map<String, Object>> routes = new ArrayList<>(rows.size());
+    for (JsonObject row : rows) {
+      routes.add(row.toMap());
+    }
+    return routes;
+  }
+
+  private Scope inventory() {
+    return clientFactory.getBucket().scope("inventory");
+  }
+
+}
@@ -24,11 +24,13 @@ package trycb.config;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.data.couchbase.config.AbstractCouchbaseConfiguration;
 import org.springframework.data.couchbase.repository.config.EnableCouchbaseRepositories;
 import org.springframework.data.couchbase.repository.config.EnableReactiveCouchbaseRepositories;
 
 @Configuration
+@Profile("!embedded") // see EmbeddedDatabase
 @EnableCouchbaseRepositories
 @EnableReactiveCouchbaseRepositories
 public class Database extends AbstractCouchbaseConfiguration {
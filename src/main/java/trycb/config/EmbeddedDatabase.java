@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.Resource;
+
+import trycb.util.Breakers;
+import trycb.util.Coalescing;
+
+/**
+ * Replaces {@link Database} when the "embedded" profile is active: the repositories and the hotel service are backed
+ * by an in-process {@link EmbeddedStore} seeded from a travel-sample snapshot, so the application runs without a
+ * Couchbase cluster. Latency and failures can be injected per kind of operation with the properties
+ * embedded.{kv,kv-replica,query,search}.{latency-ms,jitter-ms,slow-rate,slow-ms,failure-rate}.
+ */
+@Configuration
+@Profile("embedded")
+public class EmbeddedDatabase {
+
+  @Value("${embedded.snapshot:classpath:embedded/travel-sample.json}") private Resource snapshot;
+
+  @Bean
+  public EmbeddedStore embeddedStore(Environment environment) throws IOException {
+    EmbeddedStore store = new EmbeddedStore();
+    try (InputStream in = snapshot.getInputStream()) {
+      store.load(in);
+    }
+    for (String operation : EmbeddedStore.OPERATIONS) {
+      String prefix = "embedded." + operation + ".";
+      store.setFaults(operation,
+          new EmbeddedStore.Faults(environment.getProperty(prefix + "latency-ms", Double.class, 0.0),
+              environment.getProperty(prefix + "jitter-ms", Double.class, 0.0),
+              environment.getProperty(prefix + "slow-rate", Double.class, 0.0),
+              environment.getProperty(prefix + "slow-ms", Double.class, 0.0),
+              environment.getProperty(prefix + "failure-rate", Double.class, 0.0)));
+    }
+    return store;
+  }
+
+  @Bean
+  public AirportRepository airportRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(AirportRepository.class, store, EmbeddedRepositories.AIRPORT);
+  }
+
+  @Bean
+  public FlightPathRepository flightPathRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(FlightPathRepository.class, store, null);
+  }
+
+  @Bean
+  public HotelRepository hotelRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(HotelRepository.class, store, EmbeddedRepositories.HOTEL);
+  }
+
+  @Bean
+  public UserRepository userRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(UserRepository.class, store, EmbeddedRepositories.USER);
+  }
+
+  @Bean
+  public BookingRepository bookingRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(BookingRepository.class, store, EmbeddedRepositories.BOOKING);
+  }
+
+  @Bean
+  public ReactiveAirportRepository reactiveAirportRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(ReactiveAirportRepository.class, store, EmbeddedRepositories.AIRPORT);
+  }
+
+  @Bean
+  public ReactiveFlightPathRepository reactiveFlightPathRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(ReactiveFlightPathRepository.class, store, null);
+  }
+
+  @Bean
+  public ReactiveUserRepository reactiveUserRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(ReactiveUserRepository.class, store, EmbeddedRepositories.USER);
+  }
+
+  @Bean
+  public ReactiveBookingRepository reactiveBookingRepository(EmbeddedStore store) {
+    return EmbeddedRepositories.create(ReactiveBookingRepository.class, store, EmbeddedRepositories.BOOKING);
+  }
+
+  @Bean
+  public KvReads kvReads(EmbeddedStore store) {
+    return new EmbeddedKvReads(store);
+  }
+
+  @Bean
+  public RouteSource routeSource(EmbeddedStore store) {
+    return new EmbeddedRouteSource(store);
+  }
+
+  @Bean
+  public HotelSource hotelSource(EmbeddedStore store) {
+    return new EmbeddedHotelSource(store);
+  }
+
+  @Bean
+  public trycb.service.Hotel hotel(EmbeddedStore store, Coalescing coalescing, Breakers breakers,
+      HotelSuggestions suggestions) {
+    return new EmbeddedHotel(store, coalescing, breakers, suggestions);
+  }
+}
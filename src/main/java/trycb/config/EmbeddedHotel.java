@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import reactor.core.publisher.Flux;
+
+import trycb.model.Result;
+import trycb.util.Breakers;
+import trycb.util.Coalescing;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+
+/**
+ * Hotel service of the embedded profile, searching the {@link EmbeddedStore} instead of the hotels-index.
+ */
+public class EmbeddedHotel extends trycb.service.Hotel {
+
+  private final EmbeddedStore store;
+
+  public EmbeddedHotel(EmbeddedStore store, Coalescing coalescing, Breakers breakers,
+      HotelSuggestions suggestions) {
+    super(coalescing, breakers, suggestions);
+    this.store = store;
+  }
+
+  @Override
+  protected Result<List<Map<String, Object>>> search(final String location, final String description,
+      Fields fields) {
+    Deadline deadline = Deadline.current();
+    List<Map<String, Object>> content = new ArrayList<>();
+    for (String id : store.searchHotels(location, description, 100)) {
+      deadline.check();
+      Map<String, Object> hotel = store.get("inventory", "hotel", id);
+      if (hotel == null) {
+        continue;
+      }
+      content.add(fields.apply(toRow((String) hotel.get("name"), (String) hotel.get("description"),
+          (String) hotel.get("address"), (String) hotel.get("city"), (String) hotel.get("state"),
+          (String) hotel.get("country"))));
+    }
+    String queryType = "Embedded search - scoped to: inventory.hotel within fields country, city, state, address, name, description";
+    return Result.of(content, queryType);
+  }
+
+  @Override
+  protected CompletableFuture<Result<List<Map<String, Object>>>> searchAsync(final String location,
+      final String description, Fields fields) {
+    // the store answers from memory, after any configured faults, so there is nothing to wait for
+    CompletableFuture<Result<List<Map<String, Object>>>> result = new CompletableFuture<>();
+    try {
+      result.complete(search(location, description, fields));
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  @Override
+  public Flux<Map<String, Object>> findHotelsStream(final String location, final String description) {
+    return Flux.defer(() -> Flux.fromIterable(findHotels(location, description).getData()));
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link HotelSource} of the embedded profile. The hotels of the {@link EmbeddedStore} are never written, so they all
+ * have change token 1 and none changes after the first poll.
+ */
+public class EmbeddedHotelSource implements HotelSource {
+
+  private final EmbeddedStore store;
+
+  public EmbeddedHotelSource(EmbeddedStore store) {
+    this.store = store;
+  }
+
+  @Override
+  public List<Map<String, Object>> hotelsChangedSince(long cas) {
+    if (cas >= 1) {
+      return Collections.emptyList();
+    }
+    List<Map<String, Object>> hotels = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Object>> h : store.scan("inventory", "hotel", h -> true)) {
+      Map<String, Object> hotel = new HashMap<>(4);
+      hotel.put("id", h.getKey());
+      hotel.put("cas", 1L);
+      hotel.put("name", h.getValue().get("name"));
+      hotel.put("city", h.getValue().get("city"));
+      hotels.add(hotel);
+    }
+    return hotels;
+  }
+
+  @Override
+  public Set<String> hotelIds() {
+    Set<String> ids = new HashSet<>();
+    for (Map.Entry<String, Map<String, Object>> h : store.scan("inventory", "hotel", h -> true)) {
+      ids.add(h.getKey());
+    }
+    return ids;
+  }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.Map;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * {@link KvReads} of the embedded profile. Reads from the active copy take the kv faults of the {@link EmbeddedStore}
+ * and reads from a replica the kv-replica faults, so a slow or failing active node can be simulated on its own.
+ */
+public class EmbeddedKvReads implements KvReads {
+
+  private final EmbeddedStore store;
+
+  public EmbeddedKvReads(EmbeddedStore store) {
+    this.store = store;
+  }
+
+  @Override
+  public <T> Mono<T> get(String scope, String collection, String id, Class<T> type) {
+    return Mono.fromCallable(() -> decode(type, id, store.get(scope, collection, id)))
+        .subscribeOn(Schedulers.boundedElastic());
+  }
+
+  @Override
+  public <T> Mono<T> getAnyReplica(String scope, String collection, String id, Class<T> type) {
+    return Mono.fromCallable(() -> decode(type, id, store.getReplica(scope, collection, id)))
+        .subscribeOn(Schedulers.boundedElastic());
+  }
+
+  private static <T> T decode(Class<T> type, String id, Map<String, Object> document) {
+    if (document == null) {
+      return null;
+    }
+    if (type == User.class) {
+      return type.cast(EmbeddedRepositories.USER.decode(id, document));
+    }
+    if (type == Booking.class) {
+      return type.cast(EmbeddedRepositories.BOOKING.decode(id, document));
+    }
+    throw new UnsupportedOperationException("KV reads of " + type.getSimpleName());
+  }
+
+}
@@ -0,0 +1,446 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.data.couchbase.repository.Collection;
+import org.springframework.data.couchbase.repository.Scope;
+
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Repository stand-ins for the embedded profile: dynamic proxies implementing the repository interfaces on top of an
+ * {@link EmbeddedStore}.<br>
+ * The CRUD methods, withScope(), withCollection() and withOptions(), and the derived and @Query methods used by the
+ * application are implemented. Scope and collection default to the @Scope and @Collection of the interface, as they
+ * do for Spring Data. Anything else, including getOperations(), throws UnsupportedOperationException.<br>
+ * Methods of reactive repositories returning Mono or Flux do the same work when they are subscribed to.
+ */
+final class EmbeddedRepositories {
+
+  private EmbeddedRepositories() {}
+
+  /**
+   * Conversion between an entity and its stored document.
+   */
+  interface Codec<T> {
+    T decode(String id, Map<String, Object> document);
+
+    Map<String, Object> encode(T entity);
+
+    String id(T entity);
+  }
+
+  static <R> R create(Class<R> type, EmbeddedStore store, Codec<?> codec) {
+    Scope scope = type.getAnnotation(Scope.class);
+    Collection collection = type.getAnnotation(Collection.class);
+    return proxy(new Handler(type, store, codec, scope != null ? scope.value() : "_default",
+        collection != null ? collection.value() : "_default"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <R> R proxy(Handler handler) {
+    return (R) Proxy.newProxyInstance(handler.type.getClassLoader(), new Class<?>[] { handler.type }, handler);
+  }
+
+  private static class Handler implements InvocationHandler {
+    final Class<?> type;
+    final EmbeddedStore store;
+    @SuppressWarnings("rawtypes") final Codec codec;
+    final String scope;
+    final String collection;
+
+    Handler(Class<?> type, EmbeddedStore store, Codec<?> codec, String scope, String collection) {
+      this.type = type;
+      this.store = store;
+      this.codec = codec;
+      this.scope = scope;
+      this.collection = collection;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "withScope":
+          return proxy(new Handler(type, store, codec, (String) args[0], collection));
+        case "withCollection":
+          return proxy(new Handler(type, store, codec, scope, (String) args[0]));
+        case "withOptions":
+          return proxy;
+        case "toString":
+          return type.getSimpleName() + " stand-in for " + scope + "." + collection;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          break;
+      }
+      if (Flux.class.isAssignableFrom(method.getReturnType())) {
+        return Flux.defer(() -> Flux.fromIterable((Iterable<?>) invokeReactively(method, args)));
+      }
+      if (Mono.class.isAssignableFrom(method.getReturnType())) {
+        return Mono.defer(() -> {
+          Object result = invokeReactively(method, args);
+          return result instanceof Optional ? Mono.justOrEmpty((Optional<?>) result) : Mono.justOrEmpty(result);
+        });
+      }
+      return invokeDirectly(method, args);
+    }
+
+    private Object invokeReactively(Method method, Object[] args) {
+      try {
+        return invokeDirectly(method, args);
+      } catch (Throwable e) {
+        throw Exceptions.propagate(e);
+      }
+    }
+
+    private Object invokeDirectly(Method method, Object[] args) throws Throwable {
+      Method query = findQuery(method);
+      if (query != null) {
+        try {
+          return query.invoke(null, args == null ? new Object[] { store } : prepend(store, args));
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+      if (codec == null) {
+        throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+      }
+      return crud(method.getName(), args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object crud(String name, Object[] args) {
+      switch (name) {
+        case "findById": {
+          Map<String, Object> document = store.get(scope, collection, (String) args[0]);
+          return Optional.ofNullable(document == null ? null : codec.decode((String) args[0], document));
+        }
+        case "existsById":
+          return store.get(scope, collection, (String) args[0]) != null;
+        case "findAllById": {
+          List<Object> found = new ArrayList<>();
+          for (Object id : (Iterable<Object>) args[0]) {
+            Map<String, Object> document = store.get(scope, collection, (String) id);
+            if (document != null) {
+              found.add(codec.decode((String) id, document));
+            }
+          }
+          return found;
+        }
+        case "findAll": {
+          List<Object> all = new ArrayList<>();
+          for (Map.Entry<String, Map<String, Object>> e : store.scan(scope, collection, d -> true)) {
+            all.add(codec.decode(e.getKey(), e.getValue()));
+          }
+          return all;
+        }
+        case "count":
+          return (long) store.scan(scope, collection, d -> true).size();
+        case "save":
+          store.upsert(scope, collection, codec.id(args[0]), codec.encode(args[0]));
+          return args[0];
+        case "saveAll": {
+          List<Object> saved = new ArrayList<>();
+          for (Object entity : (Iterable<Object>) args[0]) {
+            store.upsert(scope, collection, codec.id(entity), codec.encode(entity));
+            saved.add(entity);
+          }
+          return saved;
+        }
+        case "deleteById":
+          store.remove(scope, collection, (String) args[0]);
+          return null;
+        case "delete":
+          store.remove(scope, collection, codec.id(args[0]));
+          return null;
+        default:
+          throw new UnsupportedOperationException(type.getSimpleName() + "." + name);
+      }
+    }
+
+    /**
+     * The derived and @Query methods are implemented as static methods of the same name in {@link Queries}.
+     */
+    private static Method findQuery(Method method) {
+      for (Method m : Queries.class.getDeclaredMethods()) {
+        if (m.getName().equals(method.getName()) && m.getParameterCount() == method.getParameterCount() + 1) {
+          return m;
+        }
+      }
+      return null;
+    }
+
+    private static Object[] prepend(Object first, Object[] rest) {
+      Object[] all = new Object[rest.length + 1];
+      all[0] = first;
+      System.arraycopy(rest, 0, all, 1, rest.length);
+      return all;
+    }
+  }
+
+  /**
+   * The repository query methods, evaluated with scans of the store.
+   */
+  static final class Queries {
+
+    private Queries() {}
+
+    // AirportRepository.findByFaa
+    static List<Airport> findByFaa(EmbeddedStore store, String faa) {
+      return airports(store.scan("inventory", "airport",
+          a -> "airport".equals(a.get("type")) && faa.equals(a.get("faa"))));
+    }
+
+    // AirportRepository.findByIcao
+    static List<Airport> findByIcao(EmbeddedStore store, String icao) {
+      return airports(store.scan("inventory", "airport",
+          a -> "airport".equals(a.get("type")) && icao.equals(a.get("icao"))));
+    }
+
+    // AirportRepository.findByAirportnameStartsWith: UPPER(airportname) LIKE ($1||'%')
+    static List<Airport> findByAirportnameStartsWith(EmbeddedStore store, String name) {
+      return airports(store.scan("inventory", "airport", a -> "airport".equals(a.get("type"))
+          && a.get("airportname") != null && a.get("airportname").toString().toUpperCase().startsWith(name)));
+    }
+
+    // FlightPathRepository.findFlights: airport src JOIN route r JOIN airline a UNNEST r.schedule s JOIN airport dst
+    static List<FlightPath> findFlights(EmbeddedStore store, String sourceAirport, String destinationAirport,
+        Number day) {
+      return flights(store, sourceAirport, destinationAirport, day);
+    }
+
+    // FlightPathRepository.findFlightsByFaa: route r UNNEST r.schedule s, with the airline document id as airlineid
+    static List<FlightPath> findFlightsByFaa(EmbeddedStore store, List<String> sourceAirports,
+        List<String> destinationAirports, Number day) {
+      return flightsByFaa(store, sourceAirports, destinationAirports, day);
+    }
+
+    // FlightPathRepository.findFlightsByFaaAllDays: findFlightsByFaa without the s.day filter
+    static List<FlightPath> findFlightsByFaaAllDays(EmbeddedStore store, List<String> sourceAirports,
+        List<String> destinationAirports) {
+      return flightsByFaa(store, sourceAirports, destinationAirports, null);
+    }
+
+    private static List<FlightPath> flightsByFaa(EmbeddedStore store, List<String> sourceAirports,
+        List<String> destinationAirports, Number day) {
+      List<FlightPath> flightPaths = new ArrayList<>();
+      for (Map.Entry<String, Map<String, Object>> r : store.scan("inventory", "route",
+          route -> sourceAirports.contains(route.get("sourceairport"))
+              && destinationAirports.contains(route.get("destinationairport")))) {
+        Map<String, Object> route = r.getValue();
+        if (route.get("schedule") == null) {
+          continue;
+        }
+        for (Object o : (List<?>) route.get("schedule")) {
+          Map<?, ?> s = (Map<?, ?>) o;
+          if (day != null && ((Number) s.get("day")).intValue() != day.intValue()) {
+            continue;
+          }
+          FlightPath f = new FlightPath();
+          f.airlineid = string(route, "airlineid");
+          f.flight = (String) s.get("flight");
+          f.day = ((Number) s.get("day")).intValue();
+          f.utc = (String) s.get("utc");
+          f.sourceairport = string(route, "sourceairport");
+          f.destinationairport = string(route, "destinationairport");
+          f.equipment = string(route, "equipment");
+          flightPaths.add(f);
+        }
+      }
+      return flightPaths;
+    }
+
+    // FlightPathRepository.findFlightsAllDays: findFlights without the s.day filter
+    static List<FlightPath> findFlightsAllDays(EmbeddedStore store, String sourceAirport, String destinationAirport) {
+      return flights(store, sourceAirport, destinationAirport, null);
+    }
+
+    private static List<FlightPath> flights(EmbeddedStore store, String sourceAirport, String destinationAirport,
+        Number day) {
+      List<FlightPath> flightPaths = new ArrayList<>();
+      for (Map.Entry<String, Map<String, Object>> src : store.scan("inventory", "airport",
+          a -> sourceAirport.equals(a.get("airportname")))) {
+        for (Map.Entry<String, Map<String, Object>> dst : store.scan("inventory", "airport",
+            a -> destinationAirport.equals(a.get("airportname")))) {
+          for (Map.Entry<String, Map<String, Object>> r : store.scan("inventory", "route",
+              route -> src.getValue().get("faa").equals(route.get("sourceairport"))
+                  && dst.getValue().get("faa").equals(route.get("destinationairport")))) {
+            Map<String, Object> route = r.getValue();
+            Map<String, Object> airline = store.get("inventory", "airline", (String) route.get("airlineid"));
+            if (airline == null || route.get("schedule") == null) {
+              continue;
+            }
+            for (Object o : (List<?>) route.get("schedule")) {
+              Map<?, ?> s = (Map<?, ?>) o;
+              if (day != null && ((Number) s.get("day")).intValue() != day.intValue()) {
+                continue;
+              }
+              FlightPath f = new FlightPath();
+              f.name = string(airline, "name");
+              f.airlineid = string(airline, "id");
+              f.flight = (String) s.get("flight");
+              f.day = ((Number) s.get("day")).intValue();
+              f.utc = (String) s.get("utc");
+              f.sourceairport = string(route, "sourceairport");
+              f.destinationairport = string(route, "destinationairport");
+              f.equipment = string(route, "equipment");
+              flightPaths.add(f);
+            }
+          }
+        }
+      }
+      return flightPaths;
+    }
+
+    private static List<Airport> airports(List<Map.Entry<String, Map<String, Object>>> documents) {
+      List<Airport> airports = new ArrayList<>(documents.size());
+      for (Map.Entry<String, Map<String, Object>> e : documents) {
+        airports.add(AIRPORT.decode(e.getKey(), e.getValue()));
+      }
+      return airports;
+    }
+  }
+
+  static final Codec<Airport> AIRPORT = new Codec<Airport>() {
+    public Airport decode(String id, Map<String, Object> d) {
+      return new Airport(id, string(d, "airportname"), string(d, "faa"), string(d, "city"), string(d, "country"),
+          string(d, "icao"));
+    }
+
+    public Map<String, Object> encode(Airport a) {
+      Map<String, Object> d = new HashMap<>(a.toMap());
+      d.remove("id");
+      d.put("type", "airport");
+      return d;
+    }
+
+    public String id(Airport a) {
+      return a.id;
+    }
+  };
+
+  static final Codec<Hotel> HOTEL = new Codec<Hotel>() {
+    public Hotel decode(String id, Map<String, Object> d) {
+      return new Hotel(id);
+    }
+
+    public Map<String, Object> encode(Hotel h) {
+      Map<String, Object> d = new HashMap<>();
+      d.put("type", "hotel");
+      return d;
+    }
+
+    public String id(Hotel h) {
+      return h.name;
+    }
+  };
+
+  static final Codec<User> USER = new Codec<User>() {
+    public User decode(String id, Map<String, Object> d) {
+      User u = new User(id, string(d, "password"));
+      u.type = string(d, "type");
+      u.driving_licence = string(d, "driving_licence");
+      u.passport = string(d, "passport");
+      u.preferred_email = string(d, "preferred_email");
+      u.preferred_phone = string(d, "preferred_phone");
+      u.preferred_airline = string(d, "preferred_airline");
+      u.preferred_airport = string(d, "preferred_airport");
+      u.created = d.get("created") != null ? ((Number) d.get("created")).longValue() : 0;
+      u.updated = d.get("updated") != null ? ((Number) d.get("updated")).longValue() : 0;
+      if (d.get("flightIds") != null) {
+        u.flightIds = ((List<?>) d.get("flightIds")).toArray(new String[0]);
+      }
+      return u;
+    }
+
+    public Map<String, Object> encode(User u) {
+      Map<String, Object> d = new HashMap<>();
+      d.put("type", "user");
+      d.put("password", u.password);
+      d.put("driving_licence", u.driving_licence);
+      d.put("passport", u.passport);
+      d.put("preferred_email", u.preferred_email);
+      d.put("preferred_phone", u.preferred_phone);
+      d.put("preferred_airline", u.preferred_airline);
+      d.put("preferred_airport", u.preferred_airport);
+      d.put("created", u.created);
+      d.put("updated", u.updated);
+      if (u.flightIds != null) {
+        d.put("flightIds", new ArrayList<>(Arrays.asList(u.flightIds)));
+      }
+      return d;
+    }
+
+    public String id(User u) {
+      return u.name;
+    }
+  };
+
+  static final Codec<Booking> BOOKING = new Codec<Booking>() {
+    public Booking decode(String id, Map<String, Object> d) {
+      Booking b = new Booking(id);
+      b.name = string(d, "name");
+      b.sourceairport = string(d, "sourceairport");
+      b.destinationairport = string(d, "destinationairport");
+      b.flight = string(d, "flight");
+      b.utc = string(d, "utc");
+      b.airlineid = string(d, "airlineid");
+      b.date = string(d, "date");
+      b.price = d.get("price") != null ? ((Number) d.get("price")).intValue() : null;
+      b.day = d.get("day") != null ? ((Number) d.get("day")).intValue() : null;
+      return b;
+    }
+
+    public Map<String, Object> encode(Booking b) {
+      Map<String, Object> d = new HashMap<>(b.toMap());
+      d.remove("bookingId");
+      d.put("price", b.price);
+      d.put("type", "booking");
+      return d;
+    }
+
+    public String id(Booking b) {
+      return b.bookingId;
+    }
+  };
+
+  private static String string(Map<String, Object> document, String field) {
+    Object value = document.get(field);
+    return value != null ? value.toString() : null;
+  }
+}
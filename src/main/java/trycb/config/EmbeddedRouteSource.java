@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link RouteSource} of the embedded profile, scanning the airports and routes of the {@link EmbeddedStore}.
+ */
+public class EmbeddedRouteSource implements RouteSource {
+
+  private final EmbeddedStore store;
+
+  public EmbeddedRouteSource(EmbeddedStore store) {
+    this.store = store;
+  }
+
+  @Override
+  public List<Map<String, Object>> airports() {
+    List<Map<String, Object>> airports = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Object>> a : store.scan("inventory", "airport", a -> a.get("faa") != null)) {
+      airports.add(EmbeddedRepositories.AIRPORT.decode(a.getKey(), a.getValue()).toMap());
+    }
+    return airports;
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> airlines() {
+    Map<String, Map<String, Object>> airlines = new HashMap<>();
+    for (Map.Entry<String, Map<String, Object>> a : store.scan("inventory", "airline", a -> a.get("id") != null)) {
+      Map<String, Object> airline = new HashMap<>(2);
+      airline.put("id", a.getValue().get("id"));
+      airline.put("name", a.getValue().get("name"));
+      airlines.put(a.getKey(), airline);
+    }
+    return airlines;
+  }
+
+  @Override
+  public List<Map<String, Object>> routes() {
+    List<Map<String, Object>> routes = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Object>> r : store.scan("inventory", "route",
+        route -> route.get("sourceairport") != null)) {
+      Set<Object> days = new LinkedHashSet<>();
+      if (r.getValue().get("schedule") instanceof List) {
+        for (Object s : (List<?>) r.getValue().get("schedule")) {
+          days.add(((Map<?, ?>) s).get("day"));
+        }
+      }
+      Map<String, Object> route = new HashMap<>(4);
+      route.put("sourceairport", r.getValue().get("sourceairport"));
+      route.put("destinationairport", r.getValue().get("destinationairport"));
+      route.put("days", new ArrayList<>(days));
+      routes.add(route);
+    }
+    return routes;
+  }
+
+}
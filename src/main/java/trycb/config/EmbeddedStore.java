@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * In-process stand-in for the travel-sample bucket, used by the embedded profile.<br>
+ * Documents are kept as JSON-like maps per scope and collection and seeded from a snapshot, a JSON object of the form
+ * { "scope.collection": { "document id": { ... } } }. Every operation belongs to one of the services in
+ * {@link #OPERATIONS}, and each can be given its own latency and failure rate.
+ */
+public class EmbeddedStore {
+
+  public static final String KV = "kv";
+  public static final String KV_REPLICA = "kv-replica";
+  public static final String QUERY = "query";
+  public static final String SEARCH = "search";
+  public static final List<String> OPERATIONS = Collections.unmodifiableList(Arrays.asList(KV, KV_REPLICA, QUERY, SEARCH));
+
+  private final Map<String, Map<String, Map<String, Object>>> collections = new ConcurrentHashMap<>();
+  private final Map<String, Faults> faults = new ConcurrentHashMap<>();
+
+  /**
+   * Add the documents of a snapshot to the store.
+   */
+  public void load(InputStream snapshot) throws IOException {
+    Map<String, Map<String, Map<String, Object>>> keyspaces = new ObjectMapper().readValue(snapshot,
+        new TypeReference<Map<String, Map<String, Map<String, Object>>>>() {});
+    keyspaces.forEach((keyspace, documents) -> {
+      String[] parts = keyspace.split("\\.");
+      collection(parts[0], parts[1]).putAll(documents);
+    });
+  }
+
+  public void setFaults(String operation, Faults f) {
+    faults.put(operation, f);
+  }
+
+  public Map<String, Object> get(String scope, String collection, String id) {
+    inject(KV);
+    return collection(scope, collection).get(id);
+  }
+
+  /**
+   * Read from a replica, which only has faults of its own; the store has a single copy of each document.
+   */
+  public Map<String, Object> getReplica(String scope, String collection, String id) {
+    inject(KV_REPLICA);
+    return collection(scope, collection).get(id);
+  }
+
+  public void upsert(String scope, String collection, String id, Map<String, Object> document) {
+    inject(KV);
+    collection(scope, collection).put(id, document);
+  }
+
+  public boolean remove(String scope, String collection, String id) {
+    inject(KV);
+    return collection(scope, collection).remove(id) != null;
+  }
+
+  /**
+   * Full scan of a collection, in document id order, like a query without a usable index.
+   */
+  public List<Map.Entry<String, Map<String, Object>>> scan(String scope, String collection,
+      Predicate<Map<String, Object>> filter) {
+    inject(QUERY);
+    List<Map.Entry<String, Map<String, Object>>> matches = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Object>> e : collection(scope, collection).entrySet()) {
+      if (filter.test(e.getValue())) {
+        matches.add(e);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Rough equivalent of the hotels-index search done by the hotel service: a phrase match of the location on
+   * country, city, state or address, and of the description on description or name. "*" matches everything.
+   */
+  public List<String> searchHotels(String location, String description, int limit) {
+    inject(SEARCH);
+    List<String> locationPhrase = tokens(location);
+    List<String> descriptionPhrase = tokens(description);
+    List<String> ids = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Object>> e : collection("inventory", "hotel").entrySet()) {
+      Map<String, Object> hotel = e.getValue();
+      if (!"hotel".equals(hotel.get("type"))) {
+        continue;
+      }
+      if (!locationPhrase.isEmpty() && !anyPhrase(hotel, locationPhrase, "country", "city", "state", "address")) {
+        continue;
+      }
+      if (!descriptionPhrase.isEmpty() && !anyPhrase(hotel, descriptionPhrase, "description", "name")) {
+        continue;
+      }
+      ids.add(e.getKey());
+      if (ids.size() == limit) {
+        break;
+      }
+    }
+    return ids;
+  }
+
+  private static boolean anyPhrase(Map<String, Object> document, List<String> phrase, String... fields) {
+    for (String field : fields) {
+      Object value = document.get(field);
+      if (value != null && Collections.indexOfSubList(tokens(value.toString()), phrase) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<String> tokens(String text) {
+    if (text == null || text.isEmpty() || "*".equals(text)) {
+      return Collections.emptyList();
+    }
+    List<String> tokens = new ArrayList<>();
+    for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens;
+  }
+
+  private Map<String, Map<String, Object>> collection(String scope, String collection) {
+    return collections.computeIfAbsent(scope + "." + collection, k -> new ConcurrentSkipListMap<>());
+  }
+
+  private void inject(String operation) {
+    Faults f = faults.get(operation);
+    if (f != null) {
+      f.apply(operation);
+    }
+  }
+
+  /**
+   * Latency and failures injected into every operation of one kind. Each operation takes latencyMs plus a uniform
+   * jitter of up to jitterMs; with probability slowRate it takes an extra slowMs, and with probability failureRate it
+   * fails after the delay.
+   */
+  public static class Faults {
+    private final double latencyMs;
+    private final double jitterMs;
+    private final double slowRate;
+    private final double slowMs;
+    private final double failureRate;
+
+    public Faults(double latencyMs, double jitterMs, double slowRate, double slowMs, double failureRate) {
+      this.latencyMs = latencyMs;
+      this.jitterMs = jitterMs;
+      this.slowRate = slowRate;
+      this.slowMs = slowMs;
+      this.failureRate = failureRate;
+    }
+
+    void apply(String operation) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      double delayMs = latencyMs;
+      if (jitterMs > 0) {
+        delayMs += random.nextDouble() * jitterMs;
+      }
+      if (slowRate > 0 && random.nextDouble() < slowRate) {
+        delayMs += slowMs;
+      }
+      if (delayMs > 0) {
+        LockSupport.parkNanos((long) (delayMs * TimeUnit.MILLISECONDS.toNanos(1)));
+      }
+      if (failureRate > 0 && random.nextDouble() < failureRate) {
+        throw new DataAccessResourceFailureException("Injected " + operation + " failure");
+      }
+    }
+  }
+}
@@ -23,6 +23,7 @@
 package trycb.config;
 
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.data.couchbase.repository.CouchbaseRepository;
 import org.springframework.data.couchbase.repository.DynamicProxyable;
@@ -48,10 +49,38 @@ public interface FlightPathRepository
   // Similar to the query in try-cb-java, except this query also includes the joins to translate the
   // airport names to faa (to join on r.sourceairport and r.destinationairport)
   // __id and __cas must be projected even if they are not used
-  @Query("SELECT meta(r).id as __id, meta(r).cas as __cas, a.name, a.id airlineid, s.flight, s.day, s.utc, "
-      + "r.sourceairport, r.destinationairport, r.equipment " + "FROM " + "airport src "
+  // The statement is also run directly through the SDK by the async flight path search.
+  String FIND_FLIGHTS_ALL_DAYS = "SELECT meta(r).id as __id, meta(r).cas as __cas, a.name, a.id airlineid, s.flight, "
+      + "s.day, s.utc, r.sourceairport, r.destinationairport, r.equipment " + "FROM " + "airport src "
       + "INNER JOIN route r on r.sourceairport = src.faa " + "INNER JOIN airline a on r.airlineid = meta(a).id "
       + "UNNEST r.schedule AS s " + "INNER JOIN airport dst on r.destinationairport = dst.faa "
-      + "where src.airportname=$1 and dst.airportname=$2 and s.day=$3")
+      + "where src.airportname=$1 and dst.airportname=$2";
+
+  String FIND_FLIGHTS = FIND_FLIGHTS_ALL_DAYS + " and s.day=$3";
+
+  // FIND_FLIGHTS for airports already resolved to their FAA codes, without any join: the airline is left as the
+  // route's airlineid, the document id, for the caller to look up in the InventoryDictionary.
+  String FIND_FLIGHTS_BY_FAA_ALL_DAYS = "SELECT meta(r).id as __id, meta(r).cas as __cas, r.airlineid, s.flight, "
+      + "s.day, s.utc, r.sourceairport, r.destinationairport, r.equipment FROM route r UNNEST r.schedule AS s "
+      + "where r.sourceairport IN $1 and r.destinationairport IN $2";
+
+  String FIND_FLIGHTS_BY_FAA = FIND_FLIGHTS_BY_FAA_ALL_DAYS + " and s.day=$3";
+
+  // The SELECT list entry of each field of FIND_FLIGHTS, to select only some of them when it is run directly.
+  Map<String, String> COLUMNS = Map.of("name", "a.name", "airlineid", "a.id airlineid", "flight", "s.flight", "day",
+      "s.day", "utc", "s.utc", "sourceairport", "r.sourceairport", "destinationairport", "r.destinationairport",
+      "equipment", "r.equipment");
+
+  @Query(FIND_FLIGHTS)
   List<FlightPath> findFlights(String sourceAirport, String destinationAirport, Number day);
+
+  @Query(FIND_FLIGHTS_BY_FAA)
+  List<FlightPath> findFlightsByFaa(List<String> sourceAirports, List<String> destinationAirports, Number day);
+
+  // The flights of every day of the week, for searches over a range of dates.
+  @Query(FIND_FLIGHTS_ALL_DAYS)
+  List<FlightPath> findFlightsAllDays(String sourceAirport, String destinationAirport);
+
+  @Query(FIND_FLIGHTS_BY_FAA_ALL_DAYS)
+  List<FlightPath> findFlightsByFaaAllDays(List<String> sourceAirports, List<String> destinationAirports);
 }
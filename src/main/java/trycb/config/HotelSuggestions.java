@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * An in-memory search-as-you-type index of the hotel names and cities, when storage.hotel-suggest.enabled is set.
+ * Every word of the search must start one of the words of a hotel's name or city; the hotels whose name matches the
+ * whole search come first, then by name.<br>
+ * Filled from the {@link HotelSource} at startup, then polled every storage.hotel-suggest.poll-s seconds for the
+ * hotels changed since the last change seen, which are re-indexed one by one, and for the ids of every hotel, to drop
+ * those deleted. The full-text hotel search only runs once a suggestion is picked or the search submitted.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class HotelSuggestions implements ApplicationRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HotelSuggestions.class);
+
+  private static final Comparator<Entry> BY_NAME = Comparator.comparing((Entry e) -> e.name)
+      .thenComparing(e -> e.id);
+
+  private final boolean enabled;
+  private final HotelSource source;
+  private final Map<String, Entry> hotels = new ConcurrentHashMap<>();
+  // word to the ids of the hotels with it in their name or city, sorted to find the words by prefix
+  private final ConcurrentSkipListMap<String, Set<String>> words = new ConcurrentSkipListMap<>();
+  // the greatest change token polled, the hotels changed since are polled next
+  private long seen;
+  private volatile boolean ready;
+
+  public HotelSuggestions(@Value("${storage.hotel-suggest.enabled:false}") boolean enabled, HotelSource source) {
+    this.enabled = enabled;
+    this.source = source;
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * The first hotels, at most limit, matching the search, with their document "id", "name" and "city".
+   */
+  public List<Map<String, Object>> suggest(String search, int limit) {
+    List<String> searched = AirportAutocomplete.words(search);
+    if (searched.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // the hotels with a word starting with the longest search word, the most selective, then filtered by the others
+    String longest = Collections.max(searched, Comparator.comparingInt(String::length));
+    Set<String> ids = new LinkedHashSet<>();
+    for (Set<String> withWord : words.subMap(longest, longest + Character.MAX_VALUE).values()) {
+      ids.addAll(withWord);
+    }
+    List<Entry> byName = new ArrayList<>();
+    List<Entry> byCity = new ArrayList<>();
+    for (String id : ids) {
+      Entry hotel = hotels.get(id);
+      if (hotel == null) {
+        continue;
+      }
+      if (hotel.matches(searched, false)) {
+        byName.add(hotel);
+      } else if (hotel.matches(searched, true)) {
+        byCity.add(hotel);
+      }
+    }
+    byName.sort(BY_NAME);
+    byCity.sort(BY_NAME);
+    List<Map<String, Object>> suggestions = new ArrayList<>(Math.min(limit, byName.size() + byCity.size()));
+    for (List<Entry> matched : List.of(byName, byCity)) {
+      for (int i = 0; i < matched.size() && suggestions.size() < limit; i++) {
+        suggestions.add(matched.get(i).toMap());
+      }
+    }
+    return suggestions;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    pollQuietly();
+  }
+
+  @Scheduled(initialDelayString = "${storage.hotel-suggest.poll-s:30}",
+      fixedDelayString = "${storage.hotel-suggest.poll-s:30}", timeUnit = TimeUnit.SECONDS)
+  public void pollQuietly() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      poll();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not poll the hotel changes for suggestions, keeping the index as it is", e);
+    }
+  }
+
+  /**
+   * Re-index the hotels changed since the last poll and drop those deleted.
+   */
+  public synchronized void poll() {
+    long start = System.nanoTime();
+    List<Map<String, Object>> changed = source.hotelsChangedSince(seen);
+    long latest = seen;
+    for (Map<String, Object> row : changed) {
+      put(String.valueOf(row.get("id")), (String) row.get("name"), (String) row.get("city"));
+      latest = Math.max(latest, ((Number) row.get("cas")).longValue());
+    }
+    Set<String> ids = source.hotelIds();
+    int deleted = 0;
+    for (String id : new ArrayList<>(hotels.keySet())) {
+      if (!ids.contains(id)) {
+        remove(id);
+        deleted++;
+      }
+    }
+    seen = latest;
+    ready = true;
+    if (!changed.isEmpty() || deleted > 0) {
+      LOGGER.info("Indexed {} changed and dropped {} deleted hotels for suggestions in {} ms, {} hotels under {} words",
+          changed.size(), deleted, (System.nanoTime() - start) / 1_000_000, hotels.size(), words.size());
+    }
+  }
+
+  private void put(String id, String name, String city) {
+    Entry hotel = new Entry(id, name, city);
+    Entry previous = hotels.put(id, hotel);
+    if (previous != null) {
+      for (String word : previous.words()) {
+        if (!hotel.words().contains(word)) {
+          unindex(word, id);
+        }
+      }
+    }
+    for (String word : hotel.words()) {
+      words.computeIfAbsent(word, w -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+  }
+
+  private void remove(String id) {
+    Entry previous = hotels.remove(id);
+    if (previous != null) {
+      for (String word : previous.words()) {
+        unindex(word, id);
+      }
+    }
+  }
+
+  private void unindex(String word, String id) {
+    words.computeIfPresent(word, (w, ids) -> {
+      ids.remove(id);
+      return ids.isEmpty() ? null : ids;
+    });
+  }
+
+  private static final class Entry {
+
+    private final String id;
+    private final String name;
+    private final String city;
+    private final List<String> nameWords;
+    private final List<String> cityWords;
+
+    Entry(String id, String name, String city) {
+      this.id = id;
+      this.name = name == null ? "" : name;
+      this.city = city;
+      this.nameWords = AirportAutocomplete.words(this.name);
+      this.cityWords = AirportAutocomplete.words(city);
+    }
+
+    Set<String> words() {
+      Set<String> all = new LinkedHashSet<>(nameWords);
+      all.addAll(cityWords);
+      return all;
+    }
+
+    // whether every searched word starts a word of the name, or of the name or city
+    boolean matches(List<String> searched, boolean withCity) {
+      for (String search : searched) {
+        if (!startsAny(nameWords, search) && !(withCity && startsAny(cityWords, search))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean startsAny(List<String> words, String prefix) {
+      for (String word : words) {
+        if (word.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new HashMap<>(4);
+      map.put("id", id);
+      map.put("name", name);
+      map.put("city", city);
+      return map;
+    }
+
+  }
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports the {@link IndexManager} at /actuator/health/indexes: the state of each declared index, and the scans each
+ * repository query plan uses. A plan on a primary scan is only a warning in the details, unless
+ * storage.indexes.on-primary-scan is "fail", which makes it DOWN. It stays UNKNOWN without a cluster.
+ */
+@Component("indexes")
+public class IndexHealthIndicator implements HealthIndicator {
+
+  private final IndexManager indexManager;
+
+  public IndexHealthIndicator(IndexManager indexManager) {
+    this.indexManager = indexManager;
+  }
+
+  @Override
+  public Health health() {
+    String status = indexManager.getStatus();
+    Health.Builder builder;
+    if ("verified".equals(status)) {
+      builder = Health.up();
+    } else if ("primary-scan".equals(status)) {
+      // slower, but every query still answers
+      builder = indexManager.isFailOnPrimaryScan() ? Health.down()
+          : Health.up().withDetail("warning", "Queries falling back to a primary scan");
+    } else {
+      builder = Health.unknown();
+    }
+    return builder.withDetail("status", status).withDetails(indexManager.getReport()).build();
+  }
+
+}
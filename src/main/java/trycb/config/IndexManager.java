@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import static com.couchbase.client.java.query.QueryOptions.queryOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.couchbase.CouchbaseClientFactory;
+import org.springframework.stereotype.Component;
+
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+
+/**
+ * Makes sure the GSI indexes the repository queries depend on exist, before anything else runs at startup.<br>
+ * Every index is declared below, with the queries that need it. Missing ones are created when storage.indexes.create
+ * is set. Then every query is EXPLAINed, and a plan that falls back to a primary scan (a full scan of the collection)
+ * is logged as a warning, or fails the startup when storage.indexes.on-primary-scan is "fail". The outcome is reported
+ * by {@link IndexHealthIndicator}.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class IndexManager implements ApplicationRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexManager.class);
+
+  /**
+   * The indexes of the inventory scope. The airport ones cover the searches and serve the airport sides of the
+   * flight path joins. The airline join is on META(a).id, a key lookup that needs no index of its own; the airline
+   * index only covers the load of the InventoryDictionary.
+   */
+  static final List<RequiredIndex> INDEXES = Arrays.asList(
+      new RequiredIndex("idx_airport_faa", "airport", "faa, type, airportname, city, country, icao",
+          "findByFaa, FAA_QUERY, findFlights, reachability"),
+      new RequiredIndex("idx_airport_icao", "airport", "icao, type, airportname, city, country, faa",
+          "findByIcao, ICAO_QUERY"),
+      new RequiredIndex("idx_airport_name_upper", "airport",
+          "UPPER(airportname), type, airportname, city, country, faa, icao",
+          "findByAirportnameStartsWith, NAME_PREFIX_QUERY"),
+      new RequiredIndex("idx_airport_name", "airport", "airportname", "findFlights"),
+      new RequiredIndex("idx_route_src_dst", "route", "sourceairport, destinationairport, airlineid",
+          "findFlights, findFlightsByFaa, reachability"),
+      new RequiredIndex("idx_airline_id", "airline", "id, name", "dictionary"),
+      new RequiredIndex("idx_hotel_cas", "hotel", "META().cas, name, city", "hotelSuggestions"));
+
+  /**
+   * The repository queries, as the N1QL the query service gets, with sample arguments to EXPLAIN them with.
+   */
+  static final List<CheckedQuery> QUERIES = Arrays.asList(
+      new CheckedQuery("findByFaa", AirportRepository.FAA_QUERY, JsonArray.from("SFO")),
+      new CheckedQuery("findByIcao", AirportRepository.ICAO_QUERY, JsonArray.from("KSFO")),
+      new CheckedQuery("findByAirportnameStartsWith", AirportRepository.NAME_PREFIX_QUERY, JsonArray.from("SAN")),
+      new CheckedQuery("findFlights", FlightPathRepository.FIND_FLIGHTS,
+          JsonArray.from("San Francisco Intl", "Los Angeles Intl", 1)),
+      new CheckedQuery("airportLookupBackfill", AirportLookup.BACKFILL_QUERY, JsonArray.create()),
+      new CheckedQuery("reachabilityAirports", CouchbaseRouteSource.AIRPORTS_QUERY, JsonArray.create()),
+      new CheckedQuery("reachabilityRoutes", CouchbaseRouteSource.ROUTES_QUERY, JsonArray.create()),
+      new CheckedQuery("findFlightsByFaa", FlightPathRepository.FIND_FLIGHTS_BY_FAA,
+          JsonArray.from(JsonArray.from("SFO"), JsonArray.from("LAX"), 1)),
+      new CheckedQuery("dictionaryAirlines", CouchbaseRouteSource.AIRLINES_QUERY, JsonArray.create()),
+      new CheckedQuery("hotelSuggestionChanges", CouchbaseHotelSource.CHANGED_QUERY, JsonArray.from(0)),
+      new CheckedQuery("hotelSuggestionIds", CouchbaseHotelSource.IDS_QUERY, JsonArray.create()));
+
+  private final ObjectProvider<CouchbaseClientFactory> clientFactory;
+
+  @Value("${storage.indexes.create:true}") private boolean create;
+
+  @Value("${storage.indexes.on-primary-scan:warn}") private String onPrimaryScan;
+
+  private final Map<String, Object> report = new LinkedHashMap<>();
+  private String status = "pending";
+
+  public IndexManager(ObjectProvider<CouchbaseClientFactory> clientFactory) {
+    this.clientFactory = clientFactory;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    CouchbaseClientFactory factory = clientFactory.getIfAvailable();
+    if (factory == null) {
+      setStatus("skipped");
+      return;
+    }
+    Scope inventory = factory.getBucket().scope("inventory");
+
+    List<String> existing = inventory.query("SELECT RAW name FROM system:indexes WHERE bucket_id = $1 "
+        + "AND scope_id = \"inventory\" AND state = \"online\"",
+        queryOptions().parameters(JsonArray.from(factory.getBucket().name()))).rowsAs(String.class);
+    Map<String, String> indexes = new LinkedHashMap<>();
+    for (RequiredIndex index : INDEXES) {
+      if (existing.contains(index.name)) {
+        indexes.put(index.name, "present");
+      } else if (create) {
+        LOGGER.info("Creating index {}, needed by {}", index.name, index.usedBy);
+        inventory.query(index.createStatement());
+        indexes.put(index.name, "created");
+      } else {
+        LOGGER.warn("Index {} is missing, needed by {}", index.name, index.usedBy);
+        indexes.put(index.name, "missing");
+      }
+    }
+
+    Map<String, String> plans = new LinkedHashMap<>();
+    List<String> primaryScans = new ArrayList<>();
+    for (CheckedQuery query : QUERIES) {
+      JsonObject plan = inventory.query("EXPLAIN " + query.statement, queryOptions().parameters(query.arguments))
+          .rowsAsObject().get(0);
+      List<String> scans = new ArrayList<>();
+      collectScans(plan, scans);
+      plans.put(query.label, String.join(", ", scans));
+      if (scans.stream().anyMatch(scan -> scan.startsWith("PrimaryScan"))) {
+        primaryScans.add(query.label);
+      }
+    }
+
+    synchronized (this) {
+      report.put("indexes", indexes);
+      report.put("plans", plans);
+      report.put("primaryScans", primaryScans);
+      status = primaryScans.isEmpty() ? "verified" : "primary-scan";
+    }
+    if (!primaryScans.isEmpty()) {
+      String message = "Queries falling back to a primary scan: " + primaryScans + ", plans: " + plans;
+      if (isFailOnPrimaryScan()) {
+        throw new IllegalStateException(message);
+      }
+      LOGGER.warn(message);
+    } else {
+      LOGGER.info("Index plans verified: {}", plans);
+    }
+  }
+
+  /**
+   * "pending", "skipped" without a cluster, "verified", or "primary-scan" when a query plan uses a primary scan.
+   */
+  public synchronized String getStatus() {
+    return status;
+  }
+
+  /**
+   * Whether a plan on a primary scan fails the startup, rather than being logged as a warning.
+   */
+  public boolean isFailOnPrimaryScan() {
+    return "fail".equals(onPrimaryScan);
+  }
+
+  public synchronized Map<String, Object> getReport() {
+    return new LinkedHashMap<>(report);
+  }
+
+  private synchronized void setStatus(String status) {
+    this.status = status;
+  }
+
+  /**
+   * The scan operators of the plan, eg. "IndexScan3 idx_airport_faa" or "PrimaryScan3 #primary".
+   */
+  private static void collectScans(Object node, List<String> scans) {
+    if (node instanceof JsonObject) {
+      JsonObject object = (JsonObject) node;
+      Object operator = object.get("#operator");
+      if (operator instanceof String && ((String) operator).contains("Scan")) {
+        scans.add(operator + (object.containsKey("index") ? " " + object.get("index") : ""));
+      }
+      for (String name : object.getNames()) {
+        collectScans(object.get(name), scans);
+      }
+    } else if (node instanceof JsonArray) {
+      for (Object child : (JsonArray) node) {
+        collectScans(child, scans);
+      }
+    }
+  }
+
+  static final class RequiredIndex {
+    final String name;
+    final String collection;
+    final String keys;
+    final String usedBy;
+
+    RequiredIndex(String name, String collection, String keys, String usedBy) {
+      this.name = name;
+      this.collection = collection;
+      this.keys = keys;
+      this.usedBy = usedBy;
+    }
+
+    String createStatement() {
+      return "CREATE INDEX `" + name + "` IF NOT EXISTS ON `" + collection + "`(" + keys + ")";
+    }
+  }
+
+  static final class CheckedQuery {
+    final String label;
+    final String statement;
+    final JsonArray arguments;
+
+    CheckedQuery(String label, String statement, JsonArray arguments) {
+      this.label = label;
+      this.statement = statement;
+      this.arguments = arguments;
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Airport names by FAA code and back, and airline ids and names by document id, held in memory when
+ * storage.dictionary.enabled is set. With them the flight path searches take FAA codes as well as airport names, and
+ * filter the routes on their codes without joining the airport and airline collections.<br>
+ * Loaded from the {@link RouteSource} at startup, before the warm-up, and reloaded every storage.dictionary.refresh-s
+ * seconds; airports and airlines added in between are unknown until then. Until the first load succeeds
+ * {@link #isReady()} is false and the searches join as before.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class InventoryDictionary implements ApplicationRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InventoryDictionary.class);
+
+  private final boolean enabled;
+  private final RouteSource source;
+  private volatile Entries entries;
+
+  public InventoryDictionary(@Value("${storage.dictionary.enabled:false}") boolean enabled, RouteSource source) {
+    this.enabled = enabled;
+    this.source = source;
+  }
+
+  public boolean isReady() {
+    return entries != null;
+  }
+
+  /**
+   * The FAA codes of the airport given by code or by name, as more than one airport may have a name; empty when it is
+   * neither.
+   */
+  public List<String> faaCodes(String airport) {
+    Entries entries = this.entries;
+    if (entries.namesByFaa.containsKey(airport)) {
+      return Collections.singletonList(airport);
+    }
+    return entries.faaByName.getOrDefault(airport, Collections.emptyList());
+  }
+
+  /**
+   * The names of the airports given by FAA code, as codes aren't unique, or the given name as is.
+   */
+  public List<String> airportNames(String airport) {
+    Entries entries = this.entries;
+    List<String> names = entries != null ? entries.namesByFaa.get(airport) : null;
+    return names != null ? names : Collections.singletonList(airport);
+  }
+
+  /**
+   * Put the "name" and "airlineid" of the airline with the document id into the flight path row, as the airline
+   * join would; false when there is no such airline, which the join would leave out.
+   */
+  public boolean putAirline(String key, Map<String, Object> row) {
+    Map<String, Object> airline = entries.airlines.get(key);
+    if (airline == null) {
+      return false;
+    }
+    row.put("name", airline.get("name"));
+    row.put("airlineid", airline.get("id") == null ? null : String.valueOf(airline.get("id")));
+    return true;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    reloadQuietly();
+  }
+
+  @Scheduled(initialDelayString = "${storage.dictionary.refresh-s:300}",
+      fixedDelayString = "${storage.dictionary.refresh-s:300}", timeUnit = TimeUnit.SECONDS)
+  public void reloadQuietly() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      reload();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not load the inventory dictionary, keeping the previous one", e);
+    }
+  }
+
+  /**
+   * Read every airport and airline, and use them from now on.
+   */
+  public void reload() {
+    long start = System.nanoTime();
+    Map<String, List<String>> namesByFaa = source.airportNames();
+    Map<String, List<String>> faaByName = new HashMap<>();
+    for (Map.Entry<String, List<String>> airport : namesByFaa.entrySet()) {
+      for (String name : airport.getValue()) {
+        faaByName.computeIfAbsent(name, n -> new ArrayList<>(1)).add(airport.getKey());
+      }
+    }
+    Map<String, Map<String, Object>> airlines = source.airlines();
+    entries = new Entries(namesByFaa, faaByName, airlines);
+    LOGGER.info("Loaded {} airports and {} airlines into the inventory dictionary in {} ms", namesByFaa.size(),
+        airlines.size(), (System.nanoTime() - start) / 1_000_000);
+  }
+
+  private static final class Entries {
+    final Map<String, List<String>> namesByFaa;
+    final Map<String, List<String>> faaByName;
+    final Map<String, Map<String, Object>> airlines;
+
+    Entries(Map<String, List<String>> namesByFaa, Map<String, List<String>> faaByName,
+        Map<String, Map<String, Object>> airlines) {
+      this.namesByFaa = namesByFaa;
+      this.faaByName = faaByName;
+      this.airlines = airlines;
+    }
+  }
+
+}
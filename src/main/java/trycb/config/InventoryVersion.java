@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+
+import trycb.util.Fields;
+
+/**
+ * A version of the inventory (airports, flight paths and hotels) that the airport, flight path and hotel responses are
+ * tagged with when api.etag.enabled is set. A request whose If-None-Match has the current version gets a
+ * 304 Not Modified without running its search. The tag also names the representation, the media type negotiated
+ * from the Accept header and the fields, so that a client never gets a 304 for a response it has in another format;
+ * the same URLs also stream NDJSON, so the responses vary on Accept.<br>
+ * The version changes when the application starts, when it saves or deletes an inventory document (see
+ * {@link InventoryVersionListener}), and every api.etag.refresh-s seconds, which bounds how long changes made outside
+ * the application go unnoticed.
+ */
+@Component
+public class InventoryVersion {
+
+  private final boolean enabled;
+  private final boolean binary;
+  private final long refreshMillis;
+  private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+  private final AtomicLong changes = new AtomicLong();
+
+  public InventoryVersion(@Value("${api.etag.enabled:false}") boolean enabled,
+      @Value("${api.etag.refresh-s:300}") long refreshSeconds,
+      @Value("${api.binary.enabled:false}") boolean binary) {
+    this.enabled = enabled;
+    this.binary = binary;
+    this.refreshMillis = TimeUnit.SECONDS.toMillis(refreshSeconds);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The strong ETag of the current version, in the given media type with the given fields.
+   */
+  public String etag(MediaType type, Fields fields) {
+    long period = refreshMillis > 0 ? System.currentTimeMillis() / refreshMillis : 0;
+    return "\"" + epoch + "-" + changes.get() + "-" + Long.toString(period, 36) + "-" + type.getSubtype()
+        + (fields.isAll() ? "" : "-" + fields) + "\"";
+  }
+
+  /**
+   * Tag the response with the current version of all its fields, and tell whether the client already has it, in which
+   * case the response is a 304 and the handler should return null.
+   */
+  public boolean checkNotModified(WebRequest request) {
+    return checkNotModified(request, Fields.ALL);
+  }
+
+  /**
+   * Tag the response with the current version of the given fields, and tell whether the client already has it, in
+   * which case the response is a 304 and the handler should return null. The response varies on Accept either way.
+   */
+  public boolean checkNotModified(WebRequest request, Fields fields) {
+    if (request instanceof NativeWebRequest) {
+      HttpServletResponse response = ((NativeWebRequest) request).getNativeResponse(HttpServletResponse.class);
+      if (response != null) {
+        varyOnAccept(response);
+      }
+    }
+    return enabled && request.checkNotModified(etag(BinaryFormats.negotiate(request.getHeader(HttpHeaders.ACCEPT),
+        binary), fields));
+  }
+
+  /**
+   * Tell caches that the response depends on the Accept header, unless already told.
+   */
+  static void varyOnAccept(HttpServletResponse response) {
+    if (!response.getHeaders(HttpHeaders.VARY).contains(HttpHeaders.ACCEPT)) {
+      response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+  }
+
+  /**
+   * An inventory document has changed.
+   */
+  void changed() {
+    changes.incrementAndGet();
+  }
+
+}
@@ -22,33 +22,33 @@
 
 package trycb.config;
 
-import java.util.List;
-import java.util.Optional;
-
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.CommandLineRunner;
+import org.springframework.data.couchbase.core.mapping.CouchbaseDocument;
+import org.springframework.data.couchbase.core.mapping.event.AbstractCouchbaseEventListener;
 import org.springframework.stereotype.Component;
 
 /**
- * Can be used for sanity test on startup. Components of the type CommandLineRunner are called right after the
- * application start up. So the method run() is called as soon as the application starts.
+ * Moves the {@link InventoryVersion} on as inventory documents are saved through the repositories. Deletes move it on
+ * whatever was deleted, as a delete event may only carry the id.
  */
 @Component
-public class CmdRunner implements CommandLineRunner {
+public class InventoryVersionListener extends AbstractCouchbaseEventListener<Object> {
+
+  private final InventoryVersion inventoryVersion;
 
-  @Autowired private AirportRepository airportRepository;
+  public InventoryVersionListener(InventoryVersion inventoryVersion) {
+    this.inventoryVersion = inventoryVersion;
+  }
 
   @Override
-  public void run(String... strings) throws Exception {
-    AirportRepository repo = airportRepository.withScope("inventory").withCollection("airport");
-    Optional<Airport> airport = airportRepository.findById("airport_3469"); // SFO
-    System.out.println("got SFO: " + airport.get());
-    try {
-      List<Airport> airports = repo.findByAirportnameStartsWith("SAN ");
-      System.out.println("airports that start with San :" + airports);
-    } catch (Exception e) {
-      e.printStackTrace();
+  public void onAfterSave(Object source, CouchbaseDocument document) {
+    if (source instanceof Airport || source instanceof FlightPath || source instanceof Hotel) {
+      inventoryVersion.changed();
     }
   }
 
+  @Override
+  public void onAfterDelete(Object source, CouchbaseDocument document) {
+    inventoryVersion.changed();
+  }
+
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * KV reads of an entity by id, from the active copy of its document or from any of its replicas. The replica read is
+ * what a hedged read falls back on while the active copy is slow; see trycb.util.Hedge.
+ */
+public interface KvReads {
+
+  /**
+   * The entity read from the active copy of its document, empty when there is no such document.
+   */
+  <T> Mono<T> get(String scope, String collection, String id, Class<T> type);
+
+  /**
+   * The entity read from whichever copy of its document, active or replica, answers first. It may be stale.
+   */
+  <T> Mono<T> getAnyReplica(String scope, String collection, String id, Class<T> type);
+
+}
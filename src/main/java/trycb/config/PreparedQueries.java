@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import static com.couchbase.client.java.query.QueryOptions.queryOptions;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.couchbase.client.core.error.PreparedStatementFailureException;
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.query.QueryMetrics;
+import com.couchbase.client.java.query.QueryOptions;
+import com.couchbase.client.java.query.QueryScanConsistency;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import trycb.util.Deadline;
+import trycb.util.Futures;
+
+/**
+ * Runs N1QL statements as prepared statements, when storage.query.prepared is set.<br>
+ * Each statement is prepared once per scope with PREPARE, and then run with EXECUTE, so the query service parses and
+ * plans it only once. When the query service no longer knows the prepared statement, or its plan has been
+ * invalidated (by an index change for example), the statement is prepared again and the query retried once. Both
+ * are given what is left of the request's {@link Deadline} as their timeout.<br>
+ * Metrics, tagged with the statement's label:
+ * <ul>
+ * <li>trycb.query.prepare: time taken by each PREPARE, the parse and plan time of the statement</li>
+ * <li>trycb.query.plan.saved: one per EXECUTE that reused a prepared statement, timing the parse and plan time it
+ * saved, as measured by the PREPARE</li>
+ * <li>trycb.query.reprepare: statements prepared again after being invalidated</li>
+ * </ul>
+ */
+@Component
+public class PreparedQueries {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PreparedQueries.class);
+
+  private final boolean enabled;
+  private final MeterRegistry registry;
+  private final ConcurrentMap<String, CompletableFuture<Prepared>> cache = new ConcurrentHashMap<>();
+
+  public PreparedQueries(@Value("${storage.query.prepared:false}") boolean enabled, MeterRegistry registry) {
+    this.enabled = enabled;
+    this.registry = registry;
+  }
+
+  /**
+   * Whether statements should be run through {@link #query(String, Scope, String, JsonArray, Deadline)}.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Run the statement, relative to the scope, as a prepared statement with the given positional parameters, within
+   * the deadline.
+   */
+  public CompletableFuture<List<JsonObject>> query(String label, Scope scope, String statement,
+      JsonArray parameters, Deadline deadline) {
+    String key = key(scope, statement);
+    return prepared(label, scope, statement, key, deadline)
+        .thenCompose(prepared -> execute(label, scope, prepared, parameters, deadline))
+        .exceptionallyCompose(e -> {
+          if (!(Futures.unwrap(e) instanceof PreparedStatementFailureException)) {
+            return CompletableFuture.failedFuture(Futures.unwrap(e));
+          }
+          LOGGER.info("Prepared statement {} is no longer valid, preparing it again", label);
+          registry.counter("trycb.query.reprepare", "statement", label).increment();
+          cache.remove(key);
+          return prepared(label, scope, statement, key, deadline)
+              .thenCompose(prepared -> execute(label, scope, prepared, parameters, deadline));
+        });
+  }
+
+  /**
+   * Prepare the statement ahead of its first use, eg. while warming up, within the deadline of the current thread if
+   * it has one.
+   */
+  public CompletableFuture<Void> prepare(String label, Scope scope, String statement) {
+    return prepared(label, scope, statement, key(scope, statement), Deadline.current()).thenApply(prepared -> null);
+  }
+
+  private CompletableFuture<Prepared> prepared(String label, Scope scope, String statement, String key,
+      Deadline deadline) {
+    CompletableFuture<Prepared> prepared = cache.computeIfAbsent(key, k -> {
+      QueryOptions options = withDeadline(queryOptions().metrics(true), deadline);
+      return scope.async().query("PREPARE " + statement, options).thenApply(result -> {
+        // the query service's own elapsed time, leaving out the round trip
+        long nanos = result.metaData().metrics().map(QueryMetrics::elapsedTime).orElse(Duration.ZERO).toNanos();
+        registry.timer("trycb.query.prepare", "statement", label).record(nanos, TimeUnit.NANOSECONDS);
+        return new Prepared(result.rowsAsObject().get(0).getString("name"), nanos);
+      });
+    });
+    // a failed PREPARE is not cached, the next query tries again
+    prepared.whenComplete((p, e) -> {
+      if (e != null) {
+        cache.remove(key, prepared);
+      }
+    });
+    return prepared;
+  }
+
+  private CompletableFuture<List<JsonObject>> execute(String label, Scope scope, Prepared prepared,
+      JsonArray parameters, Deadline deadline) {
+    QueryOptions options = withDeadline(queryOptions().parameters(parameters)
+        .scanConsistency(QueryScanConsistency.REQUEST_PLUS), deadline);
+    return scope.async().query("EXECUTE `" + prepared.name + "`", options)
+        .thenApply(result -> {
+          // every EXECUTE after the first one saves a parse and plan
+          if (prepared.executed.getAndSet(true)) {
+            registry.timer("trycb.query.plan.saved", "statement", label).record(prepared.prepareNanos,
+                TimeUnit.NANOSECONDS);
+          }
+          return result.rowsAsObject();
+        });
+  }
+
+  private static QueryOptions withDeadline(QueryOptions options, Deadline deadline) {
+    if (deadline.isBounded()) {
+      options.timeout(deadline.remaining());
+    }
+    return options;
+  }
+
+  private static String key(Scope scope, String statement) {
+    return scope.bucketName() + "." + scope.name() + ":" + statement;
+  }
+
+  private static final class Prepared {
+    final String name;
+    final long prepareNanos;
+    final AtomicBoolean executed = new AtomicBoolean();
+
+    Prepared(String name, long prepareNanos) {
+      this.name = name;
+      this.prepareNanos = prepareNanos;
+    }
+  }
+
+}
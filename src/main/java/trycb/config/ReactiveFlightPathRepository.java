@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.List;
+
+import org.springframework.data.couchbase.repository.DynamicProxyable;
+import org.springframework.data.couchbase.repository.Query;
+import org.springframework.data.couchbase.repository.ReactiveCouchbaseRepository;
+import org.springframework.data.couchbase.repository.ScanConsistency;
+import org.springframework.data.couchbase.repository.Scope;
+import org.springframework.stereotype.Repository;
+
+import com.couchbase.client.java.query.QueryScanConsistency;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * Reactive counterpart of {@link FlightPathRepository}, for streaming results as the query returns them.
+ */
+@Repository("reactiveFlightPathRepository")
+@Scope("inventory")
+@ScanConsistency(query = QueryScanConsistency.REQUEST_PLUS)
+public interface ReactiveFlightPathRepository
+    extends ReactiveCouchbaseRepository<FlightPath, String>, DynamicProxyable<ReactiveFlightPathRepository> {
+
+  @Query(FlightPathRepository.FIND_FLIGHTS)
+  Flux<FlightPath> findFlights(String sourceAirport, String destinationAirport, Number day);
+
+  @Query(FlightPathRepository.FIND_FLIGHTS_BY_FAA)
+  Flux<FlightPath> findFlightsByFaa(List<String> sourceAirports, List<String> destinationAirports, Number day);
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Which airport pairs have a route scheduled on which day, when storage.reachability.enabled is set, so that flight
+ * path searches with no possible result skip their query.<br>
+ * Airport names, which the searches use, get dense ids, and one bit per (source, destination, day) tells whether the
+ * route join of FlightPathRepository.FIND_FLIGHTS may return anything: a megabyte for a thousand airports, four for
+ * two thousand. A bit is set for every route between airports with an FAA code, whether or not its airline exists, so
+ * a clear bit is certain and a set one only possible.<br>
+ * The bits are built from the {@link RouteSource} at startup, before the warm-up, and rebuilt every
+ * storage.reachability.refresh-s seconds; routes and airports added in between are only found once it runs. Until the
+ * first build succeeds every search runs its query. Searches skipped and run are counted by the Micrometer counter
+ * trycb.flightpath.reachability, tagged with their outcome.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class RouteReachability implements ApplicationRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RouteReachability.class);
+
+  // s.day of travel-sample is 0 to 6, and the searches ask for Calendar.DAY_OF_WEEK, 1 to 7
+  private static final int DAYS = 8;
+
+  private final boolean enabled;
+  private final RouteSource source;
+  private final MeterRegistry registry;
+  private volatile Reachable reachable;
+
+  public RouteReachability(@Value("${storage.reachability.enabled:false}") boolean enabled, RouteSource source,
+      MeterRegistry registry) {
+    this.enabled = enabled;
+    this.source = source;
+    this.registry = registry;
+  }
+
+  /**
+   * Whether there may be a flight from the airport to the other, by name, on the day; true when unknown.
+   */
+  public boolean mayHaveFlights(String from, String to, int day) {
+    return mayHaveFlights(Collections.singletonList(from), Collections.singletonList(to), day);
+  }
+
+  /**
+   * Whether there may be a flight from any of the airports to any of the others, by name, on the day; true when
+   * unknown.
+   */
+  public boolean mayHaveFlights(List<String> from, List<String> to, int day) {
+    Reachable reachable = this.reachable;
+    if (reachable == null || day < 0 || day >= DAYS) {
+      return true;
+    }
+    return count(reachable.hasAny(from, to, day));
+  }
+
+  /**
+   * Whether there may be a flight from the airport to the other, by name, on any day; true when unknown.
+   */
+  public boolean mayHaveFlights(String from, String to) {
+    return mayHaveFlights(Collections.singletonList(from), Collections.singletonList(to));
+  }
+
+  /**
+   * Whether there may be a flight from any of the airports to any of the others, by name, on any day; true when
+   * unknown.
+   */
+  public boolean mayHaveFlights(List<String> from, List<String> to) {
+    Reachable reachable = this.reachable;
+    if (reachable == null) {
+      return true;
+    }
+    for (int day = 0; day < DAYS; day++) {
+      if (reachable.hasAny(from, to, day)) {
+        return count(true);
+      }
+    }
+    return count(false);
+  }
+
+  private boolean count(boolean possible) {
+    registry.counter("trycb.flightpath.reachability", "outcome", possible ? "queried" : "skipped").increment();
+    return possible;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    refreshQuietly();
+  }
+
+  @Scheduled(initialDelayString = "${storage.reachability.refresh-s:300}",
+      fixedDelayString = "${storage.reachability.refresh-s:300}", timeUnit = TimeUnit.SECONDS)
+  public void refreshQuietly() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not build the route reachability, keeping the previous one", e);
+    }
+  }
+
+  /**
+   * Build the bits of every airport pair and day from the routes, and use them from now on.
+   */
+  public void refresh() {
+    long start = System.nanoTime();
+    Map<String, List<String>> names = source.airportNames();
+    Map<String, Integer> ids = new HashMap<>();
+    for (List<String> named : names.values()) {
+      for (String name : named) {
+        ids.putIfAbsent(name, ids.size());
+      }
+    }
+    if ((long) ids.size() * ids.size() * DAYS > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Too many airports for a reachability bitset: " + ids.size());
+    }
+    Reachable built = new Reachable(ids);
+    List<Map<String, Object>> routes = source.routes();
+    for (Map<String, Object> route : routes) {
+      List<String> sources = names.getOrDefault(route.get("sourceairport"), Collections.emptyList());
+      List<String> destinations = names.getOrDefault(route.get("destinationairport"), Collections.emptyList());
+      if (!(route.get("days") instanceof List)) {
+        // there is no schedule to unnest
+        continue;
+      }
+      // the join pairs every airport of the source code with every airport of the destination code
+      for (String from : sources) {
+        for (String to : destinations) {
+          int src = ids.get(from);
+          int dst = ids.get(to);
+          for (Object day : (List<?>) route.get("days")) {
+            int d = day instanceof Number ? ((Number) day).intValue() : -1;
+            if (d >= 0 && d < DAYS && ((Number) day).doubleValue() == d) {
+              built.bits.set(built.index(src, dst, d));
+            }
+          }
+        }
+      }
+    }
+    reachable = built;
+    LOGGER.info("Built the route reachability of {} airports from {} routes in {} ms, {} bytes", ids.size(),
+        routes.size(), (System.nanoTime() - start) / 1_000_000, built.bits.size() / 8);
+  }
+
+  private static final class Reachable {
+    final Map<String, Integer> ids;
+    final BitSet bits;
+
+    Reachable(Map<String, Integer> ids) {
+      this.ids = ids;
+      this.bits = new BitSet(ids.size() * ids.size() * DAYS);
+    }
+
+    int index(int src, int dst, int day) {
+      return (src * ids.size() + dst) * DAYS + day;
+    }
+
+    boolean has(String from, String to, int day) {
+      Integer src = ids.get(from);
+      Integer dst = ids.get(to);
+      // an airport of no name is joined with nothing
+      return src != null && dst != null && bits.get(index(src, dst, day));
+    }
+
+    boolean hasAny(List<String> from, List<String> to, int day) {
+      for (String src : from) {
+        for (String dst : to) {
+          if (has(src, dst, day)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+}
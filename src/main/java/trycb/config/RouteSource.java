@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The airports, airlines and routes of the inventory, read in full to build the {@link RouteReachability} of every
+ * airport pair, the {@link InventoryDictionary} and the {@link AirportAutocomplete} index.
+ */
+public interface RouteSource {
+
+  /**
+   * Every airport with an FAA code, in the shape of trycb.config.Airport.toMap().
+   */
+  List<Map<String, Object>> airports();
+
+  /**
+   * The names of the airports with an FAA code, by code. Codes aren't unique, so a code may have several airports,
+   * and a route from it leaves from each of them.
+   */
+  default Map<String, List<String>> airportNames() {
+    Map<String, List<String>> names = new HashMap<>();
+    for (Map<String, Object> airport : airports()) {
+      List<String> named = names.computeIfAbsent((String) airport.get("faa"), faa -> new ArrayList<>(1));
+      String name = (String) airport.get("airportname");
+      if (name != null && !named.contains(name)) {
+        named.add(name);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * The "id" and "name" of every airline, by document id, the key routes refer to them by.
+   */
+  Map<String, Map<String, Object>> airlines();
+
+  /**
+   * Every route, with its "sourceairport" and "destinationairport" FAA codes and the distinct "days" of its schedule.
+   */
+  List<Map<String, Object>> routes();
+
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.couchbase.CouchbaseClientFactory;
+import org.springframework.stereotype.Component;
+
+import com.couchbase.client.core.error.CouchbaseException;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.manager.collection.CollectionSpec;
+import com.couchbase.client.java.manager.collection.ScopeSpec;
+
+/**
+ * Warms the application up before it reports itself ready. Spring Boot only moves the readiness state to
+ * ACCEPTING_TRAFFIC once all ApplicationRunners are done, so /actuator/health/readiness stays down until this is.<br>
+ * The stages, each timed and reported by the warmup actuator endpoint:
+ * <ol>
+ * <li>connections: wait for the cluster and bucket, and resolve every collection of the bucket</li>
+ * <li>prepare: with storage.query.prepared, prepare the statements the services run</li>
+ * <li>queries: run every repository query method once</li>
+ * <li>requests: send warmup.rounds rounds of representative requests, in parallel, through the running server, to
+ * warm up the JIT, Spring MVC and Jackson along with the services</li>
+ * </ol>
+ * A stage that fails is logged and reported, and the warm-up goes on with the next one.
+ */
+@Component
+public class Warmup implements ApplicationRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Warmup.class);
+
+  private final ApplicationContext context;
+  private final ObjectProvider<CouchbaseClientFactory> clientFactory;
+  private final AirportRepository airportRepository;
+  private final FlightPathRepository flightPathRepository;
+  private final ReactiveAirportRepository reactiveAirportRepository;
+  private final ReactiveFlightPathRepository reactiveFlightPathRepository;
+  private final PreparedQueries preparedQueries;
+
+  @Value("${warmup.enabled:true}") private boolean enabled;
+
+  @Value("${warmup.rounds:20}") private int rounds;
+
+  @Value("${warmup.timeout-s:60}") private int timeoutSeconds;
+
+  @Value("${warmup.paths:/api/airports?search=SFO}") private List<String> paths;
+
+  private final Map<String, Map<String, Object>> stages = new LinkedHashMap<>();
+  private String status = "pending";
+  private long totalMillis;
+
+  public Warmup(ApplicationContext context, ObjectProvider<CouchbaseClientFactory> clientFactory,
+      AirportRepository airportRepository, FlightPathRepository flightPathRepository,
+      ReactiveAirportRepository reactiveAirportRepository,
+      ReactiveFlightPathRepository reactiveFlightPathRepository, PreparedQueries preparedQueries) {
+    this.context = context;
+    this.clientFactory = clientFactory;
+    this.airportRepository = airportRepository;
+    this.flightPathRepository = flightPathRepository;
+    this.reactiveAirportRepository = reactiveAirportRepository;
+    this.reactiveFlightPathRepository = reactiveFlightPathRepository;
+    this.preparedQueries = preparedQueries;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    if (!enabled) {
+      setStatus("disabled");
+      return;
+    }
+    setStatus("running");
+    long start = System.nanoTime();
+
+    CouchbaseClientFactory factory = clientFactory.getIfAvailable();
+    if (factory == null) {
+      skip("connections", "no Couchbase cluster");
+    } else {
+      stage("connections", () -> openCollections(factory));
+      if (preparedQueries.isEnabled()) {
+        stage("prepare", () -> prepareStatements(factory));
+      }
+    }
+    stage("queries", this::runQueries);
+    if (context instanceof WebServerApplicationContext
+        && ((WebServerApplicationContext) context).getWebServer() != null) {
+      int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+      stage("requests", () -> sendRequests(port));
+    } else {
+      skip("requests", "no web server");
+    }
+
+    synchronized (this) {
+      totalMillis = (System.nanoTime() - start) / 1_000_000;
+      status = "done";
+    }
+    LOGGER.info("Warm-up done in {} ms: {}", totalMillis, stages);
+  }
+
+  /**
+   * The state of the warm-up and the time taken by each stage.
+   */
+  public synchronized Map<String, Object> report() {
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("status", status);
+    report.put("millis", totalMillis);
+    report.put("stages", new LinkedHashMap<>(stages));
+    return report;
+  }
+
+  private String openCollections(CouchbaseClientFactory factory) {
+    Duration timeout = Duration.ofSeconds(timeoutSeconds);
+    factory.getCluster().waitUntilReady(timeout);
+    Bucket bucket = factory.getBucket();
+    bucket.waitUntilReady(timeout);
+    int opened = 0;
+    for (ScopeSpec scope : bucket.collections().getAllScopes()) {
+      for (CollectionSpec collection : scope.collections()) {
+        try {
+          // the first operation on a collection resolves its id, a miss does that as well as a hit
+          bucket.scope(scope.name()).collection(collection.name()).exists("warmup");
+          opened++;
+        } catch (CouchbaseException e) {
+          LOGGER.debug("Could not open {}.{}", scope.name(), collection.name(), e);
+        }
+      }
+    }
+    return opened + " collections";
+  }
+
+  private String prepareStatements(CouchbaseClientFactory factory) {
+    Scope inventory = factory.getBucket().scope("inventory");
+    CompletableFuture.allOf(preparedQueries.prepare("airport.faa", inventory, AirportRepository.FAA_QUERY),
+        preparedQueries.prepare("airport.icao", inventory, AirportRepository.ICAO_QUERY),
+        preparedQueries.prepare("airport.name", inventory, AirportRepository.NAME_PREFIX_QUERY),
+        preparedQueries.prepare("flightpath.flights", inventory, FlightPathRepository.FIND_FLIGHTS)).join();
+    return "4 statements";
+  }
+
+  private String runQueries() {
+    airportRepository.findById("airport_3469"); // SFO
+    airportRepository.findByFaa("SFO");
+    airportRepository.findByIcao("KSFO");
+    airportRepository.findByAirportnameStartsWith("SAN");
+    flightPathRepository.findFlights("San Francisco Intl", "Los Angeles Intl", 1);
+    reactiveAirportRepository.findByFaa("SFO").collectList().block();
+    reactiveAirportRepository.findByIcao("KSFO").collectList().block();
+    reactiveAirportRepository.findByAirportnameStartsWith("SAN").collectList().block();
+    reactiveFlightPathRepository.findFlights("San Francisco Intl", "Los Angeles Intl", 1).collectList().block();
+    return "9 queries";
+  }
+
+  private String sendRequests(int port) {
+    HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(timeoutSeconds)).build();
+    int failed = 0;
+    for (int round = 0; round < rounds; round++) {
+      List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>(paths.size());
+      for (String path : paths) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path.trim()))
+            .timeout(Duration.ofSeconds(timeoutSeconds)).build();
+        responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+      }
+      for (CompletableFuture<HttpResponse<byte[]>> response : responses) {
+        if (response.join().statusCode() >= 400) {
+          failed++;
+        }
+      }
+    }
+    return rounds * paths.size() + " requests, " + failed + " failed";
+  }
+
+  private void stage(String name, Callable<String> work) {
+    LOGGER.info("Warm-up stage {}", name);
+    long start = System.nanoTime();
+    Map<String, Object> stage = new LinkedHashMap<>();
+    try {
+      stage.put("detail", work.call());
+      stage.put("status", "done");
+    } catch (Exception e) {
+      LOGGER.warn("Warm-up stage {} failed", name, e);
+      stage.put("detail", String.valueOf(e.getMessage()));
+      stage.put("status", "failed");
+    }
+    stage.put("millis", (System.nanoTime() - start) / 1_000_000);
+    synchronized (this) {
+      stages.put(name, stage);
+    }
+  }
+
+  private synchronized void skip(String name, String reason) {
+    Map<String, Object> stage = new LinkedHashMap<>();
+    stage.put("detail", reason);
+    stage.put("status", "skipped");
+    stage.put("millis", 0L);
+    stages.put(name, stage);
+  }
+
+  private synchronized void setStatus(String status) {
+    this.status = status;
+  }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.model;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+/**
+ * A booking document as read from Couchbase, JSON bytes that are copied token by token into the response when it is
+ * written, without building a Booking or a Map in between. The copy has the fields of Booking.toMap() only, the
+ * bookingId first: the type and price of the document are left out.
+ */
+public class RawBooking implements JsonSerializable {
+
+    /**
+     * The document fields a booking response has, besides the bookingId that is the document id.
+     */
+    public static final Set<String> FIELDS = Set.of("name", "sourceairport", "destinationairport", "airlineid", "utc",
+            "date", "flight", "day");
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final String bookingId;
+    private final byte[] content;
+    private final Predicate<String> fields;
+
+    /**
+     * @param fields which of the response fields to write.
+     */
+    public RawBooking(String bookingId, byte[] content, Predicate<String> fields) {
+        this.bookingId = bookingId;
+        this.content = content;
+        this.fields = fields;
+    }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeStartObject();
+        if (fields.test("bookingId")) {
+            gen.writeStringField("bookingId", bookingId);
+        }
+        // always parsed as JSON, whatever the format of the response
+        try (JsonParser parser = JSON.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Booking " + bookingId + " is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (FIELDS.contains(name) && fields.test(name)) {
+                    gen.writeFieldName(name);
+                    gen.copyCurrentStructure(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+            throws IOException {
+        serialize(gen, serializers);
+    }
+}
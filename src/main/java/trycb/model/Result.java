@@ -22,6 +22,8 @@
 
 package trycb.model;
 
+import java.util.Arrays;
+
 /**
  * A standardized result format for successful responses, that the frontend
  * application can interpret for all endpoints. Allows to contain user-facing
@@ -43,6 +45,15 @@ public class Result<T> implements IValue {
         return new Result<T>(data, contexts);
     }
 
+    /**
+     * The same data, with one more context string after the others.
+     */
+    public Result<T> withContext(String context) {
+        String[] contexts = Arrays.copyOf(this.context, this.context.length + 1);
+        contexts[this.context.length] = context;
+        return new Result<T>(data, contexts);
+    }
+
     public T getData() {
         return data;
     }
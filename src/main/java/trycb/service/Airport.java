@@ -22,9 +22,14 @@
 
 package trycb.service;
 
+import static com.couchbase.client.java.query.QueryOptions.queryOptions;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,29 +37,149 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.query.QueryOptions;
+import com.couchbase.client.java.query.QueryResult;
+import com.couchbase.client.java.query.QueryScanConsistency;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import trycb.config.AirportAutocomplete;
+import trycb.config.AirportLookup;
 import trycb.config.AirportRepository;
+import trycb.config.PreparedQueries;
+import trycb.config.ReactiveAirportRepository;
 import trycb.model.Result;
+import trycb.util.Breaker;
+import trycb.util.Breakers;
+import trycb.util.Coalescing;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+import trycb.util.Futures;
+import trycb.util.Guarded;
+import trycb.util.SingleFlight;
 
 @Service
 @Component
 public class Airport {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Airport.class);
+
+    /**
+     * The fields of an airport search result, that fields= can choose from.
+     */
+    public static final Set<String> FIELDS = AirportRepository.COLUMNS.keySet();
+
+    /**
+     * The most airports suggest returns.
+     */
+    public static final int MAX_SUGGESTIONS = 50;
+
     private final AirportRepository airportRepository;
+    private final ReactiveAirportRepository reactiveAirportRepository;
+    private final PreparedQueries preparedQueries;
+    private final AirportLookup airportLookup;
+    private final AirportAutocomplete autocomplete;
+    private final SingleFlight singleFlight;
+    private final Breaker queryBreaker;
+    private final Breaker kvBreaker;
 
     @Autowired
-    public Airport(AirportRepository airportRepository) {
+    public Airport(AirportRepository airportRepository, ReactiveAirportRepository reactiveAirportRepository,
+            PreparedQueries preparedQueries, AirportLookup airportLookup, AirportAutocomplete autocomplete,
+            Coalescing coalescing, Breakers breakers) {
         this.airportRepository = airportRepository;
+        this.reactiveAirportRepository = reactiveAirportRepository;
+        this.preparedQueries = preparedQueries;
+        this.airportLookup = airportLookup;
+        this.autocomplete = autocomplete;
+        this.singleFlight = coalescing.singleFlight("airport");
+        this.queryBreaker = breakers.breaker(Breakers.QUERY);
+        this.kvBreaker = breakers.breaker(Breakers.KV);
+    }
+
+    /**
+     * Find all airports. Identical concurrent searches share one. While the circuit of the service answering the
+     * search is open, the last result of the same search is returned, marked stale in its context.
+     */
+    public Result<List<Map<String, Object>>> findAll(String params) {
+        return findAll(params, Fields.ALL);
+    }
+
+    /**
+     * Find all airports, with the given fields only, selecting only those.
+     */
+    public Result<List<Map<String, Object>>> findAll(String params, Fields fields) {
+        String key = params + fields.key();
+        return singleFlight.join(key, () -> orStale(breaker(params).call(key, () -> search(params, fields))));
+    }
+
+    /**
+     * Find all airports without blocking, running the same search through the SDK's async API. Identical concurrent
+     * searches share one, and open circuits are handled as by {@link #findAll(String)}.
+     */
+    public CompletableFuture<Result<List<Map<String, Object>>>> findAllAsync(String params) {
+        return findAllAsync(params, Fields.ALL);
     }
 
     /**
-     * Find all airports.
+     * Find all airports without blocking, with the given fields only.
      */
-    public Result<List<Map<String, Object>>> findAll( String params) {
+    public CompletableFuture<Result<List<Map<String, Object>>>> findAllAsync(String params, Fields fields) {
+        String key = params + fields.key();
+        return singleFlight.run(key,
+                () -> breaker(params).callAsync(key, () -> searchAsync(params, fields)).thenApply(Airport::orStale));
+    }
+
+    /**
+     * Suggest at most limit airports for a search being typed, from the in-memory {@link AirportAutocomplete} index:
+     * one typo is tolerated and the airports with the most routes come first. Until the index is built, the first
+     * airports found by findAll are returned instead.
+     *
+     * @throws IllegalArgumentException for a limit out of 1 to {@link #MAX_SUGGESTIONS}.
+     */
+    public Result<List<Map<String, Object>>> suggest(String search, int limit) {
+        if (limit < 1 || limit > MAX_SUGGESTIONS) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_SUGGESTIONS);
+        }
+        if (!autocomplete.isReady()) {
+            Result<List<Map<String, Object>>> found = findAll(search);
+            List<Map<String, Object>> first = found.getData();
+            return Result.of(new ArrayList<>(first.subList(0, Math.min(limit, first.size()))), found.getContext());
+        }
+        return Result.of(autocomplete.suggest(search, limit), "In-memory autocomplete: ",
+                "suggest(" + search + ", " + limit + ")");
+    }
+
+    /**
+     * The breaker of the service that answers the search: KV for a lookup, else query.
+     */
+    private Breaker breaker(String params) {
+        return lookupKind(params) != null ? kvBreaker : queryBreaker;
+    }
+
+    private static <T> Result<T> orStale(Guarded<Result<T>> guarded) {
+        return guarded.isStale() ? guarded.getValue().withContext(guarded.staleContext()) : guarded.getValue();
+    }
+
+    private Result<List<Map<String, Object>>> search(String params, Fields fields) {
+        if (preparedQueries.isEnabled() || lookupKind(params) != null || !fields.isAll()) {
+            // the repository can't EXECUTE a prepared statement, get a lookup nor select some fields, the async search
+            // can
+            return Futures.join(searchAsync(params, fields));
+        }
         boolean sameCase = (params.equals(params.toUpperCase()) || params.equals(params.toLowerCase()));
         List<trycb.config.Airport> airports = null;
         params = params.toUpperCase();
         String query=null;
+        AirportRepository airportRepository = this.airportRepository;
+        Deadline deadline = Deadline.current();
+        if (deadline.isBounded()) {
+            airportRepository = airportRepository.withOptions(withDeadline(queryOptions(), deadline));
+        }
         if (params.length() == 3 && sameCase) {
             query = "airportRepository.findByFaa("+params+")";
             try {
@@ -81,6 +206,137 @@ public class Airport {
         return Result.of(airportList, querytype, query);
     }
 
+    private CompletableFuture<Result<List<Map<String, Object>>>> searchAsync(String params, Fields fields) {
+        Deadline deadline = Deadline.current();
+        String kind = lookupKind(params);
+        if (kind != null) {
+            String code = params.toUpperCase();
+            String get = "get(" + AirportLookup.key(kind, code) + ")";
+            logQuery(get);
+            return deadline.bind(airportLookup.find(kind, code)
+                    .thenApply(airports -> Result.of(fields.apply(airports), "KV get - scoped to inventory: ", get)));
+        }
+        boolean sameCase = (params.equals(params.toUpperCase()) || params.equals(params.toLowerCase()));
+        params = params.toUpperCase();
+        String query;
+        String label;
+        if (params.length() == 3 && sameCase) {
+            query = AirportRepository.FAA_QUERY;
+            label = "airport.faa";
+        } else if (params.length() == 4 && sameCase) {
+            query = AirportRepository.ICAO_QUERY;
+            label = "airport.icao";
+        } else {
+            query = AirportRepository.NAME_PREFIX_QUERY;
+            label = "airport.name";
+        }
+        String statement = fields.select(query, AirportRepository.COLUMNS);
+
+        logQuery(statement + " [" + params + "]");
+
+        String querytype;
+        CompletableFuture<List<JsonObject>> found;
+        if (preparedQueries.isEnabled()) {
+            querytype = "N1QL prepared query - scoped to inventory: ";
+            found = preparedQueries.query(label, inventory(), statement, JsonArray.from(params), deadline);
+        } else {
+            querytype = "N1QL query - scoped to inventory: ";
+            found = inventory().async()
+                    .query(statement, withDeadline(queryOptions().parameters(JsonArray.from(params))
+                            .scanConsistency(QueryScanConsistency.REQUEST_PLUS), deadline))
+                    .thenApply(QueryResult::rowsAsObject);
+        }
+        return deadline.bind(found.thenApply(rows -> {
+            List<Map<String, Object>> airportList = new ArrayList<>(rows.size());
+            for (JsonObject row : rows) {
+                airportList.add(fields.apply(toMap(row)));
+            }
+            return Result.of(airportList, querytype, statement);
+        }));
+    }
+
+    /**
+     * Find all airports, emitting each one as soon as the query returns it.
+     */
+    public Flux<Map<String, Object>> findAllStream(String params) {
+        Deadline deadline = Deadline.current();
+        String kind = lookupKind(params);
+        if (kind != null) {
+            String code = params.toUpperCase();
+            logQuery("get(" + AirportLookup.key(kind, code) + ")");
+            return deadline.bind(kvBreaker.stream(() -> Mono.fromFuture(() -> airportLookup.find(kind, code))
+                    .flatMapIterable(airports -> airports)));
+        }
+        boolean sameCase = (params.equals(params.toUpperCase()) || params.equals(params.toLowerCase()));
+        params = params.toUpperCase();
+        Flux<trycb.config.Airport> airports;
+        ReactiveAirportRepository reactiveAirportRepository = this.reactiveAirportRepository;
+        if (preparedQueries.isEnabled() || deadline.isBounded()) {
+            // adhoc(false) leaves preparing to the SDK, as Spring Data can only pass options along
+            reactiveAirportRepository = reactiveAirportRepository
+                    .withOptions(withDeadline(queryOptions().adhoc(!preparedQueries.isEnabled()), deadline));
+        }
+        if (params.length() == 3 && sameCase) {
+            logQuery("reactiveAirportRepository.findByFaa(" + params + ")");
+            airports = reactiveAirportRepository.findByFaa(params);
+        } else if (params.length() == 4 && sameCase) {
+            logQuery("reactiveAirportRepository.findByIcao(" + params + ")");
+            airports = reactiveAirportRepository.findByIcao(params);
+        } else {
+            logQuery("reactiveAirportRepository.findByAirportnameStartsWith(" + params + ")");
+            airports = reactiveAirportRepository.findByAirportnameStartsWith(params);
+        }
+        Flux<trycb.config.Airport> found = airports;
+        return deadline.bind(queryBreaker.stream(() -> found).map(trycb.config.Airport::toMap));
+    }
+
+    /**
+     * The options, with the time left until the deadline as their timeout when it is bounded.
+     */
+    private static QueryOptions withDeadline(QueryOptions options, Deadline deadline) {
+        if (deadline.isBounded()) {
+            options.timeout(deadline.remaining());
+        }
+        return options;
+    }
+
+    /**
+     * "faa" or "icao" when the search is an exact code that the lookup documents can answer, else null.
+     */
+    private String lookupKind(String params) {
+        if (airportLookup == null || !airportLookup.isEnabled()) {
+            return null;
+        }
+        boolean sameCase = (params.equals(params.toUpperCase()) || params.equals(params.toLowerCase()));
+        if (params.length() == 3 && sameCase) {
+            return "faa";
+        } else if (params.length() == 4 && sameCase) {
+            return "icao";
+        }
+        return null;
+    }
+
+    /**
+     * The inventory scope, looked up when first needed so that stand-in repositories never have to provide one.
+     */
+    private Scope inventory() {
+        return airportRepository.getOperations().getCouchbaseClientFactory().getBucket().scope("inventory");
+    }
+
+    /**
+     * Same shape as trycb.config.Airport.toMap(), including the fields a document does not have.
+     */
+    private static Map<String, Object> toMap(JsonObject row) {
+        Map<String, Object> map = new HashMap<>(6);
+        map.put("id", row.getString("id"));
+        map.put("airportname", row.getString("airportname"));
+        map.put("faa", row.getString("faa"));
+        map.put("city", row.getString("city"));
+        map.put("country", row.getString("country"));
+        map.put("icao", row.getString("icao"));
+        return map;
+    }
+
     /**
      * Helper method to log the executing query.
      */
@@ -22,57 +22,488 @@
 
 package trycb.service;
 
+import static com.couchbase.client.java.query.QueryOptions.queryOptions;
+
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.query.QueryOptions;
+import com.couchbase.client.java.query.QueryResult;
+import com.couchbase.client.java.query.QueryScanConsistency;
+
+import reactor.core.publisher.Flux;
 
 import trycb.config.FlightPathRepository;
+import trycb.config.InventoryDictionary;
+import trycb.config.PreparedQueries;
+import trycb.config.ReactiveFlightPathRepository;
+import trycb.config.RouteReachability;
 import trycb.model.Result;
+import trycb.util.Breaker;
+import trycb.util.Breakers;
+import trycb.util.Coalescing;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+import trycb.util.Futures;
+import trycb.util.Guarded;
+import trycb.util.SingleFlight;
 
 @Service
 public class FlightPath {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(FlightPath.class);
 
+  /**
+   * The fields of a flight path search result, that fields= can choose from: the columns of the query and the booking
+   * details.
+   */
+  public static final Set<String> FIELDS;
+
+  static {
+    Set<String> fields = new HashSet<>(FlightPathRepository.COLUMNS.keySet());
+    fields.add("flighttime");
+    fields.add("price");
+    fields.add("date");
+    FIELDS = Collections.unmodifiableSet(fields);
+  }
+
+  /**
+   * The longest range of dates findRange searches.
+   */
+  public static final int MAX_DAYS = 31;
+
+  private static final String NO_ROUTE = "No route scheduled between these airports, query skipped";
+
   private final FlightPathRepository flightPathRepository;
+  private final ReactiveFlightPathRepository reactiveFlightPathRepository;
+  private final PreparedQueries preparedQueries;
+  private final SingleFlight singleFlight;
+  private final Breaker breaker;
+  private final RouteReachability reachability;
+  private final InventoryDictionary dictionary;
 
   @Autowired
-  public FlightPath(FlightPathRepository flightPathRepository) {
+  public FlightPath(FlightPathRepository flightPathRepository,
+      ReactiveFlightPathRepository reactiveFlightPathRepository, PreparedQueries preparedQueries,
+      Coalescing coalescing, Breakers breakers, RouteReachability reachability, InventoryDictionary dictionary) {
     this.flightPathRepository = flightPathRepository;
+    this.reactiveFlightPathRepository = reactiveFlightPathRepository;
+    this.preparedQueries = preparedQueries;
+    this.singleFlight = coalescing.singleFlight("flightpath");
+    this.breaker = breakers.breaker(Breakers.QUERY);
+    this.reachability = reachability;
+    this.dictionary = dictionary;
   }
 
   /**
-   * Find all flight paths.
+   * Find all flight paths. Identical concurrent searches share one query, and each adds its own booking details to
+   * its own copy of the rows. While the query circuit is open, the last rows of the same search are used instead and
+   * the result is marked stale in its context.
    */
   public Result<List<Map<String, Object>>> findAll(String from,
       String to, Calendar leave) {
+    return findAll(from, to, leave, Fields.ALL);
+  }
+
+  /**
+   * Find all flight paths, with the given fields only, selecting only those. Once the InventoryDictionary is ready,
+   * the airports may also be given by FAA code.
+   */
+  public Result<List<Map<String, Object>>> findAll(String from, String to, Calendar leave, Fields fields) {
+    if (!mayHaveFlights(from, to, leave.get(Calendar.DAY_OF_WEEK))) {
+      return noRoute();
+    }
+    if (dictionary.isReady() && !preparedQueries.isEnabled()) {
+      return findByFaa(from, to, leave, fields);
+    }
+    if (preparedQueries.isEnabled() || !fields.isAll()) {
+      // the repository can't EXECUTE a prepared statement nor select some fields, the async search can
+      return Futures.join(findAllAsync(from, to, leave, fields));
+    }
     String query = "flightPathRepository.findFlights(" + from + ", " + to + ", " + leave.get(Calendar.DAY_OF_WEEK)
         + ")";
     logQuery(query);
 
-    List<trycb.config.FlightPath> flightPaths = flightPathRepository.findFlights(from, to,
-        leave.get(Calendar.DAY_OF_WEEK));
+    int day = leave.get(Calendar.DAY_OF_WEEK);
+    Deadline deadline = Deadline.current();
+    FlightPathRepository flightPathRepository = deadline.isBounded()
+        ? this.flightPathRepository.withOptions(withDeadline(queryOptions(), deadline)) : this.flightPathRepository;
+    String key = "repository:" + from + "|" + to + "|" + day;
+    Guarded<List<trycb.config.FlightPath>> flightPaths = singleFlight.join(key,
+        () -> breaker.call(key, () -> flightPathRepository.findFlights(from, to, day)));
+    Random rand = new Random();
+    List<Map<String, Object>> data = new LinkedList<Map<String, Object>>();
+    for (trycb.config.FlightPath f : flightPaths.getValue()) {
+      data.add(addBookingDetails(f.toMap(), rand, leave));
+    }
+
+    String querytype = "N1QL query - scoped to inventory: ";
+    return orStale(Result.of(data, querytype, query), flightPaths);
+  }
+
+  /**
+   * Find all flight paths without blocking, running the repository's statement through the SDK's async API. The rows
+   * are coalesced like those of findAll.
+   */
+  public CompletableFuture<Result<List<Map<String, Object>>>> findAllAsync(String from, String to, Calendar leave) {
+    return findAllAsync(from, to, leave, Fields.ALL);
+  }
+
+  /**
+   * Find all flight paths without blocking, with the given fields only.
+   */
+  public CompletableFuture<Result<List<Map<String, Object>>>> findAllAsync(String from, String to, Calendar leave,
+      Fields fields) {
+    int day = leave.get(Calendar.DAY_OF_WEEK);
+    if (!mayHaveFlights(from, to, day)) {
+      return CompletableFuture.completedFuture(noRoute());
+    }
+    if (dictionary.isReady()) {
+      return findByFaaAsync(from, to, leave, fields);
+    }
+    Deadline deadline = Deadline.current();
+    String query = fields.select(FlightPathRepository.FIND_FLIGHTS, FlightPathRepository.COLUMNS);
+    logQuery(query + " [" + from + ", " + to + ", " + day + "]");
+
+    String querytype = preparedQueries.isEnabled() ? "N1QL prepared query - scoped to inventory: "
+        : "N1QL query - scoped to inventory: ";
+    String key = "query:" + from + "|" + to + "|" + day + fields.key();
+    CompletableFuture<Guarded<List<JsonObject>>> found = singleFlight.run(key, () -> breaker.callAsync(key, () -> {
+      if (preparedQueries.isEnabled()) {
+        return preparedQueries.query("flightpath.flights", inventory(), query, JsonArray.from(from, to, day),
+            deadline);
+      }
+      return inventory().async()
+          .query(query, withDeadline(queryOptions().parameters(JsonArray.from(from, to, day))
+              .scanConsistency(QueryScanConsistency.REQUEST_PLUS), deadline))
+          .thenApply(QueryResult::rowsAsObject);
+    }));
+    return deadline.bind(found).thenApply(rows -> {
+      Random rand = new Random();
+      List<Map<String, Object>> data = new LinkedList<Map<String, Object>>();
+      for (JsonObject row : rows.getValue()) {
+        data.add(fields.apply(addBookingDetails(toMap(row), rand, leave)));
+      }
+      return orStale(Result.of(data, querytype, query), rows);
+    });
+  }
+
+  /**
+   * Find all flight paths between the FAA codes of the airports, given by code or name, without joining the airport
+   * and airline collections; the airline comes from the InventoryDictionary. Only the booking details are left out
+   * of the rows for fields, the route columns are read whole.
+   */
+  private Result<List<Map<String, Object>>> findByFaa(String from, String to, Calendar leave, Fields fields) {
+    List<String> sources = dictionary.faaCodes(from);
+    List<String> destinations = dictionary.faaCodes(to);
+    if (sources.isEmpty() || destinations.isEmpty()) {
+      return noRoute();
+    }
+    int day = leave.get(Calendar.DAY_OF_WEEK);
+    String query = "flightPathRepository.findFlightsByFaa(" + sources + ", " + destinations + ", " + day + ")";
+    logQuery(query);
+
+    Deadline deadline = Deadline.current();
+    FlightPathRepository flightPathRepository = deadline.isBounded()
+        ? this.flightPathRepository.withOptions(withDeadline(queryOptions(), deadline)) : this.flightPathRepository;
+    String key = "faa-repository:" + sources + "|" + destinations + "|" + day;
+    Guarded<List<trycb.config.FlightPath>> flightPaths = singleFlight.join(key,
+        () -> breaker.call(key, () -> flightPathRepository.findFlightsByFaa(sources, destinations, day)));
     Random rand = new Random();
     List<Map<String, Object>> data = new LinkedList<Map<String, Object>>();
-    for (trycb.config.FlightPath f : flightPaths) {
+    for (trycb.config.FlightPath f : flightPaths.getValue()) {
+      Map<String, Object> row = f.toMap();
+      if (dictionary.putAirline((String) row.get("airlineid"), row)) {
+        data.add(fields.apply(addBookingDetails(row, rand, leave)));
+      }
+    }
+
+    String querytype = "N1QL query - scoped to inventory: ";
+    return orStale(Result.of(data, querytype, query), flightPaths);
+  }
+
+  /**
+   * findByFaa without blocking, through the SDK's async API like findAllAsync.
+   */
+  private CompletableFuture<Result<List<Map<String, Object>>>> findByFaaAsync(String from, String to,
+      Calendar leave, Fields fields) {
+    List<String> sources = dictionary.faaCodes(from);
+    List<String> destinations = dictionary.faaCodes(to);
+    if (sources.isEmpty() || destinations.isEmpty()) {
+      return CompletableFuture.completedFuture(noRoute());
+    }
+    int day = leave.get(Calendar.DAY_OF_WEEK);
+    Deadline deadline = Deadline.current();
+    String query = FlightPathRepository.FIND_FLIGHTS_BY_FAA;
+    JsonArray parameters = JsonArray.from(JsonArray.from(sources), JsonArray.from(destinations), day);
+    logQuery(query + " " + parameters);
+
+    String querytype = preparedQueries.isEnabled() ? "N1QL prepared query - scoped to inventory: "
+        : "N1QL query - scoped to inventory: ";
+    String key = "faa-query:" + sources + "|" + destinations + "|" + day;
+    CompletableFuture<Guarded<List<JsonObject>>> found = singleFlight.run(key, () -> breaker.callAsync(key, () -> {
+      if (preparedQueries.isEnabled()) {
+        return preparedQueries.query("flightpath.flightsByFaa", inventory(), query, parameters, deadline);
+      }
+      return inventory().async()
+          .query(query, withDeadline(queryOptions().parameters(parameters)
+              .scanConsistency(QueryScanConsistency.REQUEST_PLUS), deadline))
+          .thenApply(QueryResult::rowsAsObject);
+    }));
+    return deadline.bind(found).thenApply(rows -> {
+      Random rand = new Random();
+      List<Map<String, Object>> data = new LinkedList<Map<String, Object>>();
+      for (JsonObject row : rows.getValue()) {
+        Map<String, Object> map = toMap(row);
+        if (dictionary.putAirline(row.getString("airlineid"), map)) {
+          data.add(fields.apply(addBookingDetails(map, rand, leave)));
+        }
+      }
+      return orStale(Result.of(data, querytype, query), rows);
+    });
+  }
+
+  /**
+   * Find all flight paths, emitting each one as soon as the query returns it. Once the InventoryDictionary is ready,
+   * the airports may also be given by FAA code, as with findAll.
+   */
+  public Flux<Map<String, Object>> findAllStream(String from, String to, Calendar leave) {
+    int day = leave.get(Calendar.DAY_OF_WEEK);
+    if (!mayHaveFlights(from, to, day)) {
+      return Flux.empty();
+    }
+    Random rand = new Random();
+    Deadline deadline = Deadline.current();
+    ReactiveFlightPathRepository repository = reactiveRepository(deadline);
+    if (dictionary.isReady()) {
+      List<String> sources = dictionary.faaCodes(from);
+      List<String> destinations = dictionary.faaCodes(to);
+      if (sources.isEmpty() || destinations.isEmpty()) {
+        return Flux.empty();
+      }
+      logQuery("reactiveFlightPathRepository.findFlightsByFaa(" + sources + ", " + destinations + ", " + day + ")");
+      return deadline.bind(breaker.stream(() -> repository.findFlightsByFaa(sources, destinations, day))
+          .map(f -> f.toMap())
+          .filter(row -> dictionary.putAirline((String) row.get("airlineid"), row))
+          .map(row -> addBookingDetails(row, rand, leave)));
+    }
+    logQuery("reactiveFlightPathRepository.findFlights(" + from + ", " + to + ", " + day + ")");
+    return deadline.bind(breaker.stream(() -> repository.findFlights(from, to, day))
+        .map(f -> addBookingDetails(f.toMap(), rand, leave)));
+  }
+
+  /**
+   * The reactive repository, with the options that prepared statements and the deadline need.
+   */
+  private ReactiveFlightPathRepository reactiveRepository(Deadline deadline) {
+    if (preparedQueries.isEnabled() || deadline.isBounded()) {
+      // adhoc(false) leaves preparing to the SDK, as Spring Data can only pass options along
+      return reactiveFlightPathRepository
+          .withOptions(withDeadline(queryOptions().adhoc(!preparedQueries.isEnabled()), deadline));
+    }
+    return reactiveFlightPathRepository;
+  }
+
+  /**
+   * Find the flight paths of each of the given number of days from leave, with a single query for every day of the
+   * week, as the schedule only depends on the day. The rows are grouped by day in one pass, and each date gets its
+   * own booking details. With top, only the first top flights of each date are kept, in the order of sort ("price"
+   * or "departure"), without sorting the rest.<br>
+   * The data has one entry per date, with its "date" and its "flights". Once the InventoryDictionary is ready, the
+   * airports may also be given by FAA code, as with findAll.
+   *
+   * @throws IllegalArgumentException for a range of more than {@link #MAX_DAYS} days or an unknown sort.
+   */
+  public Result<List<Map<String, Object>>> findRange(String from, String to, Calendar leave, int days, String sort,
+      int top, Fields fields) {
+    if (days < 1 || days > MAX_DAYS) {
+      throw new IllegalArgumentException("days must be between 1 and " + MAX_DAYS);
+    }
+    Comparator<Map<String, Object>> order = order(sort);
+    boolean byFaa = dictionary.isReady();
+    List<String> sources = byFaa ? dictionary.faaCodes(from) : null;
+    List<String> destinations = byFaa ? dictionary.faaCodes(to) : null;
+    String query = byFaa ? "flightPathRepository.findFlightsByFaaAllDays(" + sources + ", " + destinations + ")"
+        : "flightPathRepository.findFlightsAllDays(" + from + ", " + to + ")";
+    boolean reachable = mayHaveFlights(from, to) && (!byFaa || !sources.isEmpty() && !destinations.isEmpty());
+    if (reachable) {
+      logQuery(query);
+    }
+
+    Deadline deadline = Deadline.current();
+    FlightPathRepository flightPathRepository = deadline.isBounded()
+        ? this.flightPathRepository.withOptions(withDeadline(queryOptions(), deadline)) : this.flightPathRepository;
+    String key = byFaa ? "faa-repository:" + sources + "|" + destinations : "repository:" + from + "|" + to;
+    Guarded<List<trycb.config.FlightPath>> flightPaths = reachable
+        ? singleFlight.join(key, () -> breaker.call(key, () -> byFaa
+            ? flightPathRepository.findFlightsByFaaAllDays(sources, destinations)
+            : flightPathRepository.findFlightsAllDays(from, to)))
+        : null;
+    Map<Object, List<Map<String, Object>>> byDay = new HashMap<>();
+    for (trycb.config.FlightPath f : flightPaths != null ? flightPaths.getValue()
+        : Collections.<trycb.config.FlightPath>emptyList()) {
       Map<String, Object> row = f.toMap();
-      row.put("flighttime", rand.nextInt(8000));
-      row.put("price", Math.ceil((Integer) row.get("flighttime") / 8 * 100) / 100);
-      row.put("date", leave.getTime());
-      data.add(row);
+      if (byFaa && !dictionary.putAirline((String) row.get("airlineid"), row)) {
+        continue;
+      }
+      byDay.computeIfAbsent(row.get("day"), d -> new ArrayList<>()).add(row);
     }
 
+    Random rand = new Random();
+    Calendar date = (Calendar) leave.clone();
+    List<Map<String, Object>> data = new ArrayList<>(days);
+    for (int i = 0; i < days; i++, date.add(Calendar.DATE, 1)) {
+      List<Map<String, Object>> flights = new ArrayList<>();
+      for (Map<String, Object> row : byDay.getOrDefault(date.get(Calendar.DAY_OF_WEEK), Collections.emptyList())) {
+        flights.add(addBookingDetails(new HashMap<>(row), rand, date));
+      }
+      flights = top > 0 ? top(flights, order, top) : sorted(flights, order);
+      flights.replaceAll(row -> fields.apply(row));
+      Map<String, Object> day = new HashMap<>(2);
+      day.put("date", date.getTime());
+      day.put("flights", flights);
+      data.add(day);
+    }
+
+    if (flightPaths == null) {
+      return Result.of(data, NO_ROUTE);
+    }
     String querytype = "N1QL query - scoped to inventory: ";
-    return Result.of(data, querytype, query);
+    return orStale(Result.of(data, querytype, query), flightPaths);
+  }
+
+  /**
+   * The flights in the order of the given sort, null for the order of the query.
+   */
+  private static Comparator<Map<String, Object>> order(String sort) {
+    if (sort == null || sort.isEmpty()) {
+      return null;
+    }
+    switch (sort) {
+      case "price":
+        return Comparator.comparingDouble(row -> (Double) row.get("price"));
+      case "departure":
+        return Comparator.comparing(row -> (String) row.get("utc"), Comparator.nullsLast(Comparator.naturalOrder()));
+      default:
+        throw new IllegalArgumentException("Unknown sort " + sort + ", expected price or departure");
+    }
+  }
+
+  private static List<Map<String, Object>> sorted(List<Map<String, Object>> flights,
+      Comparator<Map<String, Object>> order) {
+    if (order != null) {
+      flights.sort(order);
+    }
+    return flights;
+  }
+
+  /**
+   * The first k flights in order, kept in a heap of at most k + 1 whose head is the last of those kept so far, so the
+   * rest are only compared with it and never sorted.
+   */
+  private static List<Map<String, Object>> top(List<Map<String, Object>> flights,
+      Comparator<Map<String, Object>> order, int k) {
+    if (order == null || flights.size() <= k) {
+      return sorted(new ArrayList<>(flights.subList(0, Math.min(k, flights.size()))), order);
+    }
+    PriorityQueue<Map<String, Object>> heap = new PriorityQueue<>(k + 1, order.reversed());
+    for (Map<String, Object> flight : flights) {
+      heap.offer(flight);
+      if (heap.size() > k) {
+        heap.poll();
+      }
+    }
+    List<Map<String, Object>> first = new ArrayList<>(heap);
+    first.sort(order);
+    return first;
+  }
+
+  /**
+   * Whether RouteReachability allows for flights between the airports, given by name or, with the dictionary, code,
+   * in which case between any of the airports of the codes.
+   */
+  private boolean mayHaveFlights(String from, String to, int day) {
+    return reachability.mayHaveFlights(dictionary.airportNames(from), dictionary.airportNames(to), day);
+  }
+
+  /**
+   * Whether RouteReachability allows for flights between the airports on any day, given as by mayHaveFlights.
+   */
+  private boolean mayHaveFlights(String from, String to) {
+    return reachability.mayHaveFlights(dictionary.airportNames(from), dictionary.airportNames(to));
+  }
+
+  /**
+   * The empty result of a search that RouteReachability or the InventoryDictionary rules out, without a query.
+   */
+  private static Result<List<Map<String, Object>>> noRoute() {
+    return Result.of(new LinkedList<Map<String, Object>>(), NO_ROUTE);
+  }
+
+  private static <T> Result<T> orStale(Result<T> result, Guarded<?> rows) {
+    return rows.isStale() ? result.withContext(rows.staleContext()) : result;
+  }
+
+  /**
+   * Made-up flight time and price, and the requested date, that the frontend shows for each flight.
+   */
+  private static Map<String, Object> addBookingDetails(Map<String, Object> row, Random rand, Calendar leave) {
+    row.put("flighttime", rand.nextInt(8000));
+    row.put("price", Math.ceil((Integer) row.get("flighttime") / 8 * 100) / 100);
+    row.put("date", leave.getTime());
+    return row;
+  }
+
+  /**
+   * The options, with the time left until the deadline as their timeout when it is bounded.
+   */
+  private static QueryOptions withDeadline(QueryOptions options, Deadline deadline) {
+    if (deadline.isBounded()) {
+      options.timeout(deadline.remaining());
+    }
+    return options;
+  }
+
+  /**
+   * The inventory scope, looked up when first needed so that stand-in repositories never have to provide one.
+   */
+  private Scope inventory() {
+    return flightPathRepository.getOperations().getCouchbaseClientFactory().getBucket().scope("inventory");
+  }
+
+  /**
+   * Same shape as trycb.config.FlightPath.toMap(); airlineid is a number in the airline document.
+   */
+  private static Map<String, Object> toMap(JsonObject row) {
+    Map<String, Object> map = new HashMap<>(6);
+    map.put("name", row.getString("name"));
+    map.put("flight", row.getString("flight"));
+    map.put("airlineid", row.get("airlineid") == null ? null : String.valueOf(row.get("airlineid")));
+    map.put("utc", row.getString("utc"));
+    map.put("day", row.getInt("day"));
+    map.put("sourceairport", row.getString("sourceairport"));
+    map.put("destinationairport", row.getString("destinationairport"));
+    map.put("equipment", row.getString("equipment"));
+    return map;
   }
 
   /**
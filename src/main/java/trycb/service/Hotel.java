@@ -29,10 +29,14 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.stereotype.Service;
 
@@ -41,56 +45,208 @@ import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.Collection;
 import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.kv.LookupInOptions;
 import com.couchbase.client.java.kv.LookupInResult;
+import com.couchbase.client.java.kv.LookupInSpec;
 import com.couchbase.client.java.search.SearchOptions;
 import com.couchbase.client.java.search.SearchQuery;
 import com.couchbase.client.java.search.queries.ConjunctionQuery;
 import com.couchbase.client.java.search.result.SearchResult;
 import com.couchbase.client.java.search.result.SearchRow;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
 import trycb.config.HotelRepository;
+import trycb.config.HotelSuggestions;
 import trycb.model.Result;
+import trycb.util.Breaker;
+import trycb.util.Breakers;
+import trycb.util.Coalescing;
+import trycb.util.Deadline;
+import trycb.util.FanOut;
+import trycb.util.Fields;
+import trycb.util.Futures;
+import trycb.util.Guarded;
+import trycb.util.SingleFlight;
 
 @Service
+@Profile("!embedded") // replaced by EmbeddedHotel
 public class Hotel {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Hotel.class);
+  private static final int STREAM_LOOKAHEAD = 16;
+  private static final String QUERY_TYPE = "FTS search - scoped to: inventory.hotel within fields country, city, "
+      + "state, address, name, description";
+
+  /**
+   * The fields of a hotel search result, that fields= can choose from.
+   */
+  public static final Set<String> FIELDS = Set.of("name", "description", "address");
+
+  /**
+   * The most hotels suggest returns.
+   */
+  public static final int MAX_SUGGESTIONS = 50;
 
   private HotelRepository hotelRepository;
   private Cluster cluster;
   private Bucket bucket;
+  private FanOut fanOut;
+  private SingleFlight singleFlight;
+  private Breaker breaker;
+  private HotelSuggestions suggestions;
 
   @Autowired
-  public Hotel(HotelRepository hotelRepository) {
+  public Hotel(HotelRepository hotelRepository, FanOut fanOut, Coalescing coalescing, Breakers breakers,
+      HotelSuggestions suggestions) {
     this.hotelRepository = hotelRepository;
+    this.fanOut = fanOut;
+    this.suggestions = suggestions;
+    this.singleFlight = coalescing.singleFlight("hotel");
+    this.breaker = breakers.breaker(Breakers.SEARCH);
     // use the Java SDK cluster and bucket objects directly.
     this.cluster = hotelRepository.getOperations().getCouchbaseClientFactory().getCluster();
     this.bucket = hotelRepository.getOperations().getCouchbaseClientFactory().getBucket();
   }
 
   /**
-   * Search for a hotel in a particular location.
+   * For stand-ins that search without a cluster.
+   */
+  protected Hotel(Coalescing coalescing, Breakers breakers, HotelSuggestions suggestions) {
+    this.suggestions = suggestions;
+    this.singleFlight = coalescing.singleFlight("hotel");
+    this.breaker = breakers.breaker(Breakers.SEARCH);
+  }
+
+  /**
+   * Search for a hotel in a particular location. Identical concurrent searches share one. While the search circuit
+   * is open, the last result of the same search is returned, marked stale in its context.
    */
   public Result<List<Map<String, Object>>> findHotels(final String location, final String description) {
-    ConjunctionQuery fts = SearchQuery.conjuncts(SearchQuery.term("hotel").field("type"));
+    return findHotels(location, description, Fields.ALL);
+  }
 
-    if (location != null && !location.isEmpty() && !"*".equals(location)) {
-      fts.and(SearchQuery.disjuncts(SearchQuery.matchPhrase(location).field("country"),
-          SearchQuery.matchPhrase(location).field("city"), SearchQuery.matchPhrase(location).field("state"),
-          SearchQuery.matchPhrase(location).field("address")));
-    }
+  /**
+   * Search for a hotel in a particular location, with the given fields only, looking up only those.
+   */
+  public Result<List<Map<String, Object>>> findHotels(final String location, final String description,
+      Fields fields) {
+    String key = location + "|" + description + fields.key();
+    return singleFlight.join(key, () -> orStale(breaker.call(key, () -> search(location, description, fields))));
+  }
 
-    if (description != null && !description.isEmpty() && !"*".equals(description)) {
-      fts.and(SearchQuery.disjuncts(SearchQuery.matchPhrase(description).field("description"),
-          SearchQuery.matchPhrase(description).field("name")));
+  /**
+   * Search for a hotel in a particular location without blocking. Identical concurrent searches share one, and an
+   * open search circuit is handled as by findHotels.
+   */
+  public CompletableFuture<Result<List<Map<String, Object>>>> findHotelsAsync(final String location,
+      final String description) {
+    return findHotelsAsync(location, description, Fields.ALL);
+  }
+
+  /**
+   * Search for a hotel in a particular location without blocking, with the given fields only.
+   */
+  public CompletableFuture<Result<List<Map<String, Object>>>> findHotelsAsync(final String location,
+      final String description, Fields fields) {
+    String key = location + "|" + description + fields.key();
+    return singleFlight.run(key,
+        () -> breaker.callAsync(key, () -> searchAsync(location, description, fields)).thenApply(Hotel::orStale));
+  }
+
+  /**
+   * The first hotels, at most limit, whose name or city words start with the words of the search, from the
+   * in-memory {@link HotelSuggestions} index, with their document "id", "name" and "city". None until the index is
+   * filled: the full search is too slow to run on every key stroke.
+   *
+   * @throws IllegalArgumentException for a limit out of 1 to {@link #MAX_SUGGESTIONS}.
+   */
+  public Result<List<Map<String, Object>>> suggest(String search, int limit) {
+    if (limit < 1 || limit > MAX_SUGGESTIONS) {
+      throw new IllegalArgumentException("limit must be between 1 and " + MAX_SUGGESTIONS);
+    }
+    if (!suggestions.isReady()) {
+      return Result.of(new ArrayList<>(), "No suggestions, the hotel suggestion index is not ready");
     }
+    return Result.of(suggestions.suggest(search, limit), "In-memory suggestions: ",
+        "suggest(" + search + ", " + limit + ")");
+  }
+
+  private static <T> Result<T> orStale(Guarded<Result<T>> guarded) {
+    return guarded.isStale() ? guarded.getValue().withContext(guarded.staleContext()) : guarded.getValue();
+  }
+
+  /**
+   * The search behind findHotels.
+   */
+  protected Result<List<Map<String, Object>>> search(final String location, final String description,
+      Fields fields) {
+    ConjunctionQuery fts = ftsQuery(location, description);
 
     logQuery(fts.export().toString());
-    SearchOptions opts = SearchOptions.searchOptions().limit(100);
-    SearchResult result = cluster.searchQuery("hotels-index", fts, opts);
+    Deadline deadline = Deadline.current();
+    SearchResult result = cluster.searchQuery("hotels-index", fts, searchOptions(deadline));
 
-    String queryType = "FTS search - scoped to: inventory.hotel within fields country, city, state, address, name, description";
-    return Result.of(extractResultOrThrow(result), queryType);
+    return Result.of(extractResultOrThrow(result, deadline, fields), QUERY_TYPE);
+  }
+
+  /**
+   * The search behind findHotelsAsync. The search and the lookups of the hotels it found run through the SDK's async
+   * API, and the lookups are all in flight at once.
+   */
+  protected CompletableFuture<Result<List<Map<String, Object>>>> searchAsync(final String location,
+      final String description, Fields fields) {
+    ConjunctionQuery fts = ftsQuery(location, description);
+
+    logQuery(fts.export().toString());
+    Deadline deadline = Deadline.current();
+    Collection collection = bucket.scope("inventory").collection("hotel");
+    List<LookupInSpec> specs = lookupSpecs(fields);
+    // past the deadline lookupInOptions() fails, so the lookups not started yet never are
+    CompletableFuture<Result<List<Map<String, Object>>>> found = cluster.async()
+        .searchQuery("hotels-index", fts, searchOptions(deadline)).thenCompose(result -> {
+      checkErrors(result);
+      List<CompletableFuture<Map<String, Object>>> rows = new ArrayList<>(result.rows().size());
+      for (SearchRow row : result.rows()) {
+        rows.add(collection.async().lookupIn(row.id(), specs, lookupInOptions(deadline)).handle((res, e) -> {
+          if (e == null) {
+            return toRow(res, fields);
+          }
+          if (Futures.unwrap(e) instanceof DocumentNotFoundException) {
+            return null;
+          }
+          throw new CompletionException(Futures.unwrap(e));
+        }));
+      }
+      return Futures.allOf(rows);
+    }).thenApply(content -> Result.of(content, QUERY_TYPE));
+    return deadline.bind(found);
+  }
+
+  /**
+   * Search for a hotel in a particular location, emitting each hotel as soon as it has been looked up. Lookups run
+   * ahead of the consumer by at most STREAM_LOOKAHEAD hotels.
+   */
+  public Flux<Map<String, Object>> findHotelsStream(final String location, final String description) {
+    ConjunctionQuery fts = ftsQuery(location, description);
+
+    logQuery(fts.export().toString());
+    Deadline deadline = Deadline.current();
+    Collection collection = bucket.scope("inventory").collection("hotel");
+    Flux<Map<String, Object>> hotels = Flux.defer(() -> cluster.reactive()
+        .searchQuery("hotels-index", fts, searchOptions(deadline))
+        .flatMapMany(result -> result.rows().flatMapSequential(row -> collection.reactive()
+            .lookupIn(row.id(), lookupSpecs(), lookupInOptions(deadline)).map(Hotel::toRow)
+            .onErrorResume(DocumentNotFoundException.class, e -> Mono.empty()), STREAM_LOOKAHEAD)
+        .concatWith(result.metaData().<Map<String, Object>>flatMap(metaData -> {
+          if (metaData.metrics().errorPartitionCount() > 0) {
+            LOGGER.warn("Query returned with errors: " + metaData.errors());
+            return Mono.error(new DataRetrievalFailureException("Query error: " + metaData.errors()));
+          }
+          return Mono.empty();
+        }))));
+    return deadline.bind(breaker.stream(() -> hotels));
   }
 
   /**
@@ -107,55 +263,159 @@ public class Hotel {
     return findHotels("*", "*");
   }
 
+  /**
+   * The hotel search, narrowed by location and description unless they are empty or "*".
+   */
+  private static ConjunctionQuery ftsQuery(final String location, final String description) {
+    ConjunctionQuery fts = SearchQuery.conjuncts(SearchQuery.term("hotel").field("type"));
+
+    if (location != null && !location.isEmpty() && !"*".equals(location)) {
+      fts.and(SearchQuery.disjuncts(SearchQuery.matchPhrase(location).field("country"),
+          SearchQuery.matchPhrase(location).field("city"), SearchQuery.matchPhrase(location).field("state"),
+          SearchQuery.matchPhrase(location).field("address")));
+    }
+
+    if (description != null && !description.isEmpty() && !"*".equals(description)) {
+      fts.and(SearchQuery.disjuncts(SearchQuery.matchPhrase(description).field("description"),
+          SearchQuery.matchPhrase(description).field("name")));
+    }
+    return fts;
+  }
+
   /**
    * Extract a FTS result or throw if there is an issue.
    */
-  private List<Map<String, Object>> extractResultOrThrow(SearchResult result) {
+  private List<Map<String, Object>> extractResultOrThrow(SearchResult result, Deadline deadline, Fields fields) {
+    checkErrors(result);
+
+    // the lookups are blocking calls, made side by side on the fan-out threads; those not started by the deadline
+    // are skipped
+    Scope scope = bucket.scope("inventory");
+    Collection collection = scope.collection("hotel");
+    List<LookupInSpec> specs = lookupSpecs(fields);
+    List<CompletableFuture<Map<String, Object>>> content = new ArrayList<>(result.rows().size());
+    for (SearchRow row : result.rows()) {
+      content.add(fanOut.submit(() -> {
+        try {
+          return toRow(collection.lookupIn(row.id(), specs, lookupInOptions(deadline)), fields);
+        } catch (DocumentNotFoundException ex) {
+          return null;
+        }
+      }));
+    }
+    return Futures.join(deadline.bind(Futures.allOf(content)));
+  }
+
+  /**
+   * At most 100 hits, within the deadline.
+   */
+  private static SearchOptions searchOptions(Deadline deadline) {
+    SearchOptions opts = SearchOptions.searchOptions().limit(100);
+    if (deadline.isBounded()) {
+      opts.timeout(deadline.remaining());
+    }
+    return opts;
+  }
+
+  /**
+   * A lookup within the deadline, which fails at once when it has passed.
+   */
+  private static LookupInOptions lookupInOptions(Deadline deadline) {
+    LookupInOptions opts = LookupInOptions.lookupInOptions();
+    if (deadline.isBounded()) {
+      opts.timeout(deadline.remaining());
+    }
+    return opts;
+  }
+
+  private static void checkErrors(SearchResult result) {
     if (result.metaData().metrics().errorPartitionCount() > 0) {
       LOGGER.warn("Query returned with errors: " + result.metaData().errors());
       throw new DataRetrievalFailureException("Query error: " + result.metaData().errors());
     }
+  }
 
-    List<Map<String, Object>> content = new ArrayList<Map<String, Object>>();
-    for (SearchRow row : result.rows()) {
+  /**
+   * The hotel fields a result row is built from, in the order toRow(LookupInResult) reads them.
+   */
+  private static List<LookupInSpec> lookupSpecs() {
+    return Arrays.asList(get("country"), get("city"), get("state"), get("address"), get("name"), get("description"));
+  }
 
-      LookupInResult res;
-      try {
-        Scope scope = bucket.scope("inventory");
-        Collection collection = scope.collection("hotel");
-        res = collection.lookupIn(row.id(),
-            Arrays.asList(get("country"), get("city"), get("state"), get("address"), get("name"), get("description")));
-      } catch (DocumentNotFoundException ex) {
-        continue;
-      }
+  /**
+   * The hotel fields the given result fields are built from, in the order toRow(LookupInResult, Fields) reads them.
+   */
+  private static List<LookupInSpec> lookupSpecs(Fields fields) {
+    if (fields.isAll()) {
+      return lookupSpecs();
+    }
+    List<LookupInSpec> specs = new ArrayList<>(6);
+    if (fields.has("address")) {
+      specs.addAll(Arrays.asList(get("country"), get("city"), get("state"), get("address")));
+    }
+    if (fields.has("name")) {
+      specs.add(get("name"));
+    }
+    if (fields.has("description")) {
+      specs.add(get("description"));
+    }
+    return specs;
+  }
 
-      Map<String, Object> map = new HashMap<String, Object>();
+  private static Map<String, Object> toRow(LookupInResult res) {
+    String country = res.contentAs(0, String.class);
+    String city = res.contentAs(1, String.class);
+    String state = res.contentAs(2, String.class);
+    String address = res.contentAs(3, String.class);
 
-      String country = res.contentAs(0, String.class);
-      String city = res.contentAs(1, String.class);
-      String state = res.contentAs(2, String.class);
-      String address = res.contentAs(3, String.class);
+    return toRow(res.contentAs(4, String.class), res.contentAs(5, String.class), address, city, state, country);
+  }
 
-      StringBuilder fullAddr = new StringBuilder();
-      if (address != null)
-        fullAddr.append(address).append(", ");
-      if (city != null)
-        fullAddr.append(city).append(", ");
-      if (state != null)
-        fullAddr.append(state).append(", ");
-      if (country != null)
-        fullAddr.append(country);
+  private static Map<String, Object> toRow(LookupInResult res, Fields fields) {
+    if (fields.isAll()) {
+      return toRow(res);
+    }
+    int i = 0;
+    Map<String, Object> map = new HashMap<String, Object>();
+    if (fields.has("address")) {
+      String country = res.contentAs(i++, String.class);
+      String city = res.contentAs(i++, String.class);
+      String state = res.contentAs(i++, String.class);
+      map.putAll(toRow(null, null, res.contentAs(i++, String.class), city, state, country));
+    }
+    if (fields.has("name")) {
+      map.put("name", res.contentAs(i++, String.class));
+    }
+    if (fields.has("description")) {
+      map.put("description", res.contentAs(i++, String.class));
+    }
+    return fields.apply(map);
+  }
+
+  /**
+   * Build a result row for a hotel, assembling the full address from its parts.
+   */
+  protected static Map<String, Object> toRow(String name, String description, String address, String city,
+      String state, String country) {
+    Map<String, Object> map = new HashMap<String, Object>();
 
-      if (fullAddr.length() > 2 && fullAddr.charAt(fullAddr.length() - 2) == ',')
-        fullAddr.delete(fullAddr.length() - 2, fullAddr.length() - 1);
+    StringBuilder fullAddr = new StringBuilder();
+    if (address != null)
+      fullAddr.append(address).append(", ");
+    if (city != null)
+      fullAddr.append(city).append(", ");
+    if (state != null)
+      fullAddr.append(state).append(", ");
+    if (country != null)
+      fullAddr.append(country);
 
-      map.put("name", res.contentAs(4, String.class));
-      map.put("description", res.contentAs(5, String.class));
-      map.put("address", fullAddr.toString());
+    if (fullAddr.length() > 2 && fullAddr.charAt(fullAddr.length() - 2) == ',')
+      fullAddr.delete(fullAddr.length() - 2, fullAddr.length() - 1);
 
-      content.add(map);
-    }
-    return content;
+    map.put("name", name);
+    map.put("description", description);
+    map.put("address", fullAddr.toString());
+    return map;
   }
 
   /**
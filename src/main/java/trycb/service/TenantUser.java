@@ -25,12 +25,19 @@ package trycb.service;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.AuthenticationCredentialsNotFoundException;
 import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.crypto.bcrypt.BCrypt;
@@ -38,39 +45,88 @@ import org.springframework.stereotype.Service;
 
 import com.couchbase.client.core.error.DocumentNotFoundException;
 import com.couchbase.client.core.msg.kv.DurabilityLevel;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.codec.RawJsonTranscoder;
 import com.couchbase.client.java.json.JsonArray;
 import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.kv.GetOptions;
+import com.couchbase.client.java.kv.MutationResult;
 import com.couchbase.client.java.kv.UpsertOptions;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
 import trycb.config.Booking;
 import trycb.config.BookingRepository;
+import trycb.config.KvReads;
+import trycb.config.ReactiveBookingRepository;
+import trycb.config.ReactiveUserRepository;
 import trycb.config.User;
 import trycb.config.UserRepository;
+import trycb.model.RawBooking;
 import trycb.model.Result;
+import trycb.util.BatchLoader;
+import trycb.util.Batching;
+import trycb.util.Breaker;
+import trycb.util.Breakers;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+import trycb.util.Futures;
+import trycb.util.Hedge;
+import trycb.util.Hedging;
 
 @Service
 public class TenantUser {
 
+  private static final int STREAM_LOOKAHEAD = 16;
+
+  /**
+   * The fields of a booking, that fields= can choose from.
+   */
+  public static final Set<String> BOOKING_FIELDS = Set.of("name", "bookingId", "sourceairport", "destinationairport",
+      "airlineid", "utc", "date", "flight", "day");
+
   private final TokenService jwtService;
   private final UserRepository userRepository;
   private final BookingRepository bookingRepository;
+  private final ReactiveUserRepository reactiveUserRepository;
+  private final ReactiveBookingRepository reactiveBookingRepository;
+  private final KvReads kvReads;
+  private final Breaker breaker;
 
-  public TenantUser(TokenService tokenService, UserRepository userRepository, BookingRepository bookingRepository) {
+  @Value("${storage.bookings.raw:false}") private boolean rawBookings;
+  private final BatchLoader<User> users;
+  private final BatchLoader<Booking> bookings;
+
+  public TenantUser(TokenService tokenService, UserRepository userRepository, BookingRepository bookingRepository,
+      ReactiveUserRepository reactiveUserRepository, ReactiveBookingRepository reactiveBookingRepository,
+      Batching batching, KvReads kvReads, Hedging hedging, Breakers breakers) {
     this.jwtService = tokenService;
     this.userRepository = userRepository;
     this.bookingRepository = bookingRepository;
+    this.reactiveUserRepository = reactiveUserRepository;
+    this.reactiveBookingRepository = reactiveBookingRepository;
+    this.kvReads = kvReads;
+    this.breaker = breakers.breaker(Breakers.KV);
+    // the reads of the blocking paths that only read, batched across requests per tenant, hedged, and failing fast
+    // while the KV circuit is open, as users and bookings are never served stale
+    Hedge userHedge = hedging.hedge("users");
+    Hedge bookingHedge = hedging.hedge("bookings");
+    this.users = batching.loader("users", (tenant, ids) -> read(userHedge, tenant, "users", ids, User.class,
+        user -> user.name, () -> userRepository.withScope(tenant).findAllById(ids)));
+    this.bookings = batching.loader("bookings", (tenant, ids) -> read(bookingHedge, tenant, "bookings", ids,
+        Booking.class, booking -> booking.bookingId, () -> bookingRepository.withScope(tenant).findAllById(ids)));
   }
 
   /**
    * Try to log the given tenant user in.
    */
   public Result<Map<String, Object>> login(final String tenant, final String username, final String password) {
-    UserRepository userRepository = this.userRepository.withScope(tenant);
     String queryType = String.format("KV get - scoped to %s.users: for password field in document %s", tenant,
         username);
     Optional<User> userHolder;
     try {
-      userHolder = userRepository.findById(username);
+      userHolder = Futures.join(Deadline.current().bind(users.load(tenant, username)));
     } catch (DocumentNotFoundException ex) {
       throw new AuthenticationCredentialsNotFoundException("Bad Username or Password");
     }
@@ -173,12 +229,20 @@ public class TenantUser {
   }
 
   public Result<List<Map<String, Object>>> getFlightsForUser(final String tenant, final String username) {
-    UserRepository userRepository = this.userRepository.withScope(tenant);
-    BookingRepository bookingRepository = this.bookingRepository.withScope(tenant);
+    return getFlightsForUser(tenant, username, Fields.ALL);
+  }
+
+  /**
+   * Get the bookings of the given tenant user, with the given fields only. The bookings are read whole, as the reads
+   * are shared with other requests.
+   */
+  public Result<List<Map<String, Object>>> getFlightsForUser(final String tenant, final String username,
+      Fields fields) {
+    Deadline deadline = Deadline.current();
     Optional<User> userDoc;
 
     try {
-      userDoc = userRepository.findById(username);
+      userDoc = Futures.join(deadline.bind(users.load(tenant, username)));
     } catch (DocumentNotFoundException ex) {
       return Result.of(Collections.emptyList());
     }
@@ -188,22 +252,358 @@ public class TenantUser {
       return Result.of(Collections.emptyList());
     }
 
-    // The "flights" array contains flight ids. Convert them to actual objects.
-    List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+    // The "flights" array contains flight ids. Convert them to actual objects, all asked for at once so that they
+    // are read in as few batches as possible.
+    List<CompletableFuture<Map<String, Object>>> bookings = new ArrayList<>(flights.length);
     for (String flightId : flights) {
-      Optional<Booking> res;
-      try {
-        res = bookingRepository.findById(flightId);
-      } catch (DocumentNotFoundException ex) {
-        throw new RuntimeException("Unable to retrieve flight id " + flightId);
-      }
-      Map<String, Object> flight = res.get().toMap();
-      results.add(flight);
+      bookings.add(this.bookings.load(tenant, flightId).thenApply(res -> res
+          .orElseThrow(() -> new RuntimeException("Unable to retrieve flight id " + flightId)).toMap())
+          .thenApply(row -> fields.apply(row)));
     }
+    List<Map<String, Object>> results = Futures.join(deadline.bind(Futures.allOf(bookings)));
 
     String queryType = String.format("KV get - scoped to %s.user: for %d bookings in document %s", tenant,
         results.size(), username);
     return Result.of(results, queryType);
   }
 
+  /**
+   * Whether bookings are read as raw JSON, see getRawFlightsForUser.
+   */
+  public boolean isRawBookings() {
+    return rawBookings;
+  }
+
+  /**
+   * Get the bookings of the given tenant user, with the given fields only, as the JSON of their documents. The
+   * bookings are read side by side with the raw JSON transcoder, and copied into the response as it is written,
+   * without decoding them into a Booking and a Map first.
+   */
+  public Result<List<RawBooking>> getRawFlightsForUser(final String tenant, final String username, Fields fields) {
+    Deadline deadline = Deadline.current();
+    Optional<User> userDoc;
+    try {
+      userDoc = Futures.join(deadline.bind(users.load(tenant, username)));
+    } catch (DocumentNotFoundException ex) {
+      return Result.of(Collections.emptyList());
+    }
+    String[] flights = userDoc.get().getFlightIds();
+    if (flights == null) {
+      return Result.of(Collections.emptyList());
+    }
+    return Futures.join(deadline.bind(readRawBookings(tenant, username, Arrays.asList(flights), fields, deadline)));
+  }
+
+  /**
+   * Get the bookings of the given tenant user as by getRawFlightsForUser, without blocking.
+   */
+  public CompletableFuture<Result<List<RawBooking>>> getRawFlightsForUserAsync(final String tenant,
+      final String username, Fields fields) {
+    Deadline deadline = Deadline.current();
+    CompletableFuture<Result<List<RawBooking>>> found = collection(tenant, "users").async()
+        .get(username, getOptions(deadline)).handle((userDoc, e) -> {
+      if (e != null) {
+        if (Futures.unwrap(e) instanceof DocumentNotFoundException) {
+          return null;
+        }
+        throw new CompletionException(Futures.unwrap(e));
+      }
+      return userDoc.contentAsObject().getArray("flightIds");
+    }).thenCompose(flights -> {
+      if (flights == null) {
+        return CompletableFuture.completedFuture(Result.<List<RawBooking>>of(Collections.emptyList()));
+      }
+      List<String> ids = new ArrayList<>(flights.size());
+      for (Object id : flights) {
+        ids.add((String) id);
+      }
+      return readRawBookings(tenant, username, ids, fields, deadline);
+    });
+    return deadline.bind(found);
+  }
+
+  private CompletableFuture<Result<List<RawBooking>>> readRawBookings(String tenant, String username,
+      List<String> flightIds, Fields fields, Deadline deadline) {
+    Collection bookings = collection(tenant, "bookings");
+    List<CompletableFuture<RawBooking>> gets = new ArrayList<>(flightIds.size());
+    for (String flightId : flightIds) {
+      GetOptions options = project(getOptions(deadline), fields).transcoder(RawJsonTranscoder.INSTANCE);
+      gets.add(bookings.async().get(flightId, options).handle((res, e) -> {
+        if (e != null) {
+          throw bookingFailure(flightId, e);
+        }
+        return new RawBooking(flightId, res.contentAs(byte[].class), fields::has);
+      }));
+    }
+    return Futures.allOf(gets).thenApply(results -> {
+      String queryType = String.format("KV get, raw JSON - scoped to %s.user: for %d bookings in document %s", tenant,
+          results.size(), username);
+      return Result.of(results, queryType);
+    });
+  }
+
+  /**
+   * Get the bookings of the given tenant user, emitting each booking as soon as it has been read. Reads run ahead of
+   * the consumer by at most STREAM_LOOKAHEAD bookings.
+   */
+  public Flux<Map<String, Object>> getFlightsForUserStream(final String tenant, final String username) {
+    ReactiveBookingRepository bookingRepository = this.reactiveBookingRepository.withScope(tenant);
+    return Deadline.current().bind(reactiveUserRepository.withScope(tenant).findById(username)
+        .flatMapMany(userData -> userData.getFlightIds() == null ? Flux.<String>empty()
+            : Flux.fromArray(userData.getFlightIds()))
+        .flatMapSequential(flightId -> bookingRepository.findById(flightId)
+            .switchIfEmpty(Mono.error(() -> new RuntimeException("Unable to retrieve flight id " + flightId))),
+            STREAM_LOOKAHEAD)
+        .map(Booking::toMap));
+  }
+
+  /*
+   * The async variants below do the same work as the methods above with the SDK's async API, reading and writing
+   * the documents as JSON in the shape Spring Data maps User and Booking to, so both paths share the same data.
+   */
+
+  /**
+   * Try to log the given tenant user in without blocking on the user lookup.
+   */
+  public CompletableFuture<Result<Map<String, Object>>> loginAsync(final String tenant, final String username,
+      final String password) {
+    String queryType = String.format("KV get - scoped to %s.users: for password field in document %s", tenant,
+        username);
+    Deadline deadline = Deadline.current();
+    // handleAsync, as BCrypt is far too slow to run on the SDK's own threads
+    return deadline.bind(collection(tenant, "users").async().get(username, getOptions(deadline))
+        .handleAsync((userDoc, e) -> {
+      if (e != null) {
+        if (Futures.unwrap(e) instanceof DocumentNotFoundException) {
+          throw new AuthenticationCredentialsNotFoundException("Bad Username or Password");
+        }
+        throw new CompletionException(Futures.unwrap(e));
+      }
+      if (BCrypt.checkpw(password, userDoc.contentAsObject().getString("password"))) {
+        Map<String, Object> data = JsonObject.create().put("token", jwtService.buildToken(username)).toMap();
+        return Result.of(data, queryType);
+      } else {
+        throw new AuthenticationCredentialsNotFoundException("Bad Username or Password");
+      }
+    }));
+  }
+
+  /**
+   * Create a tenant user without blocking on the write.
+   */
+  public CompletableFuture<Result<Map<String, Object>>> createLoginAsync(final String tenant, final String username,
+      final String password, DurabilityLevel expiry) {
+    String passHash = BCrypt.hashpw(password, BCrypt.gensalt());
+    JsonObject user = JsonObject.create().put("type", "user").put("password", passHash);
+    UpsertOptions options = UpsertOptions.upsertOptions();
+    if (expiry.ordinal() > 0) {
+      options.durability(expiry);
+    }
+    String queryType = String.format("KV insert - scoped to %s.users: document %s", tenant, username);
+    return collection(tenant, "users").async().upsert(username, user, options).handle((res, e) -> {
+      if (e != null) {
+        throw new AuthenticationServiceException("There was an error creating account");
+      }
+      Map<String, Object> data = JsonObject.create().put("token", jwtService.buildToken(username)).toMap();
+      return Result.of(data, queryType);
+    });
+  }
+
+  /*
+   * Register a flight (or flights) for the given tenant user without blocking; the bookings are written concurrently.
+   */
+  public CompletableFuture<Result<Map<String, Object>>> registerFlightForUserAsync(final String tenant,
+      final String username, final JsonArray newFlights) {
+    Collection users = collection(tenant, "users");
+    Collection bookings = collection(tenant, "bookings");
+    String queryType = String.format("KV update - scoped to %s.user: for bookings field in document %s", tenant,
+        username);
+    return users.async().get(username).handle((userDoc, e) -> {
+      if (e != null) {
+        if (Futures.unwrap(e) instanceof DocumentNotFoundException) {
+          throw new IllegalStateException();
+        }
+        throw new CompletionException(Futures.unwrap(e));
+      }
+      if (newFlights == null) {
+        throw new IllegalArgumentException("No flights in payload");
+      }
+      for (Object newFlight : newFlights) {
+        checkFlight(newFlight);
+      }
+      return userDoc.contentAsObject();
+    }).thenCompose(userData -> {
+      JsonArray allBookedFlights = userData.getArray("flightIds");
+      if (allBookedFlights == null) {
+        allBookedFlights = JsonArray.create();
+      }
+      JsonArray added = JsonArray.create();
+      List<CompletableFuture<MutationResult>> writes = new ArrayList<>(newFlights.size());
+      for (Object newFlight : newFlights) {
+        JsonObject t = ((JsonObject) newFlight);
+        t.put("bookedon", "try-cb-spring");
+        String bookingId = UUID.randomUUID().toString();
+        writes.add(bookings.async().upsert(bookingId, toBookingDocument(t)));
+        allBookedFlights.add(bookingId);
+        added.add(t);
+      }
+      userData.put("flightIds", allBookedFlights);
+      return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]))
+          .thenCompose(v -> users.async().upsert(username, userData))
+          .thenApply(res -> Result.of(JsonObject.create().put("added", added).toMap(), queryType));
+    });
+  }
+
+  /**
+   * Get the bookings of the given tenant user without blocking; the bookings are read concurrently.
+   */
+  public CompletableFuture<Result<List<Map<String, Object>>>> getFlightsForUserAsync(final String tenant,
+      final String username) {
+    return getFlightsForUserAsync(tenant, username, Fields.ALL);
+  }
+
+  /**
+   * Get the bookings of the given tenant user without blocking, with the given fields only, reading only those.
+   */
+  public CompletableFuture<Result<List<Map<String, Object>>>> getFlightsForUserAsync(final String tenant,
+      final String username, Fields fields) {
+    Collection bookings = collection(tenant, "bookings");
+    Deadline deadline = Deadline.current();
+    CompletableFuture<Result<List<Map<String, Object>>>> found = collection(tenant, "users").async()
+        .get(username, getOptions(deadline)).handle((userDoc, e) -> {
+      if (e != null) {
+        if (Futures.unwrap(e) instanceof DocumentNotFoundException) {
+          return null;
+        }
+        throw new CompletionException(Futures.unwrap(e));
+      }
+      return userDoc.contentAsObject().getArray("flightIds");
+    }).thenCompose(flights -> {
+      if (flights == null) {
+        return CompletableFuture.completedFuture(Result.<List<Map<String, Object>>>of(Collections.emptyList()));
+      }
+
+      // The "flights" array contains flight ids. Convert them to actual objects.
+      List<CompletableFuture<Map<String, Object>>> gets = new ArrayList<>(flights.size());
+      for (Object id : flights) {
+        String flightId = (String) id;
+        gets.add(bookings.async().get(flightId, project(getOptions(deadline), fields)).handle((res, e) -> {
+          if (e != null) {
+            throw bookingFailure(flightId, e);
+          }
+          return fields.apply(toBookingMap(flightId, res.contentAsObject()));
+        }));
+      }
+      return Futures.allOf(gets).thenApply(results -> {
+        String queryType = String.format("KV get - scoped to %s.user: for %d bookings in document %s", tenant,
+            results.size(), username);
+        return Result.of(results, queryType);
+      });
+    });
+    return deadline.bind(found);
+  }
+
+  /**
+   * What the read of a booking failed with: a missing booking, or the failure itself, such as a timeout, so that it
+   * is reported as such.
+   */
+  private static RuntimeException bookingFailure(String flightId, Throwable e) {
+    Throwable cause = Futures.unwrap(e);
+    if (cause instanceof DocumentNotFoundException) {
+      return new RuntimeException("Unable to retrieve flight id " + flightId, cause);
+    }
+    return cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+  }
+
+  /**
+   * A get within the deadline, which fails at once when it has passed.
+   */
+  private static GetOptions getOptions(Deadline deadline) {
+    GetOptions options = GetOptions.getOptions();
+    if (deadline.isBounded()) {
+      options.timeout(deadline.remaining());
+    }
+    return options;
+  }
+
+  /**
+   * The options, reading only the document paths of the given booking fields. The id is not one, and a get of no
+   * path at all isn't possible, so the type is read when only the id is asked for.
+   */
+  private static GetOptions project(GetOptions options, Fields fields) {
+    if (fields.isAll()) {
+      return options;
+    }
+    List<String> paths = new ArrayList<>();
+    for (String field : BOOKING_FIELDS) {
+      if (!"bookingId".equals(field) && fields.has(field)) {
+        paths.add(field);
+      }
+    }
+    return options.project(paths.isEmpty() ? Collections.singletonList("type") : paths);
+  }
+
+  /**
+   * The entities with the given ids that exist, by id: found with findAllById, or with a hedged get of each one.
+   */
+  private <T> Map<String, T> read(Hedge hedge, String tenant, String collection, List<String> ids, Class<T> type,
+      Function<T, String> id, Supplier<Iterable<T>> findAllById) {
+    return breaker.call(() -> readThrough(hedge, tenant, collection, ids, type, id, findAllById));
+  }
+
+  private <T> Map<String, T> readThrough(Hedge hedge, String tenant, String collection, List<String> ids,
+      Class<T> type, Function<T, String> id, Supplier<Iterable<T>> findAllById) {
+    if (!hedge.isEnabled()) {
+      return byId(findAllById.get(), id);
+    }
+    return Flux.fromIterable(ids)
+        .flatMap(docId -> hedge.read(() -> kvReads.get(tenant, collection, docId, type),
+            () -> kvReads.getAnyReplica(tenant, collection, docId, type)))
+        .collectMap(id).block();
+  }
+
+  /**
+   * The entities a findAllById() found, by id.
+   */
+  private static <T> Map<String, T> byId(Iterable<T> found, Function<T, String> id) {
+    Map<String, T> byId = new HashMap<>();
+    for (T entity : found) {
+      byId.put(id.apply(entity), entity);
+    }
+    return byId;
+  }
+
+  private Collection collection(String tenant, String collection) {
+    return userRepository.getOperations().getCouchbaseClientFactory().getBucket().scope(tenant)
+        .collection(collection);
+  }
+
+  /**
+   * The booking document as BookingRepository.save() would write it.
+   */
+  private static JsonObject toBookingDocument(JsonObject flight) {
+    return JsonObject.create().put("type", "booking").put("name", flight.getString("name"))
+        .put("sourceairport", flight.getString("sourceairport"))
+        .put("destinationairport", flight.getString("destinationairport")).put("flight", flight.getString("flight"))
+        .put("utc", flight.getString("utc")).put("airlineid", flight.getString("airlineid"))
+        .put("date", flight.getString("date")).put("price", flight.getInt("price")).put("day", flight.getInt("day"));
+  }
+
+  /**
+   * Same shape as Booking.toMap().
+   */
+  private static Map<String, Object> toBookingMap(String bookingId, JsonObject booking) {
+    Map<String, Object> map = new HashMap<>(6);
+    map.put("name", booking.getString("name"));
+    map.put("bookingId", bookingId);
+    map.put("sourceairport", booking.getString("sourceairport"));
+    map.put("destinationairport", booking.getString("destinationairport"));
+    map.put("airlineid", booking.getString("airlineid"));
+    map.put("utc", booking.getString("utc"));
+    map.put("date", booking.getString("date"));
+    map.put("flight", booking.getString("flight"));
+    map.put("day", booking.getInt("day"));
+    return map;
+  }
+
 }
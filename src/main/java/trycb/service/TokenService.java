@@ -22,6 +22,8 @@
 
 package trycb.service;
 
+import java.util.Base64;
+
 import com.couchbase.client.core.deps.io.netty.util.CharsetUtil;
 import com.couchbase.client.java.json.JsonObject;
 import io.jsonwebtoken.JwtException;
@@ -29,7 +31,6 @@ import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.util.Base64Utils;
 
 @Service
 public class TokenService {
@@ -73,7 +74,7 @@ public class TokenService {
 
     private String verifySimple(String token) {
         try {
-            return new String(Base64Utils.decodeFromString(token));
+            return new String(Base64.getDecoder().decode(token));
         } catch (Exception e) {
             throw new IllegalStateException("Could not verify simple token", e);
         }
@@ -97,6 +98,6 @@ public class TokenService {
     }
 
     private String buildSimpleToken(String username) {
-        return Base64Utils.encodeToString(username.getBytes(CharsetUtil.UTF_8));
+        return Base64.getEncoder().encodeToString(username.getBytes(CharsetUtil.UTF_8));
     }
 }
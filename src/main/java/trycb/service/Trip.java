@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.service;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import trycb.model.Result;
+import trycb.util.Deadline;
+import trycb.util.Futures;
+
+/**
+ * Everything a trip page shows in one go: the origin and destination airports, the outbound and return flights and
+ * the hotels at the destination. The searches run side by side through the async API, under the deadline of the
+ * request, so the trip takes as long as the slowest of them rather than all of them together, without holding a
+ * thread per search.
+ */
+@Service
+public class Trip {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Trip.class);
+
+  private final Airport airportService;
+  private final FlightPath flightPathService;
+  private final Hotel hotelService;
+
+  public Trip(Airport airportService, FlightPath flightPathService, Hotel hotelService) {
+    this.airportService = airportService;
+    this.flightPathService = flightPathService;
+    this.hotelService = hotelService;
+  }
+
+  /**
+   * Search for the parts of a trip between two airports, by name. The return flights are left out without a return
+   * date. Without a location, the hotels are searched for in the city of the destination airport, once that search
+   * is done.<br>
+   * The data has one entry per search that succeeded, and an "errors" entry with the message of each one that failed
+   * or didn't finish by the deadline. The context of each search is prefixed with its name.
+   *
+   * @throws RuntimeException the failure of the first search, when they all failed.
+   */
+  public Result<Map<String, Object>> plan(String from, String to, Calendar leave, Calendar back, String location,
+      String description) {
+    Deadline deadline = Deadline.current();
+    Map<String, CompletableFuture<Result<List<Map<String, Object>>>>> searches = new LinkedHashMap<>();
+    CompletableFuture<Result<List<Map<String, Object>>>> destination = start(() -> airportService.findAllAsync(to));
+    searches.put("origin", start(() -> airportService.findAllAsync(from)));
+    searches.put("destination", destination);
+    searches.put("outbound", start(() -> flightPathService.findAllAsync(from, to, leave)));
+    if (back != null) {
+      searches.put("return", start(() -> flightPathService.findAllAsync(to, from, back)));
+    }
+    if (location != null) {
+      searches.put("hotels", start(() -> hotelService.findHotelsAsync(location, description)));
+    } else {
+      // completes on an SDK thread, which doesn't carry the deadline of the request
+      searches.put("hotels", destination.thenCompose(airports -> deadline.run(
+          () -> start(() -> hotelService.findHotelsAsync(city(airports.getData()), description)))));
+    }
+
+    Map<String, Object> data = new LinkedHashMap<>();
+    Map<String, String> errors = new LinkedHashMap<>();
+    List<String> context = new ArrayList<>();
+    RuntimeException firstFailure = null;
+    for (Map.Entry<String, CompletableFuture<Result<List<Map<String, Object>>>>> search : searches.entrySet()) {
+      try {
+        Result<List<Map<String, Object>>> result = Futures.join(deadline.bind(search.getValue()));
+        data.put(search.getKey(), result.getData());
+        for (String c : result.getContext()) {
+          context.add(search.getKey() + ": " + c);
+        }
+      } catch (RuntimeException e) {
+        LOGGER.warn("Trip search {} failed: {}", search.getKey(), e.toString());
+        errors.put(search.getKey(), String.valueOf(Futures.unwrap(e).getMessage()));
+        firstFailure = firstFailure != null ? firstFailure : e;
+      }
+    }
+    if (data.isEmpty()) {
+      throw firstFailure;
+    }
+    if (!errors.isEmpty()) {
+      data.put("errors", errors);
+    }
+    return Result.of(data, context.toArray(new String[0]));
+  }
+
+  /**
+   * The search, failed rather than thrown if it can't even be started, so that the others still run.
+   */
+  private static <T> CompletableFuture<T> start(Supplier<CompletableFuture<T>> search) {
+    try {
+      return search.get();
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * The city of the first airport found.
+   */
+  private static String city(List<Map<String, Object>> airports) {
+    if (airports.isEmpty() || airports.get(0).get("city") == null) {
+      throw new IllegalArgumentException("No destination airport to search hotels around");
+    }
+    return (String) airports.get(0).get("city");
+  }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Gets documents by id in batches, collected across the requests of all threads (dataloader style).<br>
+ * The ids asked for in a scope go into the open batch of that scope, which is loaded with a single call, eg. a
+ * repository's findAllById(), once it holds the maximum number of ids or its window has passed since the first one,
+ * whichever comes first. Each caller then gets its own document, or an empty Optional when there is none. Ids asked
+ * for twice in a batch are loaded once.<br>
+ * Batches are loaded on the {@link FanOut} threads. When batching is off every id is loaded on its own, on the thread
+ * that asks for it, which then gets a completed future.<br>
+ * Created by {@link Batching}, which records the size of each batch in trycb.batch.size and the time its first id
+ * waited in trycb.batch.window, both with percentile histograms.
+ */
+public class BatchLoader<V> {
+
+  private final boolean enabled;
+  private final long windowNanos;
+  private final int maxSize;
+  private final BiFunction<String, List<String>, Map<String, V>> loadAll;
+  private final FanOut fanOut;
+  private final ScheduledExecutorService timer;
+  private final DistributionSummary sizes;
+  private final Timer windows;
+  private final ConcurrentMap<String, Batch> open = new ConcurrentHashMap<>();
+
+  BatchLoader(String name, boolean enabled, long windowNanos, int maxSize,
+      BiFunction<String, List<String>, Map<String, V>> loadAll, FanOut fanOut, ScheduledExecutorService timer,
+      MeterRegistry registry) {
+    this.enabled = enabled;
+    this.windowNanos = windowNanos;
+    this.maxSize = maxSize;
+    this.loadAll = loadAll;
+    this.fanOut = fanOut;
+    this.timer = timer;
+    if (enabled) {
+      sizes = DistributionSummary.builder("trycb.batch.size").tag("loader", name).publishPercentileHistogram()
+          .register(registry);
+      windows = Timer.builder("trycb.batch.window").tag("loader", name).publishPercentileHistogram()
+          .register(registry);
+    } else {
+      sizes = null;
+      windows = null;
+    }
+  }
+
+  /**
+   * The document with the given id in the given scope, once its batch has been loaded.
+   */
+  public CompletableFuture<Optional<V>> load(String scope, String id) {
+    if (!enabled) {
+      try {
+        return CompletableFuture.completedFuture(
+            Optional.ofNullable(loadAll.apply(scope, Collections.singletonList(id)).get(id)));
+      } catch (RuntimeException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+    while (true) {
+      Batch batch = open.computeIfAbsent(scope, Batch::new);
+      CompletableFuture<Optional<V>> loaded;
+      boolean full;
+      synchronized (batch) {
+        if (batch.closed) {
+          // loaded in the meantime, start the next one
+          continue;
+        }
+        loaded = batch.pending.computeIfAbsent(id, k -> new CompletableFuture<>());
+        if (batch.pending.size() == 1) {
+          batch.timeout = timer.schedule(() -> close(batch), windowNanos, TimeUnit.NANOSECONDS);
+        }
+        full = batch.pending.size() >= maxSize;
+      }
+      if (full) {
+        close(batch);
+      }
+      return loaded;
+    }
+  }
+
+  private void close(Batch batch) {
+    synchronized (batch) {
+      if (batch.closed) {
+        return;
+      }
+      batch.closed = true;
+      if (batch.timeout != null) {
+        batch.timeout.cancel(false);
+      }
+    }
+    open.remove(batch.scope, batch);
+    windows.record(System.nanoTime() - batch.started, TimeUnit.NANOSECONDS);
+    sizes.record(batch.pending.size());
+    fanOut.submit(() -> {
+      try {
+        Map<String, V> found = loadAll.apply(batch.scope, new ArrayList<>(batch.pending.keySet()));
+        batch.pending.forEach((id, loaded) -> loaded.complete(Optional.ofNullable(found.get(id))));
+      } catch (RuntimeException | Error e) {
+        batch.pending.values().forEach(loaded -> loaded.completeExceptionally(e));
+      }
+      return null;
+    });
+  }
+
+  private final class Batch {
+    final String scope;
+    final long started = System.nanoTime();
+    final Map<String, CompletableFuture<Optional<V>>> pending = new LinkedHashMap<>();
+    ScheduledFuture<?> timeout;
+    boolean closed;
+
+    Batch(String scope) {
+      this.scope = scope;
+    }
+  }
+
+}
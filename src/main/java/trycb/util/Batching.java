@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Creates the {@link BatchLoader}s of the services. With storage.batch.enabled they collect ids for up to
+ * storage.batch.window-us microseconds or storage.batch.max-size ids, whichever comes first.
+ */
+@Component
+public class Batching implements DisposableBean {
+
+  private final boolean enabled;
+  private final long windowNanos;
+  private final int maxSize;
+  private final FanOut fanOut;
+  private final MeterRegistry registry;
+  private final ScheduledExecutorService timer;
+
+  public Batching(@Value("${storage.batch.enabled:false}") boolean enabled,
+      @Value("${storage.batch.window-us:500}") long windowMicros, @Value("${storage.batch.max-size:64}") int maxSize,
+      FanOut fanOut, MeterRegistry registry) {
+    this.enabled = enabled;
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    this.maxSize = maxSize;
+    this.fanOut = fanOut;
+    this.registry = registry;
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("batch-window-");
+    threadFactory.setDaemon(true);
+    this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+  }
+
+  /**
+   * A loader named after what it loads, getting the given ids of a scope with loadAll, which leaves out the ids it
+   * found nothing for.
+   */
+  public <V> BatchLoader<V> loader(String name, BiFunction<String, List<String>, Map<String, V>> loadAll) {
+    return new BatchLoader<>(name, enabled, windowNanos, maxSize, loadAll, fanOut, timer, registry);
+  }
+
+  @Override
+  public void destroy() {
+    timer.shutdown();
+  }
+
+}
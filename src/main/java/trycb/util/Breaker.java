@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import reactor.core.publisher.Flux;
+
+/**
+ * The circuit breaker of one Couchbase service, "query", "search" or "kv", around the calls made to it.<br>
+ * While the circuit is open, calls fail fast with a CallNotPermittedException, unless they have a key and the last
+ * value returned for that key is still cached, in which case that stale value is returned instead. Up to a fixed
+ * number of keys are cached, least recently used first out. Created by {@link Breakers}.<br>
+ * Failures are reported under the {@link Deadline} of the request that made the call, so that the
+ * {@link DeadlineExpired} predicate ignores those that only tell the request ran out of time.
+ */
+public class Breaker {
+
+  private final String service;
+  private final CircuitBreaker circuitBreaker;
+  private final Map<String, Guarded<Object>> stale;
+
+  Breaker(String service, CircuitBreaker circuitBreaker, int staleEntries) {
+    this.service = service;
+    this.circuitBreaker = circuitBreaker;
+    this.stale = Collections.synchronizedMap(new LinkedHashMap<String, Guarded<Object>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Guarded<Object>> eldest) {
+        return size() > staleEntries;
+      }
+    });
+  }
+
+  /**
+   * Make the blocking call, or fall back on its stale value when the circuit is open.
+   */
+  public <T> Guarded<T> call(String key, Supplier<T> call) {
+    if (circuitBreaker == null) {
+      return new Guarded<>(call.get(), service, null);
+    }
+    if (!circuitBreaker.tryAcquirePermission()) {
+      return fallback(key);
+    }
+    Deadline deadline = Deadline.current();
+    long start = System.nanoTime();
+    T value;
+    try {
+      value = call.get();
+    } catch (RuntimeException | Error e) {
+      onError(deadline, start, e);
+      throw e;
+    }
+    circuitBreaker.onSuccess(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    return fresh(key, value);
+  }
+
+  /**
+   * Start the call, or fall back on its stale value when the circuit is open.
+   */
+  public <T> CompletableFuture<Guarded<T>> callAsync(String key, Supplier<CompletableFuture<T>> call) {
+    if (circuitBreaker == null) {
+      return call.get().thenApply(value -> new Guarded<>(value, service, null));
+    }
+    if (!circuitBreaker.tryAcquirePermission()) {
+      try {
+        return CompletableFuture.completedFuture(fallback(key));
+      } catch (CallNotPermittedException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+    Deadline deadline = Deadline.current();
+    long start = System.nanoTime();
+    CompletableFuture<T> started;
+    try {
+      started = call.get();
+    } catch (RuntimeException e) {
+      started = CompletableFuture.failedFuture(e);
+    }
+    return started.handle((value, e) -> {
+      if (e != null) {
+        Throwable cause = Futures.unwrap(e);
+        onError(deadline, start, cause);
+        throw cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+      }
+      circuitBreaker.onSuccess(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      return fresh(key, value);
+    });
+  }
+
+  /**
+   * Make the call, failing fast when the circuit is open. For calls whose values must not be served stale.
+   */
+  public <T> T call(Supplier<T> call) {
+    return call(null, call).getValue();
+  }
+
+  /**
+   * Subscribe to the stream, failing fast when the circuit is open. A stream cancelled before it completes is not
+   * counted.
+   */
+  public <T> Flux<T> stream(Supplier<Flux<T>> call) {
+    if (circuitBreaker == null) {
+      return Flux.defer(call);
+    }
+    Deadline deadline = Deadline.current();
+    return Flux.defer(() -> {
+      if (!circuitBreaker.tryAcquirePermission()) {
+        return Flux.error(CallNotPermittedException.createCallNotPermittedException(circuitBreaker));
+      }
+      long start = System.nanoTime();
+      return call.get()
+          .doOnComplete(() -> circuitBreaker.onSuccess(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+          .doOnError(e -> onError(deadline, start, e))
+          .doOnCancel(circuitBreaker::releasePermission);
+    });
+  }
+
+  private void onError(Deadline deadline, long start, Throwable e) {
+    long duration = System.nanoTime() - start;
+    deadline.run(() -> {
+      circuitBreaker.onError(duration, TimeUnit.NANOSECONDS, e);
+      return null;
+    });
+  }
+
+  private <T> Guarded<T> fresh(String key, T value) {
+    Guarded<T> guarded = new Guarded<>(value, service, null);
+    if (key != null) {
+      stale.put(key, new Guarded<>(value, service, Instant.now()));
+    }
+    return guarded;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> Guarded<T> fallback(String key) {
+    Guarded<Object> cached = key != null ? stale.get(key) : null;
+    if (cached == null) {
+      throw CallNotPermittedException.createCallNotPermittedException(circuitBreaker);
+    }
+    return (Guarded<T>) (Guarded<?>) cached;
+  }
+
+}
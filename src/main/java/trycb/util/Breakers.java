@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+
+/**
+ * Hands out the {@link Breaker} of each Couchbase service when storage.breaker.enabled is set. The circuit breakers
+ * are the resilience4j.circuitbreaker.instances of the same names, so their state and events are reported at
+ * /actuator/circuitbreakers, /actuator/circuitbreakerevents and /actuator/health. State transitions are logged.
+ */
+@Component
+public class Breakers {
+
+  public static final String QUERY = "query";
+  public static final String SEARCH = "search";
+  public static final String KV = "kv";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Breakers.class);
+
+  private final boolean enabled;
+  private final int staleEntries;
+  private final ObjectProvider<CircuitBreakerRegistry> registry;
+  private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+  public Breakers(@Value("${storage.breaker.enabled:false}") boolean enabled,
+      @Value("${storage.breaker.stale-entries:1000}") int staleEntries,
+      ObjectProvider<CircuitBreakerRegistry> registry) {
+    this.enabled = enabled;
+    this.staleEntries = staleEntries;
+    this.registry = registry;
+  }
+
+  /**
+   * Whether the failure is a call refused by an open circuit.
+   */
+  public static boolean isOpen(Throwable e) {
+    return Futures.unwrap(e) instanceof CallNotPermittedException;
+  }
+
+  /**
+   * The breaker of the given service.
+   */
+  public Breaker breaker(String service) {
+    return breakers.computeIfAbsent(service, s -> {
+      if (!enabled) {
+        return new Breaker(s, null, 0);
+      }
+      CircuitBreaker circuitBreaker = registry.getObject().circuitBreaker(s);
+      circuitBreaker.getEventPublisher().onStateTransition(
+          event -> LOGGER.warn("Circuit of the {} service: {}", s, event.getStateTransition()));
+      return new Breaker(s, circuitBreaker, staleEntries);
+    });
+  }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Hands out the {@link SingleFlight} of each service, coalescing identical concurrent searches when
+ * storage.coalesce.enabled is set. Each counts calls per key for up to storage.coalesce.tracked-keys keys, and all of
+ * them count the calls that went to the backend and those that shared one in the trycb.coalesce.calls metric.
+ */
+@Component
+public class Coalescing {
+
+  private final boolean enabled;
+  private final int trackedKeys;
+  private final MeterRegistry registry;
+  private final ConcurrentMap<String, SingleFlight> singleFlights = new ConcurrentHashMap<>();
+
+  public Coalescing(@Value("${storage.coalesce.enabled:false}") boolean enabled,
+      @Value("${storage.coalesce.tracked-keys:1000}") int trackedKeys, MeterRegistry registry) {
+    this.enabled = enabled;
+    this.trackedKeys = trackedKeys;
+    this.registry = registry;
+  }
+
+  /**
+   * The single flight of the named service.
+   */
+  public SingleFlight singleFlight(String name) {
+    return singleFlights.computeIfAbsent(name, n -> new SingleFlight(n, enabled, trackedKeys, registry));
+  }
+
+  public Map<String, SingleFlight> singleFlights() {
+    return singleFlights;
+  }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.couchbase.client.core.error.TimeoutException;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The point in time by which a request must be answered, set by {@link DeadlineFilter} for the thread serving it.
+ * <br>
+ * The services take it with {@link #current()} where a request starts, and pass what {@link #remaining()} on as the
+ * timeout of each Couchbase operation. They {@link #bind(CompletableFuture) bind} the work they wait for to it, which
+ * fails that work with a {@link DeadlineExceededException} and cancels it once the deadline passes, or as soon as the
+ * client goes away.
+ */
+public final class Deadline {
+
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+  private static final Deadline NONE = new Deadline(0, false);
+  private static final ScheduledThreadPoolExecutor TIMER;
+
+  static {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("deadline-");
+    threadFactory.setDaemon(true);
+    TIMER = new ScheduledThreadPoolExecutor(1, threadFactory);
+    // most requests are done well before their deadline
+    TIMER.setRemoveOnCancelPolicy(true);
+  }
+
+  private final long expiresAt;
+  private final boolean bounded;
+  private final CompletableFuture<Boolean> expired = new CompletableFuture<>();
+  private ScheduledFuture<?> timer;
+
+  private Deadline(long expiresAt, boolean bounded) {
+    this.expiresAt = expiresAt;
+    this.bounded = bounded;
+  }
+
+  /**
+   * A deadline the given time from now.
+   */
+  public static Deadline in(Duration timeout) {
+    return new Deadline(System.nanoTime() + timeout.toNanos(), true);
+  }
+
+  /**
+   * The deadline of the request the current thread serves, unbounded when there is none.
+   */
+  public static Deadline current() {
+    Deadline deadline = CURRENT.get();
+    return deadline != null ? deadline : NONE;
+  }
+
+  static void set(Deadline deadline) {
+    if (deadline == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(deadline);
+    }
+  }
+
+  /**
+   * Run the call with this as the current deadline, for work a request hands off to another thread.
+   */
+  public <T> T run(Supplier<T> call) {
+    Deadline previous = CURRENT.get();
+    set(this);
+    try {
+      return call.get();
+    } finally {
+      set(previous);
+    }
+  }
+
+  /**
+   * Whether the failure is a deadline or timeout, of the request or of an operation.
+   */
+  public static boolean isExceeded(Throwable e) {
+    e = Futures.unwrap(e);
+    return e instanceof DeadlineExceededException || e instanceof TimeoutException
+        || e instanceof QueryTimeoutException;
+  }
+
+  public boolean isBounded() {
+    return bounded;
+  }
+
+  public boolean isExpired() {
+    return expired.isDone() || bounded && System.nanoTime() - expiresAt >= 0;
+  }
+
+  /**
+   * The time left, to use as an operation timeout.
+   *
+   * @throws DeadlineExceededException when there is none left
+   */
+  public Duration remaining() {
+    check();
+    return Duration.ofNanos(expiresAt - System.nanoTime());
+  }
+
+  /**
+   * @throws DeadlineExceededException when the deadline has passed
+   */
+  public void check() {
+    if (isExpired()) {
+      throw exceeded();
+    }
+  }
+
+  /**
+   * The future, failed with a {@link DeadlineExceededException} if it is not done by the deadline, in which case the
+   * future is cancelled.
+   */
+  public <T> CompletableFuture<T> bind(CompletableFuture<T> future) {
+    if (!bounded) {
+      return future;
+    }
+    CompletableFuture<T> bound = future.copy();
+    watch().thenRun(() -> {
+      if (bound.completeExceptionally(exceeded())) {
+        future.cancel(true);
+      }
+    });
+    return bound;
+  }
+
+  /**
+   * The flux, cancelled and failed with a {@link DeadlineExceededException} if it is not done by the deadline.
+   */
+  public <T> Flux<T> bind(Flux<T> flux) {
+    if (!bounded) {
+      return flux;
+    }
+    return flux.takeUntilOther(Mono.fromFuture(this::watch, true))
+        .concatWith(Mono.defer(() -> isExpired() ? Mono.error(exceeded()) : Mono.empty()));
+  }
+
+  /**
+   * The client has gone away; fail and cancel the bound work now.
+   */
+  void cancel() {
+    expired.complete(Boolean.TRUE);
+  }
+
+  /**
+   * The request is done; nothing needs to be cancelled any more.
+   */
+  synchronized void close() {
+    if (timer != null) {
+      timer.cancel(false);
+    }
+  }
+
+  private synchronized CompletableFuture<Boolean> watch() {
+    if (timer == null && !expired.isDone()) {
+      timer = TIMER.schedule(this::cancel, Math.max(0, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+    return expired;
+  }
+
+  private DeadlineExceededException exceeded() {
+    return new DeadlineExceededException("Request deadline exceeded");
+  }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.function.Predicate;
+
+/**
+ * The ignore-exception-predicate of the circuit breakers: a failure that only says the request ran out of time is not
+ * the service's fault. That is a {@link DeadlineExceededException}, or an operation timeout of the SDK or of Spring
+ * Data once the {@link Deadline} of the request has passed, as the timeout of the operation was then only what was
+ * left of the request's time. A timeout within the deadline still counts against the service.<br>
+ * The deadline is the current one; {@link Breaker} reports a call under the deadline it was made with, whatever the
+ * thread it completes on.
+ */
+public class DeadlineExpired implements Predicate<Throwable> {
+
+  @Override
+  public boolean test(Throwable e) {
+    e = Futures.unwrap(e);
+    return e instanceof DeadlineExceededException || Deadline.isExceeded(e) && Deadline.current().isExpired();
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Gives every /api request a {@link Deadline}, when api.deadline.enabled is set.<br>
+ * The client can ask for one with the X-Timeout-Ms header, up to api.deadline.max-ms. Otherwise it is the default of
+ * the endpoint, api.deadline.{airports,flightPaths,hotels,tenants}-ms after the /api/ segment of the path, or
+ * api.deadline.default-ms. For requests served asynchronously, a client that goes away cancels the deadline.
+ */
+@Component
+public class DeadlineFilter implements Filter {
+
+  public static final String HEADER = "X-Timeout-Ms";
+
+  private final Environment environment;
+
+  @Value("${api.deadline.enabled:false}") private boolean enabled;
+
+  @Value("${api.deadline.max-ms:30000}") private long maxMs;
+
+  @Value("${api.deadline.default-ms:5000}") private long defaultMs;
+
+  public DeadlineFilter(Environment environment) {
+    this.environment = environment;
+  }
+
+  @Override
+  public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) req;
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if (!enabled || !path.startsWith("/api/")) {
+      chain.doFilter(req, res);
+      return;
+    }
+    Deadline deadline = Deadline.in(Duration.ofMillis(timeoutMs(request, path)));
+    Deadline.set(deadline);
+    try {
+      chain.doFilter(req, res);
+    } finally {
+      Deadline.set(null);
+      if (request.isAsyncStarted()) {
+        request.getAsyncContext().addListener(new AsyncListener() {
+          @Override
+          public void onComplete(AsyncEvent event) {
+            deadline.close();
+          }
+
+          @Override
+          public void onTimeout(AsyncEvent event) {
+            deadline.cancel();
+          }
+
+          @Override
+          public void onError(AsyncEvent event) {
+            deadline.cancel();
+          }
+
+          @Override
+          public void onStartAsync(AsyncEvent event) {
+          }
+        });
+      } else {
+        deadline.close();
+      }
+    }
+  }
+
+  private long timeoutMs(HttpServletRequest request, String path) {
+    String header = request.getHeader(HEADER);
+    if (header != null) {
+      try {
+        return Math.min(Math.max(1, Long.parseLong(header.trim())), maxMs);
+      } catch (NumberFormatException e) {
+        // fall back on the endpoint's default
+      }
+    }
+    int end = path.indexOf('/', "/api/".length());
+    String endpoint = path.substring("/api/".length(), end < 0 ? path.length() : end);
+    return environment.getProperty("api.deadline." + endpoint + "-ms", Long.class, defaultMs);
+  }
+
+}
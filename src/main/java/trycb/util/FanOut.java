@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the blocking calls a request fans out to, such as the lookup of every hotel a search found, so that they
+ * overlap instead of running one after the other.<br>
+ * With spring.threads.virtual.enabled every call gets its own virtual thread, like the requests themselves. Otherwise
+ * they share a pool of storage.fanout.threads platform threads. This is deliberately not an Executor bean, which would
+ * replace the task executor Spring Boot configures for the web layer.
+ */
+@Component
+public class FanOut implements DisposableBean {
+
+  private final ExecutorService executor;
+
+  public FanOut(@Value("${spring.threads.virtual.enabled:false}") boolean virtual,
+      @Value("${storage.fanout.threads:32}") int threads) {
+    if (virtual) {
+      executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("fanout-", 0).factory());
+    } else {
+      CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("fanout-");
+      threadFactory.setDaemon(true);
+      executor = Executors.newFixedThreadPool(threads, threadFactory);
+    }
+  }
+
+  /**
+   * Start the given blocking call.
+   */
+  public <T> CompletableFuture<T> submit(Supplier<T> call) {
+    return CompletableFuture.supplyAsync(call, executor);
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdown();
+  }
+
+}
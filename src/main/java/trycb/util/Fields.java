@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+
+import trycb.model.Result;
+
+/**
+ * The fields a client asked for with the fields= parameter, eg. fields=name,address. The services use it to read
+ * only those fields from Couchbase where they can, and to leave the other fields out of their results.
+ */
+public final class Fields {
+
+  /**
+   * Every field, when the parameter is absent or empty.
+   */
+  public static final Fields ALL = new Fields(null);
+
+  private final Set<String> names;
+
+  private Fields(Set<String> names) {
+    this.names = names;
+  }
+
+  /**
+   * The fields of the parameter, which must all be among the known fields of the endpoint.
+   *
+   * @throws IllegalArgumentException for an unknown field.
+   */
+  public static Fields parse(String param, Collection<String> known) {
+    if (param == null || param.isBlank()) {
+      return ALL;
+    }
+    Set<String> names = new TreeSet<>();
+    for (String name : param.split(",")) {
+      name = name.trim();
+      if (name.isEmpty()) {
+        continue;
+      }
+      if (!known.contains(name)) {
+        throw new IllegalArgumentException("Unknown field " + name + ", expected some of " + new TreeSet<>(known));
+      }
+      names.add(name);
+    }
+    return names.isEmpty() ? ALL : new Fields(Collections.unmodifiableSet(names));
+  }
+
+  public boolean isAll() {
+    return names == null;
+  }
+
+  public boolean has(String name) {
+    return names == null || names.contains(name);
+  }
+
+  /**
+   * A copy of the row with the asked for fields only, or the row itself for all fields.
+   */
+  public Map<String, Object> apply(Map<String, Object> row) {
+    if (names == null) {
+      return row;
+    }
+    Map<String, Object> projected = new HashMap<>(names.size() * 2);
+    for (String name : names) {
+      if (row.containsKey(name)) {
+        projected.put(name, row.get(name));
+      }
+    }
+    return projected;
+  }
+
+  public List<Map<String, Object>> apply(List<Map<String, Object>> rows) {
+    if (names == null) {
+      return rows;
+    }
+    List<Map<String, Object>> projected = new ArrayList<>(rows.size());
+    for (Map<String, Object> row : rows) {
+      projected.add(apply(row));
+    }
+    return projected;
+  }
+
+  public Result<List<Map<String, Object>>> apply(Result<List<Map<String, Object>>> result) {
+    return names == null ? result : Result.of(apply(result.getData()), result.getContext());
+  }
+
+  /**
+   * The N1QL statement with its SELECT list cut down to the columns of the asked for fields. Columns maps each field to
+   * its expression in the list, eg. "airlineid" to "a.id airlineid". When none of the fields is a column, a constant
+   * is selected so that there still is one row per result.
+   */
+  public String select(String statement, Map<String, String> columns) {
+    if (names == null) {
+      return statement;
+    }
+    StringJoiner select = new StringJoiner(", ");
+    for (String name : names) {
+      String column = columns.get(name);
+      if (column != null) {
+        select.add(column);
+      }
+    }
+    if (select.length() == 0) {
+      select.add("TRUE AS found");
+    }
+    int from = statement.indexOf(" FROM ");
+    return "SELECT " + select + statement.substring(from);
+  }
+
+  /**
+   * What to add to the key of a search, so that searches for different fields are never shared.
+   */
+  public String key() {
+    return names == null ? "" : "?fields=" + String.join(",", names);
+  }
+
+  @Override
+  public String toString() {
+    return names == null ? "*" : String.join(",", names);
+  }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.time.Instant;
+
+/**
+ * A value returned through a {@link Breaker}: fresh from the backend, or the last fresh value for the same call, served
+ * while the circuit of the backend is open.
+ */
+public final class Guarded<T> {
+
+  private final T value;
+  private final String service;
+  private final Instant staleSince;
+
+  Guarded(T value, String service, Instant staleSince) {
+    this.value = value;
+    this.service = service;
+    this.staleSince = staleSince;
+  }
+
+  public T getValue() {
+    return value;
+  }
+
+  public boolean isStale() {
+    return staleSince != null;
+  }
+
+  /**
+   * What to add to the context of a result built from a stale value.
+   */
+  public String staleContext() {
+    return "STALE - served from cache as of " + staleSince + ", the " + service + " service circuit is open";
+  }
+
+}
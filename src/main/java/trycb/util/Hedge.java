@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+
+/**
+ * Hedges one kind of read: when the primary read has not answered after the observed percentile of its latency, a
+ * backup read (eg. from a replica) is fired, the first value wins and the other read is cancelled.<br>
+ * The delay is the configured percentile of the last SAMPLES primary latencies, recomputed every RECOMPUTE reads, and
+ * the initial delay until there are enough of them. Hedges are capped by a token bucket: every read adds the budget
+ * fraction of a token, up to burst tokens, and every hedge takes one, so at most about budget of the reads are hedged.
+ * An empty or failing backup read never wins, so a lagging replica cannot hide a document the primary has.<br>
+ * Metrics, tagged with the name of the read: trycb.hedge.reads, trycb.hedge.fired, trycb.hedge.won (the backup
+ * answered first), trycb.hedge.skipped (over budget), and the current delay in trycb.hedge.delay.
+ */
+public class Hedge {
+
+  private static final int SAMPLES = 1024;
+  private static final int RECOMPUTE = 128;
+  private static final long MILLI_TOKENS = 1000;
+
+  private final boolean enabled;
+  private final double percentile;
+  private final long initialDelayNanos;
+  private final long minDelayNanos;
+  private final long tokensPerRead;
+  private final long maxTokens;
+  private final AtomicLong tokens;
+  private final long[] latencies = new long[SAMPLES];
+  private long recorded;
+  private volatile long delayNanos;
+  private final Counter reads;
+  private final Counter fired;
+  private final Counter won;
+  private final Counter skipped;
+
+  Hedge(String name, boolean enabled, double percentile, Duration initialDelay, Duration minDelay, double budget,
+      int burst, MeterRegistry registry) {
+    this.enabled = enabled;
+    this.percentile = percentile;
+    this.initialDelayNanos = initialDelay.toNanos();
+    this.minDelayNanos = minDelay.toNanos();
+    this.tokensPerRead = (long) (budget * MILLI_TOKENS);
+    this.maxTokens = burst * MILLI_TOKENS;
+    this.tokens = new AtomicLong(maxTokens);
+    this.delayNanos = initialDelayNanos;
+    if (enabled) {
+      Tags tags = Tags.of("read", name);
+      reads = registry.counter("trycb.hedge.reads", tags);
+      fired = registry.counter("trycb.hedge.fired", tags);
+      won = registry.counter("trycb.hedge.won", tags);
+      skipped = registry.counter("trycb.hedge.skipped", tags);
+      Gauge.builder("trycb.hedge.delay", this, h -> h.delayNanos).tags(tags).baseUnit("nanoseconds")
+          .register(registry);
+    } else {
+      reads = null;
+      fired = null;
+      won = null;
+      skipped = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The value of the primary read, or of the backup read if the primary is too slow; empty when the primary found
+   * nothing. Fails with the primary's failure when the backup has no value either.
+   */
+  public <T> Mono<T> read(Supplier<Mono<T>> primary, Supplier<Mono<T>> backup) {
+    if (!enabled) {
+      return Mono.defer(primary);
+    }
+    return Mono.defer(() -> {
+      reads.increment();
+      tokens.getAndUpdate(t -> Math.min(maxTokens, t + tokensPerRead));
+      long start = System.nanoTime();
+      Mono<Optional<T>> active = primary.get().map(Optional::of).defaultIfEmpty(Optional.empty())
+          .doFinally(signal -> record(System.nanoTime() - start));
+      Mono<Optional<T>> hedged = Mono.delay(Duration.ofNanos(delayNanos)).flatMap(tick -> {
+        if (tokens.getAndUpdate(t -> t >= MILLI_TOKENS ? t - MILLI_TOKENS : t) < MILLI_TOKENS) {
+          skipped.increment();
+          return Mono.empty();
+        }
+        fired.increment();
+        return backup.get().map(Optional::of).doOnNext(value -> won.increment()).onErrorResume(e -> Mono.empty());
+      });
+      return Mono.firstWithValue(active, hedged);
+    }).flatMap(Mono::justOrEmpty).onErrorMap(NoSuchElementException.class,
+        e -> e.getCause() == null ? e : Exceptions.unwrapMultiple(e.getCause()).get(0));
+  }
+
+  /**
+   * Record a primary latency. Reads that lost to their backup are recorded up to their cancellation, which can only
+   * make the delay shorter, and the budget keeps that in check.
+   */
+  private synchronized void record(long nanos) {
+    latencies[(int) (recorded++ % SAMPLES)] = nanos;
+    if (recorded >= RECOMPUTE && recorded % RECOMPUTE == 0) {
+      long[] sorted = Arrays.copyOf(latencies, (int) Math.min(recorded, SAMPLES));
+      Arrays.sort(sorted);
+      long observed = sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+      delayNanos = Math.max(minDelayNanos, observed);
+    }
+  }
+
+}
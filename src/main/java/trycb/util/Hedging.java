@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Hands out the {@link Hedge} of each kind of read, hedging them when storage.hedge.enabled is set. A read is hedged
+ * after the storage.hedge.percentile of its observed latency, storage.hedge.initial-delay-ms until observed, never
+ * sooner than storage.hedge.min-delay-ms, and for at most the storage.hedge.budget fraction of reads, with bursts of
+ * up to storage.hedge.burst hedges.
+ */
+@Component
+public class Hedging {
+
+  private final boolean enabled;
+  private final double percentile;
+  private final Duration initialDelay;
+  private final Duration minDelay;
+  private final double budget;
+  private final int burst;
+  private final MeterRegistry registry;
+  private final ConcurrentMap<String, Hedge> hedges = new ConcurrentHashMap<>();
+
+  public Hedging(@Value("${storage.hedge.enabled:false}") boolean enabled,
+      @Value("${storage.hedge.percentile:0.95}") double percentile,
+      @Value("${storage.hedge.initial-delay-ms:10}") long initialDelayMs,
+      @Value("${storage.hedge.min-delay-ms:1}") long minDelayMs, @Value("${storage.hedge.budget:0.05}") double budget,
+      @Value("${storage.hedge.burst:10}") int burst, MeterRegistry registry) {
+    this.enabled = enabled;
+    this.percentile = percentile;
+    this.initialDelay = Duration.ofMillis(initialDelayMs);
+    this.minDelay = Duration.ofMillis(minDelayMs);
+    this.budget = budget;
+    this.burst = burst;
+    this.registry = registry;
+  }
+
+  /**
+   * The hedge of the named kind of read.
+   */
+  public Hedge hedge(String name) {
+    return hedges.computeIfAbsent(name,
+        n -> new Hedge(n, enabled, percentile, initialDelay, minDelay, budget, burst, registry));
+  }
+
+}
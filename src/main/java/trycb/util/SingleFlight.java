@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Coalesces identical concurrent calls: while a call for a key is in flight, further calls for the same key wait for
+ * it and share its result, or its failure, instead of making their own. Nothing is cached; once the call completes the
+ * next one for the key goes to the backend again.<br>
+ * The shared result is handed to every caller as is, so callers must treat it as read-only and decorate copies.<br>
+ * Counts calls per key, for up to a fixed number of distinct keys, beyond which they are counted under "(other)".
+ * Created by {@link Coalescing}, one per service.
+ */
+public class SingleFlight {
+
+  private static final String OTHER = "(other)";
+
+  private final String name;
+  private final boolean enabled;
+  private final int trackedKeys;
+  private final MeterRegistry registry;
+  private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, KeyStats> stats = new ConcurrentHashMap<>();
+
+  SingleFlight(String name, boolean enabled, int trackedKeys, MeterRegistry registry) {
+    this.name = name;
+    this.enabled = enabled;
+    this.trackedKeys = trackedKeys;
+    this.registry = registry;
+  }
+
+  /**
+   * Make the blocking call, or wait for the identical one in flight. The call runs on the first caller's thread, under
+   * its deadline; the others wait for it only until their own {@link Deadline}.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T join(String key, Supplier<T> call) {
+    if (!enabled) {
+      return call.get();
+    }
+    CompletableFuture<Object> mine = new CompletableFuture<>();
+    CompletableFuture<Object> shared = inFlight.putIfAbsent(key, mine);
+    if (shared != null) {
+      record(key, true);
+      // a copy, so that a waiter timing out cancels only its own wait
+      return (T) Futures.join(Deadline.current().bind(shared.copy()));
+    }
+    record(key, false);
+    try {
+      T value = call.get();
+      inFlight.remove(key, mine);
+      mine.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      inFlight.remove(key, mine);
+      mine.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Start the call, or share the identical one in flight.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> CompletableFuture<T> run(String key, Supplier<CompletableFuture<T>> call) {
+    if (!enabled) {
+      return call.get();
+    }
+    CompletableFuture<Object> mine = new CompletableFuture<>();
+    CompletableFuture<Object> shared = inFlight.putIfAbsent(key, mine);
+    if (shared != null) {
+      record(key, true);
+      // a copy, so that a caller completing or cancelling its future leaves the others alone
+      return (CompletableFuture<T>) shared.copy();
+    }
+    record(key, false);
+    CompletableFuture<T> started;
+    try {
+      started = call.get();
+    } catch (RuntimeException e) {
+      started = CompletableFuture.failedFuture(e);
+    }
+    started.whenComplete((value, e) -> {
+      inFlight.remove(key, mine);
+      if (e != null) {
+        mine.completeExceptionally(Futures.unwrap(e));
+      } else {
+        mine.complete(value);
+      }
+    });
+    return (CompletableFuture<T>) mine.copy();
+  }
+
+  /**
+   * Totals, calls in flight, and the limit most coalesced keys with their counts.
+   */
+  public Map<String, Object> report(int limit) {
+    long calls = 0;
+    long shared = 0;
+    for (KeyStats keyStats : stats.values()) {
+      calls += keyStats.calls.sum();
+      shared += keyStats.shared.sum();
+    }
+    Map<String, Object> keys = new LinkedHashMap<>();
+    stats.entrySet().stream()
+        .sorted(Comparator.comparingLong((Map.Entry<String, KeyStats> e) -> e.getValue().shared.sum()).reversed())
+        .limit(limit).forEach(e -> {
+          Map<String, Object> counts = new LinkedHashMap<>();
+          counts.put("calls", e.getValue().calls.sum());
+          counts.put("shared", e.getValue().shared.sum());
+          keys.put(e.getKey(), counts);
+        });
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("enabled", enabled);
+    report.put("calls", calls);
+    report.put("shared", shared);
+    report.put("inFlight", inFlight.size());
+    report.put("keys", keys);
+    return report;
+  }
+
+  private void record(String key, boolean shared) {
+    KeyStats keyStats = stats.get(key);
+    if (keyStats == null) {
+      keyStats = stats.computeIfAbsent(stats.size() < trackedKeys ? key : OTHER, k -> new KeyStats());
+    }
+    keyStats.calls.increment();
+    if (shared) {
+      keyStats.shared.increment();
+    }
+    registry.counter("trycb.coalesce.calls", "service", name, "outcome", shared ? "shared" : "backend").increment();
+  }
+
+  private static final class KeyStats {
+    final LongAdder calls = new LongAdder();
+    final LongAdder shared = new LongAdder();
+  }
+
+}
@@ -1,16 +1,29 @@
 package trycb.web;
 
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+import reactor.core.publisher.Flux;
 
+import trycb.config.InventoryVersion;
 import trycb.model.Error;
 import trycb.model.IValue;
 import trycb.service.Airport;
+import trycb.util.Breakers;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+import trycb.util.Futures;
 
 @RestController
 @RequestMapping("/api/airports")
@@ -19,20 +32,74 @@ public class AirportController {
   private static final Logger LOGGER = LoggerFactory.getLogger(AirportController.class);
 
   private Airport airportService;
+  private InventoryVersion inventoryVersion;
+
+  @Value("${api.async.enabled:false}") private boolean async;
 
-  public AirportController(Airport airportService) {
+  public AirportController(Airport airportService, InventoryVersion inventoryVersion) {
     this.airportService = airportService;
+    this.inventoryVersion = inventoryVersion;
   }
 
   @RequestMapping
-  public ResponseEntity<? extends IValue> airports(@RequestParam("search") String search) {
+  public Object airports(@RequestParam("search") String search,
+      @RequestParam(value = "fields", required = false) String fieldsParam, WebRequest request) {
+    Fields fields;
+    try {
+      fields = Fields.parse(fieldsParam, Airport.FIELDS);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+    }
+    if (inventoryVersion.checkNotModified(request, fields)) {
+      return null;
+    }
+    if (async) {
+      return airportService.findAllAsync(search, fields)
+          .<ResponseEntity<? extends IValue>>handle((result, e) -> e == null ? ResponseEntity.ok(result) : failed(e));
+    }
     try {
-      return ResponseEntity.ok(airportService.findAll(search));
+      return ResponseEntity.ok(airportService.findAll(search, fields));
     } catch (Exception e) {
-      e.printStackTrace();
-      LOGGER.error("Failed with exception ", e);
-      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(new Error(e.getMessage()));
+      return failed(e);
+    }
+  }
+
+  @RequestMapping("/suggest")
+  public Object suggest(@RequestParam("search") String search,
+      @RequestParam(value = "limit", defaultValue = "10") int limit, WebRequest request) {
+    if (inventoryVersion.checkNotModified(request)) {
+      return null;
     }
+    try {
+      return ResponseEntity.ok(airportService.suggest(search, limit));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+    } catch (Exception e) {
+      return failed(e);
+    }
+  }
+
+  @RequestMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Flux<Map<String, Object>> airportsStream(@RequestParam("search") String search,
+      @RequestParam(value = "fields", required = false) String fieldsParam) {
+    Fields fields;
+    try {
+      fields = Fields.parse(fieldsParam, Airport.FIELDS);
+    } catch (IllegalArgumentException e) {
+      // a stream has no room for an Error body
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+    }
+    return airportService.findAllStream(search).map(row -> fields.apply(row))
+        .doOnError(e -> LOGGER.error("Failed with exception ", e));
+  }
+
+  private static ResponseEntity<? extends IValue> failed(Throwable e) {
+    e = Futures.unwrap(e);
+    e.printStackTrace();
+    LOGGER.error("Failed with exception ", e);
+    HttpStatus status = Deadline.isExceeded(e) ? HttpStatus.GATEWAY_TIMEOUT
+        : Breakers.isOpen(e) ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.INTERNAL_SERVER_ERROR;
+    return ResponseEntity.status(status).body(new Error(e.getMessage()));
   }
 
 }
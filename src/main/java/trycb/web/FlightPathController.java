@@ -1,21 +1,34 @@
 package trycb.web;
 
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
 
+import reactor.core.publisher.Flux;
+
+import trycb.config.InventoryVersion;
 import trycb.model.Error;
 import trycb.model.IValue;
 import trycb.service.FlightPath;
+import trycb.util.Breakers;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+import trycb.util.Futures;
 
 @RestController
 @RequestMapping("/api/flightPaths")
@@ -24,23 +37,95 @@ public class FlightPathController {
   private static final Logger LOGGER = LoggerFactory.getLogger(FlightPathController.class);
 
   public FlightPath flightPathService;
+  private InventoryVersion inventoryVersion;
+
+  @Value("${api.async.enabled:false}") private boolean async;
 
-  public FlightPathController(FlightPath flightPathService) {
+  public FlightPathController(FlightPath flightPathService, InventoryVersion inventoryVersion) {
     this.flightPathService = flightPathService;
+    this.inventoryVersion = inventoryVersion;
   }
 
   @RequestMapping("/{from}/{to}")
-  public ResponseEntity<? extends IValue> all(@PathVariable("from") String from, @PathVariable("to") String to,
-      @RequestParam String leave) {
+  public Object all(@PathVariable("from") String from, @PathVariable("to") String to,
+      @RequestParam String leave, @RequestParam(value = "fields", required = false) String fieldsParam,
+      WebRequest request) {
+    Fields fields;
+    try {
+      fields = Fields.parse(fieldsParam, FlightPath.FIELDS);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+    }
+    if (inventoryVersion.checkNotModified(request, fields)) {
+      return null;
+    }
     try {
       Calendar calendar = Calendar.getInstance(Locale.US);
       calendar.setTime(DateFormat.getDateInstance(DateFormat.SHORT, Locale.US).parse(leave));
-      return ResponseEntity.ok(flightPathService.findAll(from, to, calendar));
+      if (async) {
+        return flightPathService.findAllAsync(from, to, calendar, fields)
+            .<ResponseEntity<? extends IValue>>handle((result, e) -> e == null ? ResponseEntity.ok(result) : failed(e));
+      }
+      return ResponseEntity.ok(flightPathService.findAll(from, to, calendar, fields));
+    } catch (Exception e) {
+      return failed(e);
+    }
+  }
+
+  @RequestMapping("/{from}/{to}/week")
+  public Object week(@PathVariable("from") String from, @PathVariable("to") String to,
+      @RequestParam String leave, @RequestParam(value = "days", defaultValue = "7") int days,
+      @RequestParam(value = "sort", required = false) String sort,
+      @RequestParam(value = "top", defaultValue = "0") int top,
+      @RequestParam(value = "fields", required = false) String fieldsParam, WebRequest request) {
+    Fields fields;
+    Calendar calendar = Calendar.getInstance(Locale.US);
+    try {
+      fields = Fields.parse(fieldsParam, FlightPath.FIELDS);
+      calendar.setTime(DateFormat.getDateInstance(DateFormat.SHORT, Locale.US).parse(leave));
+    } catch (IllegalArgumentException | ParseException e) {
+      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+    }
+    if (inventoryVersion.checkNotModified(request, fields)) {
+      return null;
+    }
+    try {
+      return ResponseEntity.ok(flightPathService.findRange(from, to, calendar, days, sort, top, fields));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+    } catch (Exception e) {
+      return failed(e);
+    }
+  }
+
+  @RequestMapping(value = "/{from}/{to}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Flux<Map<String, Object>> allStream(@PathVariable("from") String from, @PathVariable("to") String to,
+      @RequestParam String leave, @RequestParam(value = "fields", required = false) String fieldsParam) {
+    Fields fields;
+    try {
+      fields = Fields.parse(fieldsParam, FlightPath.FIELDS);
+    } catch (IllegalArgumentException e) {
+      // a stream has no room for an Error body
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+    }
+    Calendar calendar = Calendar.getInstance(Locale.US);
+    try {
+      calendar.setTime(DateFormat.getDateInstance(DateFormat.SHORT, Locale.US).parse(leave));
     } catch (Exception e) {
-      e.printStackTrace();
       LOGGER.error("Failed with exception", e);
-      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(new Error(e.getMessage()));
+      return Flux.error(e);
     }
+    return flightPathService.findAllStream(from, to, calendar).map(row -> fields.apply(row))
+        .doOnError(e -> LOGGER.error("Failed with exception", e));
+  }
+
+  private static ResponseEntity<? extends IValue> failed(Throwable e) {
+    e = Futures.unwrap(e);
+    e.printStackTrace();
+    LOGGER.error("Failed with exception", e);
+    HttpStatus status = Deadline.isExceeded(e) ? HttpStatus.GATEWAY_TIMEOUT
+        : Breakers.isOpen(e) ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.INTERNAL_SERVER_ERROR;
+    return ResponseEntity.status(status).body(new Error(e.getMessage()));
   }
 
 }
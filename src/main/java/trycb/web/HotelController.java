@@ -1,64 +1,145 @@
 package trycb.web;
 
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+import reactor.core.publisher.Flux;
 
+import trycb.config.InventoryVersion;
 import trycb.model.Error;
 import trycb.model.IValue;
 import trycb.service.Hotel;
+import trycb.util.Breakers;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+import trycb.util.Futures;
 
 @RestController
 @RequestMapping("/api/hotels")
 public class HotelController {
 
   private Hotel hotelService;
+  private InventoryVersion inventoryVersion;
 
   private static final Logger LOGGER = LoggerFactory.getLogger(HotelController.class);
   private static final String LOG_FAILURE_MESSAGE = "Failed with exception";
 
-  public HotelController(Hotel hotelService) {
+  @Value("${api.async.enabled:false}") private boolean async;
+
+  public HotelController(Hotel hotelService, InventoryVersion inventoryVersion) {
     this.hotelService = hotelService;
+    this.inventoryVersion = inventoryVersion;
   }
 
-  @RequestMapping(value = "/{description}/{location}/", method = RequestMethod.GET,
-      produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<? extends IValue> findHotelsByDescriptionAndLocation(@PathVariable("location") String location,
-      @PathVariable("description") String desc) {
+  // The JSON mappings declare no media type, so that requests accepting anything (*/*) get JSON rather than the
+  // NDJSON streams below.
+
+  @RequestMapping(value = "/{description}/{location}/", method = RequestMethod.GET)
+  public Object findHotelsByDescriptionAndLocation(@PathVariable("location") String location,
+      @PathVariable("description") String desc, @RequestParam(value = "fields", required = false) String fields,
+      WebRequest request) {
+    return search(location, desc, fields, request);
+  }
+
+  @RequestMapping(value = "/{description}/", method = RequestMethod.GET)
+  public Object findHotelsByDescription(@PathVariable("description") String desc,
+      @RequestParam(value = "fields", required = false) String fields, WebRequest request) {
+    return search("*", desc, fields, request);
+  }
+
+  @RequestMapping(value = "/", method = RequestMethod.GET)
+  public Object findAllHotels(@RequestParam(value = "fields", required = false) String fields, WebRequest request) {
+    return search("*", "*", fields, request);
+  }
+
+  @RequestMapping(value = "/suggest", method = RequestMethod.GET)
+  public Object suggest(@RequestParam("search") String search,
+      @RequestParam(value = "limit", defaultValue = "10") int limit, WebRequest request) {
+    if (inventoryVersion.checkNotModified(request)) {
+      return null;
+    }
     try {
-      return ResponseEntity.ok(hotelService.findHotels(location, desc));
+      return ResponseEntity.ok(hotelService.suggest(search, limit));
     } catch (Exception e) {
-      e.printStackTrace();
-      LOGGER.error(LOG_FAILURE_MESSAGE, e);
-      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+      return failed(e);
     }
   }
 
-  @RequestMapping(value = "/{description}/", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<? extends IValue> findHotelsByDescription(@PathVariable("description") String desc) {
+  @RequestMapping(value = "/{description}/{location}/", method = RequestMethod.GET,
+      produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Flux<Map<String, Object>> streamHotelsByDescriptionAndLocation(@PathVariable("location") String location,
+      @PathVariable("description") String desc, @RequestParam(value = "fields", required = false) String fields) {
+    return stream(location, desc, fields);
+  }
+
+  @RequestMapping(value = "/{description}/", method = RequestMethod.GET, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Flux<Map<String, Object>> streamHotelsByDescription(@PathVariable("description") String desc,
+      @RequestParam(value = "fields", required = false) String fields) {
+    return stream("*", desc, fields);
+  }
+
+  @RequestMapping(value = "/", method = RequestMethod.GET, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Flux<Map<String, Object>> streamAllHotels(@RequestParam(value = "fields", required = false) String fields) {
+    return stream("*", "*", fields);
+  }
+
+  private Object search(String location, String desc, String fieldsParam, WebRequest request) {
+    Fields fields;
     try {
-      return ResponseEntity.ok(hotelService.findHotels(desc));
-    } catch (Exception e) {
-      e.printStackTrace();
-      LOGGER.error(LOG_FAILURE_MESSAGE, e);
+      fields = Fields.parse(fieldsParam, Hotel.FIELDS);
+    } catch (IllegalArgumentException e) {
       return ResponseEntity.badRequest().body(new Error(e.getMessage()));
     }
+    if (inventoryVersion.checkNotModified(request, fields)) {
+      return null;
+    }
+    if (async) {
+      return hotelService.findHotelsAsync(location, desc, fields)
+          .<ResponseEntity<? extends IValue>>handle((result, e) -> e == null ? ResponseEntity.ok(result) : failed(e));
+    }
+    try {
+      return ResponseEntity.ok(hotelService.findHotels(location, desc, fields));
+    } catch (Exception e) {
+      return failed(e);
+    }
   }
 
-  @RequestMapping(value = "/", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<? extends IValue> findAllHotels() {
+  private Flux<Map<String, Object>> stream(String location, String desc, String fieldsParam) {
+    Fields fields;
     try {
-      return ResponseEntity.ok(hotelService.findAllHotels());
-    } catch (Exception e) {
-      e.printStackTrace();
-      LOGGER.error(LOG_FAILURE_MESSAGE, e);
-      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+      fields = Fields.parse(fieldsParam, Hotel.FIELDS);
+    } catch (IllegalArgumentException e) {
+      // a stream has no room for an Error body
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+    }
+    return hotelService.findHotelsStream(location, desc).map(row -> fields.apply(row))
+        .doOnError(e -> LOGGER.error(LOG_FAILURE_MESSAGE, e));
+  }
+
+  private static ResponseEntity<? extends IValue> failed(Throwable e) {
+    e = Futures.unwrap(e);
+    e.printStackTrace();
+    LOGGER.error(LOG_FAILURE_MESSAGE, e);
+    if (Deadline.isExceeded(e)) {
+      return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).body(new Error(e.getMessage()));
+    }
+    if (Breakers.isOpen(e)) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(new Error(e.getMessage()));
     }
+    return ResponseEntity.badRequest().body(new Error(e.getMessage()));
   }
 
 }
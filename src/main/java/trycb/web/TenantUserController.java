@@ -1,12 +1,14 @@
 package trycb.web;
 
 import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.core.AuthenticationException;
@@ -15,16 +17,24 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.couchbase.client.core.msg.kv.DurabilityLevel;
 import com.couchbase.client.java.json.JsonObject;
 
+import reactor.core.publisher.Flux;
+
 import trycb.model.Error;
 import trycb.model.IValue;
 import trycb.model.Result;
 import trycb.service.TenantUser;
 import trycb.service.TokenService;
+import trycb.util.Breakers;
+import trycb.util.Deadline;
+import trycb.util.Fields;
+import trycb.util.Futures;
 
 @RestController
 @RequestMapping("/api/tenants")
@@ -37,6 +47,8 @@ public class TenantUserController {
 
   @Value("${storage.expiry:0}") private int expiry;
 
+  @Value("${api.async.enabled:false}") private boolean async;
+
   @Autowired
   public TenantUserController(TokenService jwtService, TenantUser tenantUserService) {
     this.jwtService = jwtService;
@@ -44,7 +56,7 @@ public class TenantUserController {
   }
 
   @RequestMapping(value = "/{tenant}/user/login", method = RequestMethod.POST)
-  public ResponseEntity<? extends IValue> login(@PathVariable("tenant") String tenant,
+  public Object login(@PathVariable("tenant") String tenant,
       @RequestBody Map<String, String> loginInfo) {
     String user = loginInfo.get("user");
     String password = loginInfo.get("password");
@@ -52,39 +64,60 @@ public class TenantUserController {
       return ResponseEntity.badRequest().body(new Error("User or password missing, or malformed request"));
     }
 
+    if (async) {
+      return tenantUserService.loginAsync(tenant, user, password)
+          .<ResponseEntity<? extends IValue>>handle((result, e) -> e == null ? ResponseEntity.ok(result)
+              : loginFailed(Futures.unwrap(e)));
+    }
     try {
       return ResponseEntity.ok(tenantUserService.login(tenant, user, password));
-    } catch (AuthenticationException e) {
-      e.printStackTrace();
+    } catch (Exception e) {
+      return loginFailed(e);
+    }
+  }
+
+  private static ResponseEntity<? extends IValue> loginFailed(Throwable e) {
+    e.printStackTrace();
+    if (e instanceof AuthenticationException) {
       LOGGER.error("Authentication failed with exception", e);
       return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(new Error(e.getMessage()));
-    } catch (Exception e) {
-      e.printStackTrace();
-      LOGGER.error("Failed with exception", e);
-      return ResponseEntity.status(500).body(new Error(e.getMessage()));
     }
+    LOGGER.error("Failed with exception", e);
+    if (Breakers.isOpen(e)) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(new Error(e.getMessage()));
+    }
+    return ResponseEntity.status(500).body(new Error(e.getMessage()));
   }
 
   @RequestMapping(value = "/{tenant}/user/signup", method = RequestMethod.POST)
-  public ResponseEntity<? extends IValue> createLogin(@PathVariable("tenant") String tenant, @RequestBody String json) {
+  public Object createLogin(@PathVariable("tenant") String tenant, @RequestBody String json) {
     JsonObject jsonData = JsonObject.fromJson(json);
     try {
+      if (async) {
+        return tenantUserService.createLoginAsync(tenant, jsonData.getString("user"), jsonData.getString("password"),
+            DurabilityLevel.values()[expiry]).<ResponseEntity<? extends IValue>>handle((result, e) -> e == null
+                ? ResponseEntity.status(HttpStatus.CREATED).body(result) : createLoginFailed(Futures.unwrap(e)));
+      }
       Result<Map<String, Object>> result = tenantUserService.createLogin(tenant, jsonData.getString("user"),
           jsonData.getString("password"), DurabilityLevel.values()[expiry]);
       return ResponseEntity.status(HttpStatus.CREATED).body(result);
-    } catch (AuthenticationServiceException e) {
-      e.printStackTrace();
+    } catch (Exception e) {
+      return createLoginFailed(e);
+    }
+  }
+
+  private static ResponseEntity<? extends IValue> createLoginFailed(Throwable e) {
+    e.printStackTrace();
+    if (e instanceof AuthenticationServiceException) {
       LOGGER.error("Authentication failed with exception", e);
       return ResponseEntity.status(HttpStatus.CONFLICT).body(new Error(e.getMessage()));
-    } catch (Exception e) {
-      e.printStackTrace();
-      LOGGER.error("Failed with exception", e);
-      return ResponseEntity.status(500).body(new Error(e.getMessage()));
     }
+    LOGGER.error("Failed with exception", e);
+    return ResponseEntity.status(500).body(new Error(e.getMessage()));
   }
 
   @RequestMapping(value = "/{tenant}/user/{username}/flights", method = RequestMethod.PUT)
-  public ResponseEntity<? extends IValue> book(@PathVariable("tenant") String tenant,
+  public Object book(@PathVariable("tenant") String tenant,
       @PathVariable("username") String username, @RequestBody String json,
       @RequestHeader("Authorization") String authentication) {
     if (authentication == null || !authentication.startsWith("Bearer ")) {
@@ -93,30 +126,63 @@ public class TenantUserController {
     JsonObject jsonData = JsonObject.fromJson(json);
     try {
       jwtService.verifyAuthenticationHeader(authentication, username);
+      if (async) {
+        return tenantUserService.registerFlightForUserAsync(tenant, username, jsonData.getArray("flights"))
+            .<ResponseEntity<? extends IValue>>handle((result, e) -> e == null ? ResponseEntity.ok().body(result)
+                : bookFailed(Futures.unwrap(e)));
+      }
       Result<Map<String, Object>> result = tenantUserService.registerFlightForUser(tenant, username,
           jsonData.getArray("flights"));
       return ResponseEntity.ok().body(result);
-    } catch (IllegalStateException e) {
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      return bookFailed(e);
+    }
+  }
+
+  private static ResponseEntity<? extends IValue> bookFailed(Throwable e) {
+    if (e instanceof IllegalStateException) {
       e.printStackTrace();
       LOGGER.error("Failed with invalid state exception", e);
       return ResponseEntity.status(HttpStatus.FORBIDDEN).body(new Error("Forbidden, you can't book for this user"));
-    } catch (IllegalArgumentException e) {
+    } else if (e instanceof IllegalArgumentException) {
       e.printStackTrace();
       LOGGER.error("Failed with invalid argument exception", e);
       return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new Error(e.getMessage()));
     }
+    // anything else fails the request as it would have on the blocking path
+    throw e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
   }
 
   @RequestMapping(value = "/{tenant}/user/{username}/flights", method = RequestMethod.GET)
   public Object booked(@PathVariable("tenant") String tenant, @PathVariable("username") String username,
-      @RequestHeader("Authorization") String authentication) {
+      @RequestHeader("Authorization") String authentication,
+      @RequestParam(value = "fields", required = false) String fieldsParam) {
     if (authentication == null || !authentication.startsWith("Bearer ")) {
       return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(new Error("Bearer Authentication must be used"));
     }
+    Fields fields;
+    try {
+      fields = Fields.parse(fieldsParam, TenantUser.BOOKING_FIELDS);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(new Error(e.getMessage()));
+    }
 
     try {
       jwtService.verifyAuthenticationHeader(authentication, username);
-      return ResponseEntity.ok(tenantUserService.getFlightsForUser(tenant, username));
+      if (tenantUserService.isRawBookings()) {
+        if (async) {
+          return tenantUserService.getRawFlightsForUserAsync(tenant, username, fields)
+              .<ResponseEntity<? extends IValue>>handle((result, e) -> e == null ? ResponseEntity.ok(result)
+                  : failed(e));
+        }
+        return ResponseEntity.ok(tenantUserService.getRawFlightsForUser(tenant, username, fields));
+      }
+      if (async) {
+        return tenantUserService.getFlightsForUserAsync(tenant, username, fields)
+            .<ResponseEntity<? extends IValue>>handle((result, e) -> e == null ? ResponseEntity.ok(result)
+                : failed(e));
+      }
+      return ResponseEntity.ok(tenantUserService.getFlightsForUser(tenant, username, fields));
     } catch (IllegalStateException e) {
       e.printStackTrace();
       LOGGER.error("Failed with invalid state exception", e);
@@ -127,7 +193,43 @@ public class TenantUserController {
       LOGGER.error("Failed with invalid argument exception", e);
       return ResponseEntity.status(HttpStatus.FORBIDDEN)
           .body(new Error("Forbidden, you don't have access to this cart"));
+    } catch (RuntimeException e) {
+      return failed(e);
+    }
+  }
+
+  private static ResponseEntity<? extends IValue> failed(Throwable e) {
+    e = Futures.unwrap(e);
+    e.printStackTrace();
+    LOGGER.error("Failed with exception", e);
+    HttpStatus status = Deadline.isExceeded(e) ? HttpStatus.GATEWAY_TIMEOUT
+        : Breakers.isOpen(e) ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.INTERNAL_SERVER_ERROR;
+    return ResponseEntity.status(status).body(new Error(e.getMessage()));
+  }
+
+  @RequestMapping(value = "/{tenant}/user/{username}/flights", method = RequestMethod.GET,
+      produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Flux<Map<String, Object>> bookedStream(@PathVariable("tenant") String tenant,
+      @PathVariable("username") String username, @RequestHeader("Authorization") String authentication,
+      @RequestParam(value = "fields", required = false) String fieldsParam) {
+    // a stream has no room for an Error body, so failed checks only set the status
+    if (authentication == null || !authentication.startsWith("Bearer ")) {
+      throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Bearer Authentication must be used");
+    }
+    Fields fields;
+    try {
+      fields = Fields.parse(fieldsParam, TenantUser.BOOKING_FIELDS);
+    } catch (IllegalArgumentException e) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+    }
+    try {
+      jwtService.verifyAuthenticationHeader(authentication, username);
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      LOGGER.error("Failed with invalid state exception", e);
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Forbidden, you don't have access to this cart", e);
     }
+    return tenantUserService.getFlightsForUserStream(tenant, username).map(row -> fields.apply(row))
+        .doOnError(e -> LOGGER.error("Failed with exception", e));
   }
 
 }
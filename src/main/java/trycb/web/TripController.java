@@ -0,0 +1,77 @@
+package trycb.web;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import trycb.config.InventoryVersion;
+import trycb.model.Error;
+import trycb.model.IValue;
+import trycb.service.Trip;
+import trycb.util.Breakers;
+import trycb.util.Deadline;
+import trycb.util.Futures;
+
+@RestController
+@RequestMapping("/api/trips")
+public class TripController {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TripController.class);
+
+  private Trip tripService;
+  private InventoryVersion inventoryVersion;
+
+  public TripController(Trip tripService, InventoryVersion inventoryVersion) {
+    this.tripService = tripService;
+    this.inventoryVersion = inventoryVersion;
+  }
+
+  @RequestMapping(method = RequestMethod.GET)
+  public Object trip(@RequestParam("from") String from, @RequestParam("to") String to,
+      @RequestParam("leave") String leave, @RequestParam(value = "return", required = false) String back,
+      @RequestParam(value = "location", required = false) String location,
+      @RequestParam(value = "description", defaultValue = "*") String description, WebRequest request) {
+    Calendar leaveCalendar;
+    Calendar backCalendar;
+    try {
+      leaveCalendar = calendar(leave);
+      backCalendar = back == null || back.isEmpty() ? null : calendar(back);
+    } catch (ParseException e) {
+      return ResponseEntity.badRequest().body(new Error("Unparseable date " + e.getMessage()));
+    }
+    if (inventoryVersion.checkNotModified(request)) {
+      return null;
+    }
+    try {
+      return ResponseEntity.ok(tripService.plan(from, to, leaveCalendar, backCalendar, location, description));
+    } catch (Exception e) {
+      return failed(e);
+    }
+  }
+
+  private static Calendar calendar(String date) throws ParseException {
+    Calendar calendar = Calendar.getInstance(Locale.US);
+    calendar.setTime(DateFormat.getDateInstance(DateFormat.SHORT, Locale.US).parse(date));
+    return calendar;
+  }
+
+  private static ResponseEntity<? extends IValue> failed(Throwable e) {
+    e = Futures.unwrap(e);
+    LOGGER.error("Failed with exception", e);
+    HttpStatus status = Deadline.isExceeded(e) ? HttpStatus.GATEWAY_TIMEOUT
+        : Breakers.isOpen(e) ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.INTERNAL_SERVER_ERROR;
+    return ResponseEntity.status(status).body(new Error(e.getMessage()));
+  }
+
+}
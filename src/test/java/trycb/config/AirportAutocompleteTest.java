@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * One typo over the whole search, in words of three letters or more, and the airports with no typo first, then those
+ * with the most routes, then by name.
+ */
+class AirportAutocompleteTest {
+
+  private AirportAutocomplete autocomplete;
+
+  @BeforeEach
+  void index() {
+    List<Map<String, Object>> airports = List.of(
+        airport("SFO", "KSFO", "San Francisco Intl", "San Francisco"),
+        airport("LAX", "KLAX", "Los Angeles Intl", "Los Angeles"),
+        airport("TVL", "KTVL", "Lake Tahoe", "South Lake Tahoe"),
+        airport("LAL", "KLAL", "Lakeland", "Lakeland"));
+    List<Map<String, Object>> routes = new ArrayList<>();
+    routes.addAll(Collections.nCopies(3, route("SFO", "LAX")));
+    routes.addAll(Collections.nCopies(2, route("LAX", "SFO")));
+    routes.add(route("TVL", "LAL"));
+    autocomplete = new AirportAutocomplete(true, new RouteSource() {
+      @Override
+      public List<Map<String, Object>> airports() {
+        return airports;
+      }
+
+      @Override
+      public Map<String, Map<String, Object>> airlines() {
+        return Collections.emptyMap();
+      }
+
+      @Override
+      public List<Map<String, Object>> routes() {
+        return routes;
+      }
+    });
+    autocomplete.rebuild();
+  }
+
+  @Test
+  void measuresOneEditToAPrefix() {
+    assertEquals(0, distance("fran", "francisco"));
+    assertEquals(1, distance("frbn", "francisco"), "substitution");
+    assertEquals(1, distance("fraan", "francisco"), "insertion");
+    assertEquals(1, distance("frn", "francisco"), "deletion");
+    assertEquals(1, distance("rfan", "francisco"), "transposition");
+    assertEquals(1, distance("francisko", "francisco"), "substitution at the end");
+    assertEquals(2, distance("xxan", "francisco"), "over the maximum");
+    assertEquals(2, distance("franciscoxx", "francisco"), "longer than the word");
+  }
+
+  @Test
+  void findsEveryKindOfTypo() {
+    assertEquals(List.of("San Francisco Intl"), names("san frbncisco"));
+    assertEquals(List.of("San Francisco Intl"), names("fraancisco"));
+    assertEquals(List.of("San Francisco Intl"), names("frncisco"));
+    assertEquals(List.of("San Francisco Intl"), names("rfancisco"));
+    assertEquals(List.of("Los Angeles Intl"), names("Los Ángeles"));
+  }
+
+  @Test
+  void allowsOneTypoOverTheWholeSearch() {
+    assertEquals(List.of("Los Angeles Intl"), names("lqs angeles"));
+    assertEquals(Collections.emptyList(), names("lqs angelrs"));
+  }
+
+  @Test
+  void allowsNoTypoInShortWords() {
+    assertEquals(List.of("San Francisco Intl"), names("sf"));
+    assertEquals(Collections.emptyList(), names("sx"));
+    assertEquals(Collections.emptyList(), names("lx"));
+  }
+
+  @Test
+  void ranksByTyposThenRoutesThenName() {
+    // Lake Tahoe and Lakeland have a route each, and "Lake Tahoe" sorts first
+    assertEquals(List.of("Los Angeles Intl", "Lake Tahoe", "Lakeland"), names("la"));
+    assertEquals(List.of("Los Angeles Intl", "Lake Tahoe"), names("la", 2));
+    // the exact code first, though LAX has more routes
+    assertEquals(List.of("Lakeland", "Los Angeles Intl", "Lake Tahoe"), names("lal"));
+    assertEquals(5, autocomplete.suggest("lax", 1).get(0).get("routes"));
+  }
+
+  private static int distance(String search, String word) {
+    return AirportAutocomplete.prefixDistance(search, word, 1, new int[3][word.length() + 1]);
+  }
+
+  private List<String> names(String search) {
+    return names(search, 10);
+  }
+
+  private List<String> names(String search, int limit) {
+    List<String> names = new ArrayList<>();
+    for (Map<String, Object> airport : autocomplete.suggest(search, limit)) {
+      names.add((String) airport.get("airportname"));
+    }
+    return names;
+  }
+
+  private static Map<String, Object> airport(String faa, String icao, String name, String city) {
+    Map<String, Object> airport = new HashMap<>();
+    airport.put("faa", faa);
+    airport.put("icao", icao);
+    airport.put("airportname", name);
+    airport.put("city", city);
+    return airport;
+  }
+
+  private static Map<String, Object> route(String from, String to) {
+    return Map.of("sourceairport", from, "destinationairport", to);
+  }
+
+}
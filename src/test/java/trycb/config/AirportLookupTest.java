@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+
+/**
+ * A lookup holds every airport with its code, each once, and goes once the last one has left.
+ */
+class AirportLookupTest {
+
+  private static final Airport FIRST = new Airport("airport_1", "First", "AAA", "One", "Here", "KAAA");
+  private static final Airport SECOND = new Airport("airport_2", "Second", "AAA", "Two", "There", "KAAB");
+
+  @Test
+  void holdsEveryAirportOfASharedCode() {
+    JsonObject lookup = AirportLookup.with(AirportLookup.with(null, FIRST, true), SECOND, true);
+
+    assertEquals(JsonArray.from("airport_1", "airport_2"), lookup.getArray("ids"));
+    assertEquals("First", lookup.getArray("airports").getObject(0).getString("airportname"));
+    assertEquals("Second", lookup.getArray("airports").getObject(1).getString("airportname"));
+  }
+
+  @Test
+  void replacesTheEntryOfAnAirportSavedAgain() {
+    Airport renamed = new Airport("airport_1", "Renamed", "AAA", "One", "Here", "KAAA");
+    JsonObject lookup = AirportLookup.with(AirportLookup.with(AirportLookup.with(null, FIRST, true), SECOND, true),
+        renamed, true);
+
+    assertEquals(JsonArray.from("airport_2", "airport_1"), lookup.getArray("ids"));
+    assertEquals("Renamed", lookup.getArray("airports").getObject(1).getString("airportname"));
+  }
+
+  @Test
+  void removesAnAirportAndTheLookupWithTheLast() {
+    JsonObject lookup = AirportLookup.with(AirportLookup.with(null, FIRST, false), SECOND, false);
+
+    JsonObject left = AirportLookup.without(lookup, "airport_1");
+    assertEquals(JsonArray.from("airport_2"), left.getArray("ids"));
+    assertNull(left.getArray("airports"));
+    assertNull(AirportLookup.without(left, "airport_2"));
+    assertNull(AirportLookup.without(null, "airport_2"));
+  }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * An FAA code shared by several airports stands for all of them, and each of their names for the code.
+ */
+class InventoryDictionaryTest {
+
+  @Test
+  void mapsASharedCodeToEveryAirport() {
+    RouteSource source = new RouteSource() {
+      @Override
+      public List<Map<String, Object>> airports() {
+        return List.of(Map.of("faa", "AAA", "airportname", "First"), Map.of("faa", "AAA", "airportname", "Second"),
+            Map.of("faa", "BBB", "airportname", "First"));
+      }
+
+      @Override
+      public Map<String, Map<String, Object>> airlines() {
+        return Collections.emptyMap();
+      }
+
+      @Override
+      public List<Map<String, Object>> routes() {
+        return Collections.emptyList();
+      }
+    };
+    InventoryDictionary dictionary = new InventoryDictionary(true, source);
+    dictionary.reload();
+
+    assertEquals(List.of("First", "Second"), dictionary.airportNames("AAA"));
+    assertEquals(List.of("Unknown"), dictionary.airportNames("Unknown"));
+    assertEquals(List.of("AAA"), dictionary.faaCodes("Second"));
+    assertEquals(List.of("AAA", "BBB"), dictionary.faaCodes("First").stream().sorted().toList());
+    assertEquals(List.of("AAA"), dictionary.faaCodes("AAA"));
+  }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import trycb.model.Result;
+import trycb.util.Fields;
+
+/**
+ * Flight path searches by FAA code against the embedded travel-sample snapshot, with the InventoryDictionary and
+ * RouteReachability loaded: each search must find the same flights as by airport name.
+ */
+@SpringBootTest(properties = { "storage.dictionary.enabled=true", "storage.reachability.enabled=true",
+    "warmup.enabled=false" })
+@ActiveProfiles("embedded")
+class FlightPathTest {
+
+  private static final String SFO = "San Francisco Intl";
+  private static final String LAX = "Los Angeles Intl";
+
+  @Autowired private FlightPath flightPathService;
+
+  @Test
+  void streamsFlightsBetweenFaaCodes() {
+    List<Map<String, Object>> byCode = flightPathService.findAllStream("SFO", "LAX", monday()).collectList().block();
+    List<Map<String, Object>> byName = flightPathService.findAllStream(SFO, LAX, monday()).collectList().block();
+
+    assertFalse(byCode.isEmpty());
+    assertEquals(flights(byName), flights(byCode));
+  }
+
+  @Test
+  void findsTheWeekBetweenFaaCodes() {
+    Result<List<Map<String, Object>>> byCode = flightPathService.findRange("SFO", "LAX", monday(), 7, "departure", 0,
+        Fields.ALL);
+    Result<List<Map<String, Object>>> byName = flightPathService.findRange(SFO, LAX, monday(), 7, "departure", 0,
+        Fields.ALL);
+
+    assertEquals(7, byCode.getData().size());
+    assertFalse(weekFlights(byCode).stream().allMatch(List::isEmpty));
+    assertEquals(weekFlights(byName), weekFlights(byCode));
+  }
+
+  private static Calendar monday() {
+    Calendar leave = Calendar.getInstance(Locale.US);
+    leave.clear();
+    leave.set(2026, Calendar.MAY, 11);
+    return leave;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<List<String>> weekFlights(Result<List<Map<String, Object>>> week) {
+    List<List<String>> flights = new ArrayList<>();
+    for (Map<String, Object> day : week.getData()) {
+      flights.add(flights((List<Map<String, Object>>) day.get("flights")));
+    }
+    return flights;
+  }
+
+  private static List<String> flights(List<Map<String, Object>> rows) {
+    List<String> flights = new ArrayList<>();
+    for (Map<String, Object> row : rows) {
+      flights.add(row.get("flight") + " " + row.get("airlineid"));
+    }
+    flights.sort(null);
+    return flights;
+  }
+
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Batches are loaded once their window has passed or they are full, whichever comes first, and ids asked for while a
+ * batch is being closed go into the next one. Without batching every id is loaded on the thread asking for it.
+ */
+class BatchLoaderTest {
+
+  private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+  private final FanOut fanOut = new FanOut(false, 4);
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+  @AfterEach
+  void shutdown() {
+    fanOut.destroy();
+    timer.shutdownNow();
+  }
+
+  @Test
+  void loadsOnTheCallerThreadWhenDisabled() {
+    List<Thread> threads = new CopyOnWriteArrayList<>();
+    BatchLoader<String> loader = loader(false, HOUR, 64, (scope, ids) -> {
+      threads.add(Thread.currentThread());
+      return upperCase(scope, ids);
+    });
+
+    CompletableFuture<Optional<String>> loaded = loader.load("tenant", "a");
+
+    assertTrue(loaded.isDone());
+    assertEquals(Optional.of("A"), loaded.join());
+    assertEquals(List.of(Thread.currentThread()), threads);
+    assertEquals(List.of(List.of("a")), batches);
+  }
+
+  @Test
+  void failsOnTheCallerThreadWhenDisabled() {
+    BatchLoader<String> loader = loader(false, HOUR, 64, (scope, ids) -> {
+      throw new IllegalStateException("down");
+    });
+
+    CompletableFuture<Optional<String>> loaded = loader.load("tenant", "a");
+
+    assertTrue(loaded.isCompletedExceptionally());
+    CompletionException e = assertThrows(CompletionException.class, loaded::join);
+    assertTrue(e.getCause() instanceof IllegalStateException);
+  }
+
+  @Test
+  void loadsTheIdsOfAWindowTogether() {
+    BatchLoader<String> loader = loader(true, TimeUnit.MILLISECONDS.toNanos(50), 64, this::upperCase);
+
+    CompletableFuture<Optional<String>> a = loader.load("tenant", "a");
+    CompletableFuture<Optional<String>> b = loader.load("tenant", "b");
+    CompletableFuture<Optional<String>> again = loader.load("tenant", "a");
+    CompletableFuture<Optional<String>> missing = loader.load("tenant", "missing");
+    CompletableFuture<Optional<String>> other = loader.load("other", "c");
+
+    assertEquals(Optional.of("A"), a.join());
+    assertEquals(Optional.of("B"), b.join());
+    assertSame(a, again);
+    assertEquals(Optional.empty(), missing.join());
+    assertEquals(Optional.of("C"), other.join());
+    assertEquals(2, batches.size());
+    assertTrue(batches.contains(List.of("a", "b", "missing")));
+    assertTrue(batches.contains(List.of("c")));
+    assertEquals(2, registry.get("trycb.batch.size").tag("loader", "test").summary().count());
+  }
+
+  @Test
+  void loadsAFullBatchWithoutWaitingForItsWindow() throws Exception {
+    BatchLoader<String> loader = loader(true, HOUR, 2, this::upperCase);
+
+    CompletableFuture<Optional<String>> a = loader.load("tenant", "a");
+    CompletableFuture<Optional<String>> b = loader.load("tenant", "b");
+    CompletableFuture<Optional<String>> c = loader.load("tenant", "c");
+
+    assertEquals(Optional.of("A"), a.get(5, TimeUnit.SECONDS));
+    assertEquals(Optional.of("B"), b.get(5, TimeUnit.SECONDS));
+    assertFalse(c.isDone());
+    assertEquals(List.of(List.of("a", "b")), batches);
+  }
+
+  @Test
+  void failsEveryIdOfAFailedBatch() {
+    BatchLoader<String> loader = loader(true, HOUR, 2, (scope, ids) -> {
+      throw new IllegalStateException("down");
+    });
+
+    CompletableFuture<Optional<String>> a = loader.load("tenant", "a");
+    CompletableFuture<Optional<String>> b = loader.load("tenant", "b");
+
+    assertTrue(assertThrows(CompletionException.class, a::join).getCause() instanceof IllegalStateException);
+    assertTrue(assertThrows(CompletionException.class, b::join).getCause() instanceof IllegalStateException);
+  }
+
+  @Test
+  void startsANewBatchForIdsAskedForWhileOneCloses() throws Exception {
+    // small batches filled from several threads at once, so that loads keep finding a batch just closed by another
+    BatchLoader<String> loader = loader(true, TimeUnit.MILLISECONDS.toNanos(1), 3, this::upperCase);
+    int threads = 8;
+    int perThread = 500;
+    ExecutorService callerThreads = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<CompletableFuture<List<CompletableFuture<Optional<String>>>>> callers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      callers.add(CompletableFuture.supplyAsync(() -> {
+        await(start);
+        List<CompletableFuture<Optional<String>>> loaded = new ArrayList<>();
+        for (int i = 0; i < perThread; i++) {
+          loaded.add(loader.load("tenant", thread + "-" + i));
+        }
+        return loaded;
+      }, callerThreads));
+    }
+    start.countDown();
+    callerThreads.shutdown();
+
+    for (int t = 0; t < threads; t++) {
+      List<CompletableFuture<Optional<String>>> loaded = callers.get(t).get(10, TimeUnit.SECONDS);
+      for (int i = 0; i < perThread; i++) {
+        assertEquals(Optional.of(t + "-" + i), loaded.get(i).get(10, TimeUnit.SECONDS));
+      }
+    }
+    List<String> ids = new ArrayList<>();
+    for (List<String> batch : batches) {
+      assertTrue(batch.size() <= 3, "batch of " + batch.size());
+      ids.addAll(batch);
+    }
+    assertEquals(threads * perThread, ids.size());
+    assertEquals(threads * perThread, new HashSet<>(ids).size());
+  }
+
+  private BatchLoader<String> loader(boolean enabled, long windowNanos, int maxSize,
+      BiFunction<String, List<String>, Map<String, String>> loadAll) {
+    return new BatchLoader<>("test", enabled, windowNanos, maxSize, (scope, ids) -> {
+      batches.add(Collections.unmodifiableList(new ArrayList<>(ids)));
+      return loadAll.apply(scope, ids);
+    }, fanOut, timer, registry);
+  }
+
+  private Map<String, String> upperCase(String scope, List<String> ids) {
+    Map<String, String> found = new HashMap<>();
+    for (String id : ids) {
+      if (!id.equals("missing")) {
+        found.put(id, id.toUpperCase());
+      }
+    }
+    return found;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+
+import com.couchbase.client.core.error.UnambiguousTimeoutException;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+
+/**
+ * Timeouts of calls made once the deadline of their request has passed are ignored by the breakers, whatever the
+ * thread the call completes on; timeouts within the deadline count as failures.
+ */
+class BreakerTest {
+
+  private final CircuitBreaker circuitBreaker = CircuitBreaker.of("query",
+      CircuitBreakerConfig.custom().ignoreException(new DeadlineExpired()).build());
+  private final Breaker breaker = new Breaker("query", circuitBreaker, 10);
+
+  @Test
+  void ignoresDeadlinesAndTimeoutsPastTheDeadline() {
+    DeadlineExpired ignored = new DeadlineExpired();
+    Deadline expired = Deadline.in(Duration.ZERO);
+
+    assertTrue(ignored.test(new DeadlineExceededException("client gone")));
+    assertTrue(expired.run(() -> ignored.test(new UnambiguousTimeoutException("timeout", null))));
+    assertTrue(expired.run(() -> ignored.test(new CompletionException(new QueryTimeoutException("timeout")))));
+    assertFalse(ignored.test(new QueryTimeoutException("timeout")));
+    assertFalse(Deadline.in(Duration.ofMinutes(1)).run(() -> ignored.test(new QueryTimeoutException("timeout"))));
+    assertFalse(expired.run(() -> ignored.test(new IllegalStateException("failed"))));
+  }
+
+  @Test
+  void doesNotCountATimeoutPastTheDeadline() {
+    Deadline expired = Deadline.in(Duration.ZERO);
+
+    assertThrows(QueryTimeoutException.class, () -> expired.run(() -> breaker.call(() -> {
+      throw new QueryTimeoutException("timeout");
+    })));
+
+    assertEquals(0, circuitBreaker.getMetrics().getNumberOfFailedCalls());
+  }
+
+  @Test
+  void countsATimeoutWithinTheDeadline() {
+    Deadline deadline = Deadline.in(Duration.ofMinutes(1));
+
+    assertThrows(QueryTimeoutException.class, () -> deadline.run(() -> breaker.call(() -> {
+      throw new QueryTimeoutException("timeout");
+    })));
+
+    assertEquals(1, circuitBreaker.getMetrics().getNumberOfFailedCalls());
+  }
+
+  @Test
+  void doesNotCountAnAsyncTimeoutPastTheDeadlineOnAnotherThread() {
+    Deadline deadline = Deadline.in(Duration.ofMillis(50));
+    CompletableFuture<Guarded<Object>> call = deadline.run(() -> breaker.callAsync("key",
+        () -> CompletableFuture.supplyAsync(() -> {
+          sleep(100);
+          throw new QueryTimeoutException("timeout");
+        })));
+
+    CompletionException e = assertThrows(CompletionException.class, call::join);
+    assertTrue(e.getCause() instanceof QueryTimeoutException);
+    assertEquals(0, circuitBreaker.getMetrics().getNumberOfFailedCalls());
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Backup reads are fired within the budget of the token bucket, after the observed percentile of the primary
+ * latencies.
+ */
+class HedgeTest {
+
+  private static final Duration SLOW = Duration.ofMillis(50);
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  @Test
+  void hedgesTheBurstAndThenTheBudget() {
+    Hedge hedge = hedge("read", 0.95, Duration.ofMillis(1), Duration.ZERO, 0.5, 1);
+
+    // a token to start with, half a token back per read, one per hedge
+    List<String> values = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      values.add(hedge.read(() -> Mono.delay(SLOW).thenReturn("primary"), () -> Mono.just("backup")).block());
+    }
+
+    assertEquals(List.of("backup", "primary", "backup", "primary", "backup"), values);
+    assertEquals(3, count("trycb.hedge.fired"));
+    assertEquals(3, count("trycb.hedge.won"));
+    assertEquals(2, count("trycb.hedge.skipped"));
+  }
+
+  @Test
+  void hedgesNothingWithoutABudget() {
+    Hedge hedge = hedge("read", 0.95, Duration.ofMillis(1), Duration.ZERO, 0, 0);
+
+    assertEquals("primary", hedge.read(() -> Mono.delay(SLOW).thenReturn("primary"), () -> Mono.just("backup"))
+        .block());
+    assertEquals(0, count("trycb.hedge.fired"));
+    assertEquals(1, count("trycb.hedge.skipped"));
+  }
+
+  @Test
+  void waitsForTheObservedPercentile() {
+    // with 7 slow reads in 128 the 95th percentile is slow and the 90th fast
+    Hedge p95 = hedge("p95", 0.95, Duration.ofHours(1), Duration.ZERO, 0, 0);
+    Hedge p90 = hedge("p90", 0.90, Duration.ofHours(1), Duration.ZERO, 0, 0);
+    assertEquals(Duration.ofHours(1).toNanos(), delay("p95"));
+
+    readWithSlowTail(p95);
+    readWithSlowTail(p90);
+
+    assertTrue(delay("p95") >= SLOW.toNanos(), "p95 delay " + delay("p95"));
+    assertTrue(delay("p90") < SLOW.toNanos(), "p90 delay " + delay("p90"));
+  }
+
+  @Test
+  void neverWaitsLessThanTheMinimum() {
+    Hedge hedge = hedge("read", 0.95, Duration.ofHours(1), Duration.ofMillis(20), 0, 0);
+
+    for (int i = 0; i < 128; i++) {
+      hedge.read(() -> Mono.just("primary"), () -> Mono.just("backup")).block();
+    }
+
+    assertEquals(Duration.ofMillis(20).toNanos(), delay("read"));
+  }
+
+  private Hedge hedge(String name, double percentile, Duration initialDelay, Duration minDelay, double budget,
+      int burst) {
+    return new Hedge(name, true, percentile, initialDelay, minDelay, budget, burst, registry);
+  }
+
+  private static void readWithSlowTail(Hedge hedge) {
+    for (int i = 0; i < 128; i++) {
+      Mono<String> primary = i % 18 == 17 ? Mono.delay(SLOW).thenReturn("primary") : Mono.just("primary");
+      hedge.read(() -> primary, () -> Mono.just("backup")).block();
+    }
+  }
+
+  private long delay(String name) {
+    return (long) registry.get("trycb.hedge.delay").tag("read", name).gauge().value();
+  }
+
+  private double count(String name) {
+    return registry.get(name).counter().count();
+  }
+
+}
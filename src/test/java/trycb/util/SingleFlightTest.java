@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2021 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package trycb.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Identical concurrent calls share the one in flight, its result or its failure, each waiting only until its own
+ * deadline, and the next call after it goes to the backend again.
+ */
+class SingleFlightTest {
+
+  private final SingleFlight singleFlight = new SingleFlight("test", true, 10, new SimpleMeterRegistry());
+  private final ExecutorService threads = Executors.newCachedThreadPool();
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @AfterEach
+  void shutdown() {
+    release.countDown();
+    threads.shutdownNow();
+  }
+
+  @Test
+  void sharesTheCallInFlight() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CompletableFuture<Object> leader = lead(() -> {
+      calls.incrementAndGet();
+      return "value";
+    });
+    CompletableFuture<Object> follower = CompletableFuture.supplyAsync(() -> singleFlight.join("key", () -> {
+      calls.incrementAndGet();
+      return "other";
+    }), threads);
+    awaitShared(1);
+    release.countDown();
+
+    assertEquals("value", leader.get(5, TimeUnit.SECONDS));
+    assertEquals("value", follower.get(5, TimeUnit.SECONDS));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  @Timeout(10)
+  void timesOutAFollowerOnItsOwnDeadline() throws Exception {
+    CompletableFuture<Object> leader = lead(() -> "value");
+
+    long start = System.nanoTime();
+    assertThrows(DeadlineExceededException.class,
+        () -> Deadline.in(Duration.ofMillis(50)).run(() -> singleFlight.join("key", () -> "other")));
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+    // the leader, and the call it shares, are left alone
+    release.countDown();
+    assertEquals("value", leader.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void failsTheFollowersWithTheLeadersFailure() throws Exception {
+    IllegalStateException failure = new IllegalStateException("down");
+    CompletableFuture<Object> leader = lead(() -> {
+      throw failure;
+    });
+    CompletableFuture<Object> follower = CompletableFuture.supplyAsync(() -> singleFlight.join("key", () -> "other"),
+        threads);
+    CompletableFuture<Object> asyncFollower = singleFlight.run("key", () -> CompletableFuture.completedFuture("other"));
+    awaitShared(2);
+    release.countDown();
+
+    assertSame(failure, assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS)).getCause());
+    assertSame(failure, assertThrows(ExecutionException.class, () -> follower.get(5, TimeUnit.SECONDS)).getCause());
+    assertSame(failure, assertThrows(CompletionException.class, asyncFollower::join).getCause());
+  }
+
+  @Test
+  void clearsTheKeyOnceTheCallCompletes() {
+    assertEquals("first", singleFlight.join("key", () -> "first"));
+    assertEquals("second", singleFlight.join("key", () -> "second"));
+    assertThrows(IllegalStateException.class, () -> singleFlight.join("key", () -> {
+      throw new IllegalStateException("down");
+    }));
+    assertEquals("third", singleFlight.join("key", () -> "third"));
+    assertEquals("fourth", singleFlight.run("key", () -> CompletableFuture.completedFuture("fourth")).join());
+    assertEquals("fifth", singleFlight.run("key", () -> CompletableFuture.completedFuture("fifth")).join());
+
+    assertEquals(0, singleFlight.report(10).get("inFlight"));
+    assertEquals(0L, singleFlight.report(10).get("shared"));
+  }
+
+  /**
+   * Start the call for "key" on another thread, in flight until released.
+   */
+  private CompletableFuture<Object> lead(Supplier<Object> call) throws InterruptedException {
+    CompletableFuture<Object> leader = CompletableFuture.supplyAsync(() -> singleFlight.join("key", () -> {
+      started.countDown();
+      await(release);
+      return call.get();
+    }), threads);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    return leader;
+  }
+
+  private void awaitShared(long shared) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (((Number) singleFlight.report(10).get("shared")).longValue() < shared) {
+      assertTrue(System.nanoTime() < deadline, "followers never joined");
+      Thread.sleep(1);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}